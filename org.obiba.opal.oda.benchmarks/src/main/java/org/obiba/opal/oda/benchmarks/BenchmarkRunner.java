@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.benchmarks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler, so that the allocated bytes per operation are reported along with the
+ * scores, and compares the results with a baseline.
+ * 
+ * <pre>
+ * java -jar benchmarks.jar [--save baselines/1.2.3.tsv] [--compare baselines/1.2.2.tsv] [--tolerance 0.1] [regexp...]
+ * </pre>
+ * 
+ * A baseline is a tab separated file of benchmark, parameters, score, unit and allocated bytes per operation, meant to
+ * be recorded on a reference machine for each release and kept under <code>baselines/</code>. When compared, the
+ * runner exits with status 1 if a score is worse than the baseline by more than the tolerance.
+ */
+public class BenchmarkRunner {
+
+  private static final String ALLOCATION_RATE = "gc.alloc.rate.norm";
+
+  private static final String CHARSET = "UTF-8";
+
+  public static void main(String[] args) throws RunnerException, IOException {
+    File save = null;
+    File baseline = null;
+    double tolerance = 0.1;
+    ChainedOptionsBuilder options = new OptionsBuilder().addProfiler(GCProfiler.class)//
+    .resultFormat(ResultFormatType.JSON).result("jmh-result.json");
+    boolean included = false;
+    for(int i = 0; i < args.length; i++) {
+      if("--save".equals(args[i])) {
+        save = new File(args[++i]);
+      } else if("--compare".equals(args[i])) {
+        baseline = new File(args[++i]);
+      } else if("--tolerance".equals(args[i])) {
+        tolerance = Double.parseDouble(args[++i]);
+      } else {
+        options.include(args[i]);
+        included = true;
+      }
+    }
+    if(!included) options.include("org\\.obiba\\.opal\\.oda\\..*Benchmark");
+
+    Map<String, String[]> results = toRows(new Runner(options.build()).run());
+    if(save != null) write(results, save);
+    if(baseline != null && compare(read(baseline), results, tolerance) > 0) System.exit(1);
+  }
+
+  private static Map<String, String[]> toRows(Collection<RunResult> runResults) {
+    Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+    for(RunResult runResult : runResults) {
+      BenchmarkParams params = runResult.getParams();
+      StringBuilder paramValues = new StringBuilder();
+      for(String key : params.getParamsKeys()) {
+        if(paramValues.length() > 0) paramValues.append(',');
+        paramValues.append(key).append('=').append(params.getParam(key));
+      }
+      Result<?> primary = runResult.getPrimaryResult();
+      String allocation = "";
+      for(Map.Entry<String, Result> secondary : runResult.getSecondaryResults().entrySet()) {
+        if(secondary.getKey().endsWith(ALLOCATION_RATE)) allocation = format(secondary.getValue().getScore());
+      }
+      String[] row = new String[] { params.getBenchmark(), paramValues.toString(), format(primary.getScore()), primary.getScoreUnit(), allocation };
+      rows.put(row[0] + " " + row[1], row);
+    }
+    return rows;
+  }
+
+  /**
+   * Print the change of each score relative to the baseline.
+   * @return the number of regressions
+   */
+  private static int compare(Map<String, String[]> baseline, Map<String, String[]> results, double tolerance) {
+    int regressions = 0;
+    System.out.println();
+    System.out.println(String.format("%-100s %12s %12s %8s", "Benchmark", "Baseline", "Score", "Change"));
+    for(Map.Entry<String, String[]> entry : results.entrySet()) {
+      String[] reference = baseline.get(entry.getKey());
+      if(reference == null) continue;
+      String[] result = entry.getValue();
+      double before = Double.parseDouble(reference[2]);
+      double after = Double.parseDouble(result[2]);
+      // throughputs are in ops per time unit, other modes in time per op
+      double change = result[3].startsWith("ops/") ? after / before - 1 : before / after - 1;
+      boolean regression = change < -tolerance;
+      if(regression) regressions++;
+      System.out.println(String.format("%-100s %12s %12s %+7.1f%%%s", entry.getKey(), reference[2], result[2], change * 100, regression ? " REGRESSION" : ""));
+    }
+    System.out.println(regressions + " regression(s) beyond " + Math.round(tolerance * 100) + "%");
+    return regressions;
+  }
+
+  private static void write(Map<String, String[]> rows, File file) throws IOException {
+    if(file.getParentFile() != null) file.getParentFile().mkdirs();
+    PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), CHARSET));
+    try {
+      for(String[] row : rows.values()) {
+        writer.println(join(row));
+      }
+    } finally {
+      writer.close();
+    }
+  }
+
+  private static Map<String, String[]> read(File file) throws IOException {
+    Map<String, String[]> rows = new LinkedHashMap<String, String[]>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), CHARSET));
+    try {
+      String line;
+      while((line = reader.readLine()) != null) {
+        if(line.trim().length() == 0 || line.startsWith("#")) continue;
+        String[] row = line.split("\t", -1);
+        rows.put(row[0] + " " + row[1], row);
+      }
+    } finally {
+      reader.close();
+    }
+    return rows;
+  }
+
+  private static String join(String[] values) {
+    StringBuilder joined = new StringBuilder();
+    for(String value : values) {
+      if(joined.length() > 0) joined.append('\t');
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ROOT, "%.3f", value);
+  }
+
+}
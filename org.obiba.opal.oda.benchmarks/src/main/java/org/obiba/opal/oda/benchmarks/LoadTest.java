@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.eclipse.datatools.connectivity.oda.IConnection;
+import org.eclipse.datatools.connectivity.oda.IQuery;
+import org.eclipse.datatools.connectivity.oda.IResultSet;
+import org.obiba.opal.oda.runtime.impl.Driver;
+import org.obiba.opal.oda.runtime.impl.Query;
+
+/**
+ * Drives the full Driver, Connection, Query and ResultSet path against Opal or, by default, against an embedded
+ * {@link StubOpalServer}, and reports the time to first row, the rows per second and the peak heap.
+ * 
+ * <pre>
+ * java -cp benchmarks.jar org.obiba.opal.oda.benchmarks.LoadTest [--rows 100000] [--width 100] [--mix MIXED]
+ *   [--latency 20] [--bandwidth 0] [--gzip] [--memory-budget 0] [--threads 4] [--iterations 3]
+ *   [--url http://opal:8080 --user u --password p --datasource ds --table t] [-PPROPERTY=value...]
+ * </pre>
+ * 
+ * The <code>-P</code> options are data set properties of the queries, such as <code>-PPREFETCH=4</code> or
+ * <code>-PCOLUMNAR=true</code>. The driver system properties (page cache, client pool...) apply as well.
+ */
+public class LoadTest {
+
+  private int rows = 100000;
+
+  private int width = 100;
+
+  private SyntheticTable.Mix mix = SyntheticTable.Mix.MIXED;
+
+  private long latency = 20;
+
+  private long bandwidth;
+
+  private boolean gzip;
+
+  private long memoryBudget;
+
+  private int threads = 4;
+
+  private int iterations = 3;
+
+  private String url;
+
+  private String user = "administrator";
+
+  private String password = "password";
+
+  private String datasource = "stub";
+
+  private String table = "Table";
+
+  private final Properties queryProperties = new Properties();
+
+  private volatile long peakHeap;
+
+  public static void main(String[] args) throws Exception {
+    LoadTest test = new LoadTest();
+    for(int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if(arg.startsWith("-P") && arg.indexOf('=') > 2) {
+        test.queryProperties.setProperty(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      } else if("--rows".equals(arg)) {
+        test.rows = Integer.parseInt(args[++i]);
+      } else if("--width".equals(arg)) {
+        test.width = Integer.parseInt(args[++i]);
+      } else if("--mix".equals(arg)) {
+        test.mix = SyntheticTable.Mix.valueOf(args[++i].toUpperCase());
+      } else if("--latency".equals(arg)) {
+        test.latency = Long.parseLong(args[++i]);
+      } else if("--bandwidth".equals(arg)) {
+        test.bandwidth = Long.parseLong(args[++i]);
+      } else if("--gzip".equals(arg)) {
+        test.gzip = true;
+      } else if("--memory-budget".equals(arg)) {
+        test.memoryBudget = Long.parseLong(args[++i]);
+      } else if("--threads".equals(arg)) {
+        test.threads = Integer.parseInt(args[++i]);
+      } else if("--iterations".equals(arg)) {
+        test.iterations = Integer.parseInt(args[++i]);
+      } else if("--url".equals(arg)) {
+        test.url = args[++i];
+      } else if("--user".equals(arg)) {
+        test.user = args[++i];
+      } else if("--password".equals(arg)) {
+        test.password = args[++i];
+      } else if("--datasource".equals(arg)) {
+        test.datasource = args[++i];
+      } else if("--table".equals(arg)) {
+        test.table = args[++i];
+      } else {
+        throw new IllegalArgumentException("Unknown argument: " + arg);
+      }
+    }
+    test.run();
+  }
+
+  public void run() throws Exception {
+    StubOpalServer server = null;
+    if(url == null) {
+      server = new StubOpalServer().addTable(datasource, table, new SyntheticTable(rows, width, mix, 0.05, 1));
+      server.setLatency(latency).setBandwidth(bandwidth).setCompression(gzip).start(0);
+      url = server.getURL();
+    }
+
+    Thread sampler = startHeapSampler();
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<List<Run>>> futures = new ArrayList<Future<List<Run>>>();
+      long start = System.nanoTime();
+      for(int i = 0; i < threads; i++) {
+        futures.add(executor.submit(new Callable<List<Run>>() {
+          public List<Run> call() throws Exception {
+            List<Run> runs = new ArrayList<Run>();
+            for(int j = 0; j < iterations; j++) {
+              runs.add(runQuery());
+            }
+            return runs;
+          }
+        }));
+      }
+      List<Run> runs = new ArrayList<Run>();
+      for(Future<List<Run>> future : futures) {
+        runs.addAll(future.get());
+      }
+      report(runs, System.nanoTime() - start, server);
+    } finally {
+      executor.shutdownNow();
+      sampler.interrupt();
+      if(server != null) server.stop();
+    }
+  }
+
+  private Run runQuery() throws Exception {
+    IConnection connection = new Driver().getConnection(null);
+    Properties properties = new Properties();
+    properties.setProperty("URL", url);
+    properties.setProperty("USER", user);
+    properties.setProperty("PASSWORD", password);
+    if(memoryBudget > 0) properties.setProperty("MEMORY_BUDGET", Long.toString(memoryBudget));
+    connection.open(properties);
+    try {
+      IQuery query = connection.newQuery(null);
+      query.prepare("");
+      query.setProperty(Query.DATASOURCE, datasource);
+      query.setProperty(Query.TABLE, table);
+      for(String name : queryProperties.stringPropertyNames()) {
+        query.setProperty(name, queryProperties.getProperty(name));
+      }
+
+      Run run = new Run();
+      long start = System.nanoTime();
+      int columnCount = query.getMetaData().getColumnCount();
+      IResultSet resultSet = query.executeQuery();
+      while(resultSet.next()) {
+        if(run.rows++ == 0) run.firstRowNanos = System.nanoTime() - start;
+        for(int i = 1; i <= columnCount; i++) {
+          resultSet.getString(i);
+        }
+      }
+      run.nanos = System.nanoTime() - start;
+      resultSet.close();
+      query.close();
+      return run;
+    } finally {
+      connection.close();
+    }
+  }
+
+  private Thread startHeapSampler() {
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    Thread sampler = new Thread("heap-sampler") {
+      @Override
+      public void run() {
+        while(!isInterrupted()) {
+          peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+          try {
+            Thread.sleep(10);
+          } catch(InterruptedException e) {
+            return;
+          }
+        }
+      }
+    };
+    sampler.setDaemon(true);
+    sampler.start();
+    return sampler;
+  }
+
+  private void report(List<Run> runs, long nanos, StubOpalServer server) {
+    List<Long> firstRows = new ArrayList<Long>();
+    List<Double> rates = new ArrayList<Double>();
+    long totalRows = 0;
+    for(Run run : runs) {
+      firstRows.add(run.firstRowNanos);
+      rates.add(run.rows * 1e9 / run.nanos);
+      totalRows += run.rows;
+    }
+    Collections.sort(firstRows);
+    Collections.sort(rates);
+
+    System.out.println(String.format(Locale.ROOT, "queries:              %d (%d threads x %d iterations)", runs.size(), threads, iterations));
+    System.out.println(String.format(Locale.ROOT, "rows:                 %d", totalRows));
+    System.out.println(String.format(Locale.ROOT, "time to first row:    median %.1f ms, p95 %.1f ms, max %.1f ms", percentile(firstRows, 0.5) / 1e6, percentile(firstRows, 0.95) / 1e6, firstRows.get(firstRows.size() - 1) / 1e6));
+    System.out.println(String.format(Locale.ROOT, "rows/s per query:     median %.0f, min %.0f", percentile(rates, 0.5), rates.get(0)));
+    System.out.println(String.format(Locale.ROOT, "rows/s overall:       %.0f", totalRows * 1e9 / nanos));
+    System.out.println(String.format(Locale.ROOT, "peak heap:            %.1f MB", peakHeap / (1024.0 * 1024.0)));
+    System.out.println(String.format(Locale.ROOT, "compression ratio:    %.1f", getCompressionRatio()));
+    if(server != null) {
+      System.out.println(String.format(Locale.ROOT, "bytes sent:           %.1f MB", server.getBytesSent() / (1024.0 * 1024.0)));
+      for(Map.Entry<String, Long> count : server.getRequestCounts().entrySet()) {
+        System.out.println(String.format(Locale.ROOT, "%-21s %d", count.getKey() + " requests:", count.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Get the compression ratio counted by the driver, from its MBean.
+   */
+  private static double getCompressionRatio() {
+    try {
+      return (Double) ManagementFactory.getPlatformMBeanServer().getAttribute(new ObjectName("org.obiba.opal.oda:type=Driver"), "CompressionRatio");
+    } catch(JMException e) {
+      return 0;
+    }
+  }
+
+  private static double percentile(List<? extends Number> sorted, double percentile) {
+    return sorted.get((int) Math.min(sorted.size() - 1, Math.floor(percentile * sorted.size()))).doubleValue();
+  }
+
+  private static class Run {
+
+    private int rows;
+
+    private long firstRowNanos;
+
+    private long nanos;
+  }
+
+}
@@ -0,0 +1,336 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.obiba.opal.web.model.Magma.DatasourceDto;
+import org.obiba.opal.web.model.Magma.TableDto;
+import org.obiba.opal.web.model.Magma.VariableDto;
+import org.obiba.opal.web.model.Magma.VariableEntityDto;
+
+import com.google.protobuf.Message;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Embeddable HTTP server serving the Opal web services used by the driver from synthetic tables:
+ * <code>/ws/datasources</code> and, for each table, <code>/ws/datasource/{datasource}/table/{table}</code> and its
+ * <code>variables</code>, <code>entities</code> and <code>valueSets</code> resources. Credentials are not checked.
+ * <p>
+ * The select scripts are understood when they list variable names, such as <code>name().any('A','B')</code>; other
+ * scripts select all the variables. Where scripts are ignored, so all the entities are returned. Each response can be
+ * delayed by a latency and its body throttled to a bandwidth, to simulate a remote server, and gzip compressed when
+ * compression is enabled and accepted by the client.
+ */
+public class StubOpalServer {
+
+  private static final String CONTENT_TYPE = "application/x-protobuf";
+
+  private static final Pattern TABLE_PATH = Pattern.compile("/datasource/([^/]+)/table/([^/]+)(?:/([^/]+))?/?");
+
+  private static final Pattern QUOTED = Pattern.compile("'((?:[^'\\\\]|\\\\.)*)'|\"((?:[^\"\\\\]|\\\\.)*)\"");
+
+  private static final int CHUNK_SIZE = 8 * 1024;
+
+  private final Map<String, Map<String, SyntheticTable>> datasources = new LinkedHashMap<String, Map<String, SyntheticTable>>();
+
+  private final Map<String, AtomicLong> requestCounts = new HashMap<String, AtomicLong>();
+
+  private final AtomicLong bytesSent = new AtomicLong();
+
+  private volatile long latency;
+
+  private volatile long bandwidth;
+
+  private volatile boolean compression;
+
+  private HttpServer server;
+
+  private ExecutorService executor;
+
+  /**
+   * Add a table to be served.
+   * @param datasource
+   * @param table
+   * @param data
+   * @return this
+   */
+  public synchronized StubOpalServer addTable(String datasource, String table, SyntheticTable data) {
+    Map<String, SyntheticTable> tables = datasources.get(datasource);
+    if(tables == null) {
+      tables = new LinkedHashMap<String, SyntheticTable>();
+      datasources.put(datasource, tables);
+    }
+    tables.put(table, data);
+    return this;
+  }
+
+  /**
+   * @param latency time in milliseconds before each response is sent
+   * @return this
+   */
+  public StubOpalServer setLatency(long latency) {
+    this.latency = latency;
+    return this;
+  }
+
+  /**
+   * @param bandwidth maximum bytes per second of each response body, 0 for no limit
+   * @return this
+   */
+  public StubOpalServer setBandwidth(long bandwidth) {
+    this.bandwidth = bandwidth;
+    return this;
+  }
+
+  /**
+   * @param compression whether the responses are gzip compressed for the clients accepting it
+   * @return this
+   */
+  public StubOpalServer setCompression(boolean compression) {
+    this.compression = compression;
+    return this;
+  }
+
+  /**
+   * Start serving on the given port of the loopback interface.
+   * @param port 0 for any free port
+   * @throws IOException
+   */
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+    server.createContext("/", new Handler());
+    executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "stub-opal");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  public void stop() {
+    if(server != null) {
+      server.stop(0);
+      executor.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * Get the Opal URL to be used as the URL of the connections, without the <code>/ws</code> part.
+   * @return
+   */
+  public String getURL() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Get the number of requests received for each kind of resource (datasources, table, variables, entities and
+   * valueSets).
+   * @return
+   */
+  public Map<String, Long> getRequestCounts() {
+    Map<String, Long> counts = new LinkedHashMap<String, Long>();
+    synchronized(requestCounts) {
+      for(Map.Entry<String, AtomicLong> entry : requestCounts.entrySet()) {
+        counts.put(entry.getKey(), entry.getValue().get());
+      }
+    }
+    return counts;
+  }
+
+  public long getBytesSent() {
+    return bytesSent.get();
+  }
+
+  private void count(String resource) {
+    synchronized(requestCounts) {
+      AtomicLong count = requestCounts.get(resource);
+      if(count == null) {
+        count = new AtomicLong();
+        requestCounts.put(resource, count);
+      }
+      count.incrementAndGet();
+    }
+  }
+
+  private synchronized SyntheticTable getTable(String datasource, String table) {
+    Map<String, SyntheticTable> tables = datasources.get(datasource);
+    return tables == null ? null : tables.get(table);
+  }
+
+  /**
+   * Get the 0-based indices of the variables named in a script.
+   * @return all the variables if the script does not name any variable of the table
+   */
+  private static int[] select(SyntheticTable table, String script) {
+    List<VariableDto> variables = table.getVariables();
+    List<Integer> selected = new ArrayList<Integer>();
+    if(script != null) {
+      Map<String, Integer> indices = new HashMap<String, Integer>();
+      for(int i = 0; i < variables.size(); i++) {
+        indices.put(variables.get(i).getName(), i);
+      }
+      Matcher matcher = QUOTED.matcher(script);
+      while(matcher.find()) {
+        String name = (matcher.group(1) != null ? matcher.group(1) : matcher.group(2)).replaceAll("\\\\(.)", "$1");
+        Integer index = indices.get(name);
+        if(index != null && !selected.contains(index)) selected.add(index);
+      }
+    }
+    int[] indices = new int[selected.isEmpty() ? variables.size() : selected.size()];
+    for(int i = 0; i < indices.length; i++) {
+      indices[i] = selected.isEmpty() ? i : selected.get(i);
+    }
+    return indices;
+  }
+
+  private static Map<String, String> getParameters(HttpExchange exchange) throws UnsupportedEncodingException {
+    Map<String, String> parameters = new HashMap<String, String>();
+    String query = exchange.getRequestURI().getRawQuery();
+    if(query == null) return parameters;
+    for(String parameter : query.split("&")) {
+      int equals = parameter.indexOf('=');
+      if(equals < 0) continue;
+      parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"), URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+    }
+    return parameters;
+  }
+
+  private static Integer getInteger(Map<String, String> parameters, String name) {
+    String value = parameters.get(name);
+    return value == null ? null : Integer.valueOf(value);
+  }
+
+  private class Handler implements HttpHandler {
+
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        int status = respond(exchange, body);
+        if(latency > 0) Thread.sleep(latency);
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        if(body.size() > 0 && acceptsGzip(exchange)) body = gzip(body);
+        exchange.sendResponseHeaders(status, body.size() == 0 ? -1 : body.size());
+        if(body.size() > 0) send(body.toByteArray(), exchange.getResponseBody());
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch(RuntimeException e) {
+        exchange.sendResponseHeaders(500, -1);
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private boolean acceptsGzip(HttpExchange exchange) {
+      String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+      if(!compression || accepted == null || !accepted.toLowerCase().contains("gzip")) return false;
+      exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+      return true;
+    }
+
+    private ByteArrayOutputStream gzip(ByteArrayOutputStream body) throws IOException {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      GZIPOutputStream out = new GZIPOutputStream(compressed);
+      body.writeTo(out);
+      out.close();
+      return compressed;
+    }
+
+    private int respond(HttpExchange exchange, OutputStream body) throws IOException {
+      String path = exchange.getRequestURI().getPath();
+      if(path.startsWith("/ws/")) path = path.substring(3);
+      if(path.equals("/datasources") || path.equals("/datasources/")) {
+        count("datasources");
+        writeDatasources(body);
+        return 200;
+      }
+
+      Matcher matcher = TABLE_PATH.matcher(path);
+      if(!matcher.matches()) return 404;
+      SyntheticTable table = getTable(matcher.group(1), matcher.group(2));
+      if(table == null) return 404;
+
+      String resource = matcher.group(3) == null ? "table" : matcher.group(3);
+      count(resource);
+      Map<String, String> parameters = getParameters(exchange);
+      if(resource.equals("table")) {
+        TableDto.newBuilder().setName(matcher.group(2)).setEntityType(SyntheticTable.ENTITY_TYPE)//
+        .setValueSetCount(table.getRowCount()).setVariableCount(table.getVariables().size()).build().writeTo(body);
+      } else if(resource.equals("variables")) {
+        for(int index : select(table, parameters.get("script"))) {
+          table.getVariables().get(index).writeDelimitedTo(body);
+        }
+      } else if(resource.equals("entities")) {
+        for(int row = 0; row < table.getRowCount(); row++) {
+          VariableEntityDto.newBuilder().setIdentifier(table.getIdentifier(row)).setEntityType(SyntheticTable.ENTITY_TYPE).build().writeDelimitedTo(body);
+        }
+      } else if(resource.equals("valueSets")) {
+        Integer offset = getInteger(parameters, "offset");
+        table.getValueSets(offset == null ? 0 : offset, getInteger(parameters, "limit"), select(table, parameters.get("select"))).writeTo(body);
+      } else {
+        return 404;
+      }
+      return 200;
+    }
+
+    private void writeDatasources(OutputStream body) throws IOException {
+      List<Message> messages = new ArrayList<Message>();
+      synchronized(StubOpalServer.this) {
+        for(Map.Entry<String, Map<String, SyntheticTable>> datasource : datasources.entrySet()) {
+          messages.add(DatasourceDto.newBuilder().setName(datasource.getKey()).addAllTable(datasource.getValue().keySet()).build());
+        }
+      }
+      for(Message message : messages) {
+        message.writeDelimitedTo(body);
+      }
+    }
+
+    private void send(byte[] bytes, OutputStream out) throws IOException, InterruptedException {
+      long start = System.currentTimeMillis();
+      for(int offset = 0; offset < bytes.length; offset += CHUNK_SIZE) {
+        int length = Math.min(CHUNK_SIZE, bytes.length - offset);
+        out.write(bytes, offset, length);
+        bytesSent.addAndGet(length);
+        long limit = bandwidth;
+        if(limit > 0) {
+          // wait until the bytes sent so far fit in the bandwidth
+          long due = start + (offset + length) * 1000L / limit;
+          long wait = due - System.currentTimeMillis();
+          if(wait > 0) Thread.sleep(wait);
+        }
+      }
+      out.flush();
+    }
+  }
+
+}
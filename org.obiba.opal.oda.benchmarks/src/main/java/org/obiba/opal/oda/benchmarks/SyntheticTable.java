@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.obiba.opal.web.model.Magma.AttributeDto;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+import org.obiba.opal.web.model.Magma.VariableDto;
+
+/**
+ * Generator of a table of random variables and values. A value only depends on the seed and on its row and column, so
+ * that any range of value sets can be generated without the previous ones.
+ */
+public class SyntheticTable {
+
+  public static final String ENTITY_TYPE = "Participant";
+
+  /**
+   * Value types of the generated variables.
+   */
+  public enum Mix {
+    TEXT("text"), NUMERIC("integer", "decimal"), MIXED("text", "integer", "decimal", "date", "datetime", "boolean");
+
+    private final String[] valueTypes;
+
+    private Mix(String... valueTypes) {
+      this.valueTypes = valueTypes;
+    }
+  }
+
+  private final int rowCount;
+
+  private final long seed;
+
+  private final double nullRatio;
+
+  private final List<VariableDto> variables;
+
+  /**
+   * @param rowCount number of value sets
+   * @param width number of variables
+   * @param mix value types of the variables
+   * @param nullRatio proportion of missing values
+   * @param seed
+   */
+  public SyntheticTable(int rowCount, int width, Mix mix, double nullRatio, long seed) {
+    this.rowCount = rowCount;
+    this.seed = seed;
+    this.nullRatio = nullRatio;
+    List<VariableDto> list = new ArrayList<VariableDto>(width);
+    for(int i = 0; i < width; i++) {
+      String name = "VAR_" + i;
+      list.add(VariableDto.newBuilder().setName(name).setEntityType(ENTITY_TYPE)//
+      .setValueType(mix.valueTypes[i % mix.valueTypes.length]).setIsRepeatable(false).setIndex(i)//
+      .addAttributes(AttributeDto.newBuilder().setName("alias").setValue(name.toLowerCase())).build());
+    }
+    variables = Collections.unmodifiableList(list);
+  }
+
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  public List<VariableDto> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Get the identifier of the entity of a row.
+   * @param row 0-based row index
+   * @return
+   */
+  public String getIdentifier(int row) {
+    return String.format("%08d", row);
+  }
+
+  /**
+   * Get the value of a variable.
+   * @param row 0-based row index
+   * @param variable 0-based variable index
+   * @return null if missing
+   */
+  public String getValue(int row, int variable) {
+    long random = mix(seed ^ ((long) row << 32 | variable));
+    if((random >>> 11) * 0x1.0p-53 < nullRatio) return null;
+
+    int bits = (int) random;
+    String valueType = variables.get(variable).getValueType();
+    if("integer".equals(valueType)) return Integer.toString(bits % 100000);
+    if("decimal".equals(valueType)) return Double.toString((bits % 10000000) / 1000.0);
+    if("boolean".equals(valueType)) return Boolean.toString(bits < 0);
+    if("date".equals(valueType)) return String.format("%04d-%02d-%02d", 1950 + (bits >>> 8) % 60, 1 + (bits >>> 4) % 12, 1 + (bits >>> 16) % 28);
+    if("datetime".equals(valueType)) {
+      return String.format("%04d-%02d-%02dT%02d:%02d:%02d.%03d-0500", 1950 + (bits >>> 8) % 60, 1 + (bits >>> 4) % 12, 1 + (bits >>> 16) % 28, (bits >>> 3) % 24, (bits >>> 5) % 60, (bits >>> 7) % 60, (bits >>> 9) % 1000);
+    }
+    return Long.toString(random & Long.MAX_VALUE, 36);
+  }
+
+  /**
+   * Get a range of value sets.
+   * @param offset 0-based index of the first row
+   * @param limit maximum number of rows, null for all the remaining ones
+   * @param selected 0-based indices of the variables whose values are returned
+   * @return
+   */
+  public ValueSetsDto getValueSets(int offset, Integer limit, int[] selected) {
+    ValueSetsDto.Builder builder = ValueSetsDto.newBuilder();
+    for(int variable : selected) {
+      builder.addVariables(variables.get(variable).getName());
+    }
+    int end = limit == null ? rowCount : (int) Math.min(rowCount, (long) offset + limit);
+    for(int row = offset; row < end; row++) {
+      ValueSetsDto.ValueSetDto.Builder valueSet = ValueSetsDto.ValueSetDto.newBuilder().setIdentifier(getIdentifier(row));
+      for(int variable : selected) {
+        ValueSetsDto.ValueDto.Builder value = ValueSetsDto.ValueDto.newBuilder();
+        String string = getValue(row, variable);
+        if(string != null) value.setValue(string);
+        valueSet.addValues(value);
+      }
+      builder.addValueSets(valueSet);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Get a range of value sets of all the variables.
+   * @param offset
+   * @param limit
+   * @return
+   */
+  public ValueSetsDto getValueSets(int offset, Integer limit) {
+    int[] all = new int[variables.size()];
+    for(int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return getValueSets(offset, limit, all);
+  }
+
+  /**
+   * SplitMix64 finalizer.
+   */
+  private static long mix(long z) {
+    z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+    z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+    return z ^ (z >>> 31);
+  }
+
+}
@@ -0,0 +1,104 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.oda.benchmarks.SyntheticTable;
+import org.obiba.opal.web.model.Magma.VariableDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of the column lookups done by report engines for each row or each column of a result set. One operation
+ * is one call on a column, chosen in turn among all the columns.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaDataBenchmark {
+
+  @Param({ "10", "100", "1000", "5000" })
+  private int width;
+
+  @Param({ "MIXED" })
+  private SyntheticTable.Mix mix;
+
+  private List<VariableDto> variables;
+
+  private ResultSetMetaData metaData;
+
+  private String[] columnNames;
+
+  private int column;
+
+  @Setup(Level.Trial)
+  public void setUp() throws OdaException {
+    SyntheticTable table = new SyntheticTable(0, width, mix, 0, 1);
+    variables = table.getVariables();
+    metaData = new ResultSetMetaData(variables);
+    columnNames = new String[metaData.getColumnCount() + 1];
+    for(int i = 1; i < columnNames.length; i++) {
+      columnNames[i] = metaData.getColumnName(i);
+    }
+  }
+
+  @Benchmark
+  public int findColumn() throws OdaException {
+    return metaData.findColumn(columnNames[nextColumn()]);
+  }
+
+  @Benchmark
+  public int getColumnType() throws OdaException {
+    return metaData.getColumnType(nextColumn());
+  }
+
+  @Benchmark
+  public String getColumnLabel() throws OdaException {
+    return metaData.getColumnLabel(nextColumn());
+  }
+
+  /**
+   * Building the metadata of a query and looking all its columns up once, as done for each executed query.
+   */
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void describe(Blackhole blackhole) throws OdaException {
+    ResultSetMetaData described = new ResultSetMetaData(variables);
+    for(int i = 1; i < columnNames.length; i++) {
+      blackhole.consume(described.getColumnType(i));
+      blackhole.consume(described.getColumnLabel(i));
+      blackhole.consume(described.findColumn(columnNames[i]));
+    }
+  }
+
+  private int nextColumn() {
+    if(++column >= columnNames.length) column = 1;
+    return column;
+  }
+
+}
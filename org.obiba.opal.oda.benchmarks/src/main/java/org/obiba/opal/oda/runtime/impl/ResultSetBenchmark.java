@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.oda.benchmarks.SyntheticTable;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+import org.obiba.opal.web.model.Magma.VariableDto;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of reading all the columns of a result set, page decoding included. One operation is one row, so the
+ * score is in rows per second and the normalized allocation rate of the GC profiler is in bytes per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(ResultSetBenchmark.ROWS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultSetBenchmark {
+
+  static final int ROWS = 1000;
+
+  private static final int PAGE_SIZE = 100;
+
+  @Param({ "10", "100", "1000", "5000" })
+  private int width;
+
+  @Param({ "TEXT", "NUMERIC", "MIXED" })
+  private SyntheticTable.Mix mix;
+
+  @Param({ "false", "true" })
+  private boolean columnar;
+
+  private Query query;
+
+  private ValueSetsDto[] pages;
+
+  private int[] columnTypes;
+
+  @Setup
+  public void setUp() throws OdaException {
+    SyntheticTable table = new SyntheticTable(ROWS, width, mix, 0.05, 1);
+    query = new FixtureQuery(table.getVariables());
+    query.setProperty(Query.COLUMNAR, Boolean.toString(columnar));
+
+    pages = new ValueSetsDto[ROWS / PAGE_SIZE];
+    for(int i = 0; i < pages.length; i++) {
+      pages[i] = table.getValueSets(i * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    IResultSetMetaData metaData = query.getMetaData();
+    columnTypes = new int[metaData.getColumnCount() + 1];
+    for(int i = 1; i < columnTypes.length; i++) {
+      columnTypes[i] = metaData.getColumnType(i);
+    }
+  }
+
+  /**
+   * Read every value of every row with the getter of its column type.
+   */
+  @Benchmark
+  public void scan(Blackhole blackhole) throws OdaException {
+    ResultSet resultSet = newResultSet();
+    while(resultSet.next()) {
+      for(int i = 1; i < columnTypes.length; i++) {
+        switch(columnTypes[i]) {
+        case java.sql.Types.INTEGER:
+          blackhole.consume(resultSet.getInt(i));
+          break;
+        case java.sql.Types.DECIMAL:
+          blackhole.consume(resultSet.getDouble(i));
+          break;
+        case java.sql.Types.BOOLEAN:
+          blackhole.consume(resultSet.getBoolean(i));
+          break;
+        case java.sql.Types.DATE:
+          blackhole.consume(resultSet.getDate(i));
+          break;
+        case java.sql.Types.TIMESTAMP:
+          blackhole.consume(resultSet.getTimestamp(i));
+          break;
+        default:
+          blackhole.consume(resultSet.getString(i));
+        }
+      }
+    }
+    resultSet.close();
+  }
+
+  /**
+   * Read every value of every row as a string.
+   */
+  @Benchmark
+  public void scanStrings(Blackhole blackhole) throws OdaException {
+    ResultSet resultSet = newResultSet();
+    while(resultSet.next()) {
+      for(int i = 1; i < columnTypes.length; i++) {
+        blackhole.consume(resultSet.getString(i));
+      }
+    }
+    resultSet.close();
+  }
+
+  /**
+   * Move the cursor only, the page decoding cost of a row.
+   */
+  @Benchmark
+  public void next(Blackhole blackhole) throws OdaException {
+    ResultSet resultSet = newResultSet();
+    while(resultSet.next()) {
+      blackhole.consume(resultSet.getRow());
+    }
+    resultSet.close();
+  }
+
+  private ResultSet newResultSet() throws OdaException {
+    final PageFactory pageFactory = new PageFactory((ResultSetMetaData) query.getMetaData(), query.isColumnar());
+    return new ResultSet(query, new PageSource() {
+
+      private int next;
+
+      public ValueSetPage nextPage() throws OdaException {
+        return next < pages.length ? pageFactory.newPage(pages[next++]) : null;
+      }
+
+      public void close() {
+      }
+
+      public void cancel() {
+      }
+    });
+  }
+
+  /**
+   * Query of the synthetic table variables, without connection to Opal.
+   */
+  static class FixtureQuery extends Query {
+
+    private final List<VariableDto> variables;
+
+    FixtureQuery(List<VariableDto> variables) {
+      super(new Connection());
+      this.variables = variables;
+    }
+
+    @Override
+    public IResultSetMetaData getMetaData() throws OdaException {
+      return new ResultSetMetaData(variables);
+    }
+
+    @Override
+    List<VariableDto> getVariables() throws OdaException {
+      return variables;
+    }
+  }
+
+}
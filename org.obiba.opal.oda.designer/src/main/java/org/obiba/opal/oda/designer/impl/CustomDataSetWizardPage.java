@@ -10,7 +10,6 @@
 
 package org.obiba.opal.oda.designer.impl;
 
-import java.net.URI;
 import java.util.List;
 import java.util.Properties;
 import java.util.logging.Logger;
@@ -198,8 +197,7 @@ public class CustomDataSetWizardPage extends DataSetWizardPage {
 
   private void populateDatasourceCombo() {
     try {
-      URI uri = getConnection().getOpal().newUri().segment("datasources").build();
-      datasources = getConnection().getOpal().getResources(DatasourceDto.class, uri, DatasourceDto.newBuilder());
+      datasources = getConnection().getDatasources();
 
       for(int i = 0; i < datasources.size(); i++) {
         DatasourceDto datasource = datasources.get(i);
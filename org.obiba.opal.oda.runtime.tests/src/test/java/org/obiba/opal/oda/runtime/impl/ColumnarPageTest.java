@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ColumnarPageTest {
+
+  private PageFactory columnar;
+
+  private PageFactory rows;
+
+  @Before
+  public void setUp() throws OdaException {
+    ResultSetMetaData metaData = (ResultSetMetaData) new FixtureQuery("SITE", "text", "AGE", "integer", "BMI", "decimal").getMetaData();
+    columnar = new PageFactory(metaData, true);
+    rows = new PageFactory(metaData, false);
+  }
+
+  @Test
+  public void testSameValuesAsRowPages() {
+    String[][] values = { { null, "1", "A", "007", "1.50" }, { null, "2", null, "-12", "2" }, { null, "3", "A", null, null }, { null, "4", "B", "+3", "0.1" }, { null, "5", "A", "0", "-0.0" } };
+    ValueSetPage expected = rows.newPage(values);
+    ValueSetPage page = columnar.newPage(values);
+    assertEquals(expected.size(), page.size());
+    for(int row = 0; row < page.size(); row++) {
+      for(int column = 1; column <= 4; column++) {
+        assertEquals(expected.isNull(row, column), page.isNull(row, column));
+        // the received text, not the one of the parsed value
+        assertEquals(expected.getString(row, column), page.getString(row, column));
+        if(column > 2 && !page.isNull(row, column)) {
+          assertEquals(expected.getInt(row, column), page.getInt(row, column));
+          assertEquals(expected.getDouble(row, column), page.getDouble(row, column), 0);
+          assertEquals(expected.getBigDecimal(row, column), page.getBigDecimal(row, column));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void testNumbers() {
+    ValueSetPage page = columnar.newPage(new String[][] { { null, "1", "A", "42", "1.25" } });
+    assertEquals(42, page.getInt(0, 3));
+    assertEquals(42.0, page.getDouble(0, 3), 0);
+    assertEquals(new BigDecimal("42"), page.getBigDecimal(0, 3));
+    assertEquals(1, page.getInt(0, 4));
+    assertEquals(new BigDecimal("1.25"), page.getBigDecimal(0, 4));
+  }
+
+  @Test
+  public void testIntegerOutOfIntRange() {
+    ValueSetPage page = columnar.newPage(new String[][] { { null, "1", "A", "3000000000", null } });
+    assertEquals("3000000000", page.getString(0, 3));
+    assertEquals(3e9, page.getDouble(0, 3), 0);
+    try {
+      page.getInt(0, 3);
+      fail("Converted a value beyond the int range");
+    } catch(NumberFormatException e) {
+      // as the integer decoder of the row pages
+    }
+  }
+
+  @Test
+  public void testUnparsedNumbers() {
+    ValueSetPage page = columnar.newPage(new String[][] { { null, "1", "A", "12.0", "n/a" }, { null, "2", "A", "7", null } });
+    assertEquals("12.0", page.getString(0, 3));
+    assertEquals(12.0, page.getDouble(0, 3), 0);
+    assertEquals(7, page.getInt(1, 3));
+    assertEquals("n/a", page.getString(0, 4));
+    assertTrue(page.isNull(1, 4));
+    assertNull(page.getString(1, 4));
+  }
+
+  @Test
+  public void testManyRows() {
+    String[][] values = new String[130][];
+    for(int row = 0; row < values.length; row++) {
+      values[row] = new String[] { null, Integer.toString(row), row % 2 == 0 ? "A" : "B", row % 64 == 63 ? null : Integer.toString(row), null };
+    }
+    ValueSetPage page = columnar.newPage(values);
+    for(int row = 0; row < values.length; row++) {
+      assertEquals(row % 64 == 63, page.isNull(row, 3));
+      assertFalse(page.isNull(row, 2));
+      assertEquals(values[row][2], page.getString(row, 2));
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+import org.junit.Test;
+
+public class DateTimeParserTest {
+
+  private static final TimeZone MONTREAL = TimeZone.getTimeZone("America/Montreal");
+
+  private final DateTimeParser parser = new DateTimeParser(MONTREAL);
+
+  @Test
+  public void testZoneDesignators() throws ParseException {
+    long expected = simpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ").parse("2011-05-31T14:22:05.123-0400").getTime();
+    assertEquals(expected, parser.parseTimestamp("2011-05-31T14:22:05.123-0400").getTime());
+    assertEquals(expected, parser.parseTimestamp("2011-05-31T14:22:05.123-04:00").getTime());
+    assertEquals(expected, parser.parseTimestamp("2011-05-31T14:22:05.123-04").getTime());
+    assertEquals(expected, parser.parseTimestamp("2011-05-31T18:22:05.123Z").getTime());
+    assertEquals(expected, parser.parseTimestamp("2011-06-01T00:07:05.123+05:45").getTime());
+  }
+
+  @Test
+  public void testAgainstSimpleDateFormat() throws ParseException {
+    SimpleDateFormat format = simpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    String[] values = { "1970-01-01T00:00:00.000+0000", "1969-12-31T23:59:59.999+0000", "2000-02-29T12:00:00.000+0100", "2012-12-31T23:59:59.500-1100", "1900-03-01T08:30:00.001+0000", "1600-02-29T00:00:00.000+0000", "2100-03-01T00:00:00.000+0000" };
+    for(String value : values) {
+      assertEquals(value, format.parse(value).getTime(), parser.parseTimestamp(value).getTime());
+    }
+  }
+
+  @Test
+  public void testLocalTimeZone() throws ParseException {
+    SimpleDateFormat format = simpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    // standard time, daylight saving time and both sides of the transitions
+    String[] values = { "2011-01-15T10:00:00", "2011-07-15T10:00:00", "2011-03-13T01:59:59", "2011-03-13T03:00:00", "2011-11-06T00:59:59", "2011-11-06T02:00:00" };
+    for(String value : values) {
+      assertEquals(value, format.parse(value).getTime(), parser.parseTimestamp(value).getTime());
+    }
+  }
+
+  @Test
+  public void testFractionOfSeconds() throws ParseException {
+    assertEquals(0, parser.parseTimestamp("2011-05-31T14:22:05Z").getNanos());
+    assertEquals(100000000, parser.parseTimestamp("2011-05-31T14:22:05.1Z").getNanos());
+    assertEquals(123456789, parser.parseTimestamp("2011-05-31T14:22:05.123456789Z").getNanos());
+    // digits beyond nanoseconds are ignored
+    Timestamp timestamp = parser.parseTimestamp("2011-05-31T14:22:05.1234567891Z");
+    assertEquals(123456789, timestamp.getNanos());
+    assertEquals(parser.parseTimestamp("2011-05-31T14:22:05.123Z").getTime(), timestamp.getTime());
+  }
+
+  @Test
+  @SuppressWarnings("deprecation")
+  public void testParseTime() throws ParseException {
+    assertEquals(new Time(14, 22, 5), parser.parseTime("14:22:05"));
+    assertEquals(parser.parseTimestamp("2011-05-31T14:22:05-0400").getTime(), parser.parseTime("2011-05-31T14:22:05-0400").getTime());
+  }
+
+  @Test
+  public void testInvalidValues() {
+    String[] values = { "", "2011-05-31", "2011-05-31 14:22:05", "2011-13-31T14:22:05", "2011-05-31T24:22:05", "2011-05-31T14:22:05.", "2011-05-31T14:22:05.123+4", "2011-05-31T14:22:05Z0", "2011-05-31T14:22:05+04-00", "2011-O5-31T14:22:05" };
+    for(String value : values) {
+      try {
+        parser.parseTimestamp(value);
+        fail("Parsed " + value);
+      } catch(ParseException e) {
+        // expected
+      }
+    }
+    try {
+      parser.parseTime("25:00:00");
+      fail("Parsed 25:00:00");
+    } catch(ParseException e) {
+      // expected
+    }
+  }
+
+  private static SimpleDateFormat simpleDateFormat(String pattern) {
+    SimpleDateFormat format = new SimpleDateFormat(pattern);
+    format.setTimeZone(MONTREAL);
+    format.setLenient(false);
+    return format;
+  }
+
+}
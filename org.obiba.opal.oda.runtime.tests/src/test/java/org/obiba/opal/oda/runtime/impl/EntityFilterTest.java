@@ -0,0 +1,216 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.eclipse.datatools.connectivity.oda.spec.ExpressionArguments;
+import org.eclipse.datatools.connectivity.oda.spec.ExpressionVariable;
+import org.eclipse.datatools.connectivity.oda.spec.result.FilterExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.AndExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.CustomExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.NotExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.OrExpression;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("restriction")
+public class EntityFilterTest {
+
+  private ResultSetMetaData metaData;
+
+  private ValueSetPage page;
+
+  @Before
+  public void setUp() throws OdaException {
+    metaData = (ResultSetMetaData) new FixtureQuery("SITE", "text", "AGE", "integer", "BMI", "decimal").getMetaData();
+    page = new PageFactory(metaData, false).newPage(new String[][] { { null, "1", "A", "9", "21.5" }, { null, "2", "B", "10", null }, { null, "3", "A", null, "30" } });
+  }
+
+  @Test
+  public void testComparisonScripts() throws OdaException {
+    assertEquals("$('SITE').eq('A')", parse(filter("Equal", "SITE", "A")).toScript());
+    assertEquals("$('SITE').eq('A').not()", parse(filter("NotEqual", "SITE", "A")).toScript());
+    assertEquals("$('AGE').lt(10)", parse(filter("LessThan", "AGE", "10")).toScript());
+    assertEquals("$('AGE').le(10)", parse(filter("LessThanOrEqual", "AGE", 10)).toScript());
+    assertEquals("$('BMI').gt(25)", parse(filter("GreaterThan", "BMI", 25.0)).toScript());
+    assertEquals("$('BMI').ge(18.5)", parse(filter("GreaterThanOrEqual", "BMI", "18.50")).toScript());
+    assertEquals("$id().eq('1')", parse(filter("Equal", "Participant ID", "1")).toScript());
+  }
+
+  @Test
+  public void testNumberLiterals() throws OdaException {
+    // not read as an octal number by the script engine
+    assertEquals("$('AGE').eq(10)", parse(filter("Equal", "AGE", "010")).toScript());
+    assertEquals("$('BMI').eq(0.00001)", parse(filter("Equal", "BMI", "1e-5")).toScript());
+    assertEquals("$('AGE').eq(-3)", parse(filter("Equal", "AGE", "-3.0")).toScript());
+    // not a number, compared as text
+    assertEquals("$('AGE').eq('ten')", parse(filter("Equal", "AGE", "ten")).toScript());
+    assertEquals("$('AGE').eq('Infinity')", parse(filter("Equal", "AGE", "Infinity")).toScript());
+  }
+
+  @Test
+  public void testQuotedValues() throws OdaException {
+    assertEquals("$('SITE').eq('O\\'Brien\\\\\\n')", parse(filter("Equal", "SITE", "O'Brien\\\n")).toScript());
+  }
+
+  @Test
+  public void testCompositeScripts() throws OdaException {
+    assertEquals("$('SITE').eq('A').or($('SITE').eq('B'))", parse(filter("In", "SITE", "A", "B")).toScript());
+    assertEquals("$('SITE').isNull()", parse(filter("IsNull", "SITE")).toScript());
+
+    AndExpression and = new AndExpression();
+    and.add(filter("Equal", "SITE", "A"));
+    and.add(new NotExpression(filter("IsNull", "AGE")));
+    OrExpression or = new OrExpression();
+    or.add(and);
+    or.add(filter("GreaterThan", "BMI", "30"));
+    assertEquals("$('SITE').eq('A').and($('AGE').isNull().not()).or($('BMI').gt(30))", parse(or).toScript());
+  }
+
+  @Test
+  public void testVariables() throws OdaException {
+    AndExpression and = new AndExpression();
+    and.add(filter("Equal", "Participant ID", "1"));
+    and.add(filter("Equal", "SITE", "A"));
+    and.add(filter("IsNull", "AGE"));
+    Set<String> variables = new HashSet<String>();
+    parse(and).addVariables(variables);
+    assertEquals(new HashSet<String>(Arrays.asList("SITE", "AGE")), variables);
+  }
+
+  @Test
+  public void testUnsupportedFilters() throws OdaException {
+    assertUnsupported(filter("Equal", "HEIGHT", "1"));
+    assertUnsupported(filter("Like", "SITE", "A%"));
+    assertUnsupported(filter("Equal", "SITE", "A", "B"));
+    assertUnsupported(filter("In", "SITE"));
+  }
+
+  @Test
+  public void testNumericComparison() throws OdaException {
+    EntityFilter filter = parse(filter("LessThan", "AGE", "10"));
+    // 9 < 10 as numbers, not as strings
+    assertTrue(filter.accept(page, 0));
+    assertFalse(filter.accept(page, 1));
+    assertTrue(parse(filter("Equal", "BMI", "21.50")).accept(page, 0));
+  }
+
+  @Test
+  public void testNullValues() throws OdaException {
+    EntityFilter ge = parse(filter("GreaterThanOrEqual", "AGE", "10"));
+    assertNull(ge.evaluate(page, 2));
+    assertFalse(ge.accept(page, 2));
+
+    // the negation of an unknown comparison is unknown as well
+    EntityFilter notGe = parse(new NotExpression(filter("GreaterThanOrEqual", "AGE", "10")));
+    assertNull(notGe.evaluate(page, 2));
+    assertFalse(notGe.accept(page, 2));
+    assertTrue(notGe.accept(page, 0));
+
+    EntityFilter ne = parse(filter("NotEqual", "AGE", "10"));
+    assertFalse(ne.accept(page, 2));
+
+    assertTrue(parse(filter("IsNull", "AGE")).accept(page, 2));
+    assertFalse(parse(new NotExpression(filter("IsNull", "AGE"))).accept(page, 2));
+  }
+
+  @Test
+  public void testThreeValuedComposites() throws OdaException {
+    OrExpression or = new OrExpression();
+    or.add(filter("GreaterThanOrEqual", "AGE", "10"));
+    or.add(filter("Equal", "SITE", "A"));
+    // unknown or true
+    assertEquals(Boolean.TRUE, parse(or).evaluate(page, 2));
+
+    AndExpression and = new AndExpression();
+    and.add(filter("GreaterThanOrEqual", "AGE", "10"));
+    and.add(filter("Equal", "SITE", "B"));
+    // unknown and false
+    assertEquals(Boolean.FALSE, parse(and).evaluate(page, 2));
+
+    AndExpression unknown = new AndExpression();
+    unknown.add(filter("GreaterThanOrEqual", "AGE", "10"));
+    unknown.add(filter("Equal", "SITE", "A"));
+    // unknown and true
+    assertNull(parse(unknown).evaluate(page, 2));
+  }
+
+  @Test
+  public void testFilteredPages() throws OdaException {
+    PageFactory pageFactory = new PageFactory(metaData, true);
+    final ValueSetPage source = page;
+    PageSource pages = new FilteredPages(new PageSource() {
+      private boolean read;
+
+      public ValueSetPage nextPage() {
+        if(read) return null;
+        read = true;
+        return source;
+      }
+
+      public void close() {
+        // nothing to release
+      }
+
+      public void cancel() {
+        // nothing to stop
+      }
+    }, parse(filter("Equal", "SITE", "A")), pageFactory);
+
+    ValueSetPage filtered = pages.nextPage();
+    assertEquals(2, filtered.size());
+    assertEquals("1", filtered.getString(0, 1));
+    assertEquals("3", filtered.getString(1, 1));
+    assertTrue(filtered.isNull(1, 3));
+    assertNull(pages.nextPage());
+  }
+
+  private EntityFilter parse(FilterExpression expression) throws OdaException {
+    return EntityFilter.parse(expression, metaData);
+  }
+
+  private void assertUnsupported(FilterExpression expression) throws OdaException {
+    try {
+      parse(expression);
+      fail("Parsed " + expression);
+    } catch(UnsupportedOperationException e) {
+      // expected
+    }
+  }
+
+  private static FilterExpression filter(String id, String column, Object... values) {
+    ExpressionArguments arguments = new ExpressionArguments();
+    for(Object value : values) {
+      arguments.addValue(value);
+    }
+    return new Filter(id, column, arguments);
+  }
+
+  /**
+   * Filter expression declared by the plugin manifest.
+   */
+  private static class Filter extends CustomExpression {
+
+    private Filter(String id, String column, ExpressionArguments arguments) {
+      super("org.obiba.opal.oda.runtime", id, new ExpressionVariable(column), arguments);
+    }
+  }
+
+}
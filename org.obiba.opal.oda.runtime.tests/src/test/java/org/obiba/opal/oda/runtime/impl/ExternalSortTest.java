@@ -0,0 +1,185 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExternalSortTest {
+
+  private static final long IN_MEMORY = ExternalSort.DEFAULT_MEMORY;
+
+  private PageFactory pageFactory;
+
+  @Before
+  public void setUp() throws OdaException {
+    ResultSetMetaData metaData = (ResultSetMetaData) new FixtureQuery("SITE", "text", "AGE", "integer", "BMI", "decimal").getMetaData();
+    pageFactory = new PageFactory(metaData, false);
+  }
+
+  @Test
+  public void testNumericOrder() throws OdaException {
+    List<String[]> rows = rows(row("1", "A", "10", "2.5"), row("2", "A", null, "10"), row("3", "A", "9", "-1"), row("4", "A", "ten", "1e1"), row("5", "A", "-2", null));
+    // nulls first, then the numbers, then the values that are not numbers
+    assertIdentifiers(sort(rows, new int[] { 3 }, new boolean[] { false }, IN_MEMORY), "2", "5", "3", "1", "4");
+    assertIdentifiers(sort(rows, new int[] { 3 }, new boolean[] { true }, IN_MEMORY), "4", "1", "3", "5", "2");
+    // 1e1 and 10 are equal, in row order
+    assertIdentifiers(sort(rows, new int[] { 4 }, new boolean[] { false }, IN_MEMORY), "5", "3", "1", "2", "4");
+  }
+
+  @Test
+  public void testTextOrder() throws OdaException {
+    List<String[]> rows = rows(row("1", "b", null, null), row("2", "B", null, null), row("3", null, null, null), row("4", "a", null, null));
+    assertIdentifiers(sort(rows, new int[] { 2 }, new boolean[] { false }, IN_MEMORY), "3", "2", "4", "1");
+  }
+
+  @Test
+  public void testSeveralKeys() throws OdaException {
+    List<String[]> rows = rows(row("1", "B", "30", null), row("2", "A", "20", null), row("3", "B", "40", null), row("4", "A", "20", null), row("5", "A", "25", null));
+    assertIdentifiers(sort(rows, new int[] { 2, 3 }, new boolean[] { false, true }, IN_MEMORY), "5", "2", "4", "3", "1");
+  }
+
+  @Test
+  public void testSpilledRuns() throws OdaException {
+    List<String[]> rows = randomRows(500);
+    int[] keyColumns = { 2, 3 };
+    boolean[] descending = { false, true };
+    List<String[]> inMemory = sort(rows, keyColumns, descending, IN_MEMORY);
+    // a few rows per run
+    assertSameRows(inMemory, sort(rows, keyColumns, descending, 2000));
+    // one row per run, more runs than merged at once
+    assertSameRows(inMemory, sort(rows, keyColumns, descending, 1));
+  }
+
+  @Test
+  public void testRunFilesDeleted() throws OdaException {
+    File tmpDirectory = new File(System.getProperty("java.io.tmpdir"));
+    int runFiles = countRunFiles(tmpDirectory);
+    ExternalSort sort = new ExternalSort(new RowPages(randomRows(100), 10), pageFactory, new int[] { 3 }, new boolean[] { false }, 1);
+    assertEquals(100, sort.nextPage().size());
+    sort.close();
+    assertEquals(runFiles, countRunFiles(tmpDirectory));
+  }
+
+  @Test
+  public void testEmptySource() throws OdaException {
+    ExternalSort sort = new ExternalSort(new RowPages(new ArrayList<String[]>(), 10), pageFactory, new int[] { 2 }, new boolean[] { false }, 1);
+    assertNull(sort.nextPage());
+    sort.close();
+  }
+
+  private List<String[]> sort(List<String[]> rows, int[] keyColumns, boolean[] descending, long memoryLimit) throws OdaException {
+    ExternalSort sort = new ExternalSort(new RowPages(rows, 7), pageFactory, keyColumns, descending, memoryLimit);
+    try {
+      List<String[]> sorted = new ArrayList<String[]>();
+      ValueSetPage page;
+      while((page = sort.nextPage()) != null) {
+        for(int row = 0; row < page.size(); row++) {
+          String[] values = new String[5];
+          for(int column = 1; column < values.length; column++) {
+            values[column] = page.isNull(row, column) ? null : page.getString(row, column);
+          }
+          sorted.add(values);
+        }
+      }
+      return sorted;
+    } finally {
+      sort.close();
+    }
+  }
+
+  private static List<String[]> randomRows(int count) {
+    Random random = new Random(42);
+    List<String[]> rows = new ArrayList<String[]>();
+    for(int i = 0; i < count; i++) {
+      String site = random.nextInt(10) == 0 ? null : "S" + random.nextInt(5);
+      String age = random.nextInt(10) == 0 ? null : Integer.toString(random.nextInt(20) - 5);
+      rows.add(row(Integer.toString(i), site, age, Double.toString(random.nextDouble())));
+    }
+    return rows;
+  }
+
+  private static String[] row(String identifier, String site, String age, String bmi) {
+    return new String[] { null, identifier, site, age, bmi };
+  }
+
+  private static List<String[]> rows(String[]... rows) {
+    return Arrays.asList(rows);
+  }
+
+  private static void assertIdentifiers(List<String[]> rows, String... identifiers) {
+    String[] actual = new String[rows.size()];
+    for(int i = 0; i < actual.length; i++) {
+      actual[i] = rows.get(i)[1];
+    }
+    assertArrayEquals(identifiers, actual);
+  }
+
+  private static void assertSameRows(List<String[]> expected, List<String[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  private static int countRunFiles(File directory) {
+    String[] files = directory.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith("opal-oda-sort");
+      }
+    });
+    return files == null ? 0 : files.length;
+  }
+
+  /**
+   * Pages of rows, of a given number of rows.
+   */
+  private class RowPages implements PageSource {
+
+    private final List<String[]> rows;
+
+    private final int pageSize;
+
+    private int offset;
+
+    private RowPages(List<String[]> rows, int pageSize) {
+      this.rows = rows;
+      this.pageSize = pageSize;
+    }
+
+    public ValueSetPage nextPage() {
+      if(offset >= rows.size()) return null;
+      List<String[]> page = rows.subList(offset, Math.min(offset + pageSize, rows.size()));
+      offset += page.size();
+      return pageFactory.newPage(page.toArray(new String[page.size()][]));
+    }
+
+    public void close() {
+      offset = rows.size();
+    }
+
+    public void cancel() {
+      offset = rows.size();
+    }
+  }
+
+}
@@ -0,0 +1,154 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+import org.obiba.opal.web.model.Magma.VariableDto;
+
+/**
+ * Query of a table held in memory: its value sets are served as Opal would, without connecting to Opal.
+ */
+class FixtureQuery extends Query {
+
+  private final List<VariableDto> variables;
+
+  private final List<String[]> rows = new ArrayList<String[]>();
+
+  private String fingerprint = "1";
+
+  private int requestCount;
+
+  /**
+   * @param variables the variables of the table, as pairs of name and value type
+   */
+  FixtureQuery(String... variables) {
+    super(new Connection());
+    this.variables = new ArrayList<VariableDto>();
+    for(int i = 0; i < variables.length; i += 2) {
+      this.variables.add(variable(variables[i], variables[i + 1]));
+    }
+  }
+
+  static VariableDto variable(String name, String valueType) {
+    return VariableDto.newBuilder().setName(name).setEntityType("Participant").setValueType(valueType).setIsRepeatable(false).build();
+  }
+
+  /**
+   * Add a row to the table.
+   * @param row the entity identifier followed by the value of each variable, in order
+   * @return this query
+   */
+  FixtureQuery addRow(String... row) {
+    rows.add(row);
+    return this;
+  }
+
+  /**
+   * Change the version of the table, as when it is updated in Opal.
+   * @param fingerprint
+   */
+  void setFingerprint(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  /**
+   * Get the number of value sets requests received so far.
+   * @return
+   */
+  synchronized int getRequestCount() {
+    return requestCount;
+  }
+
+  /**
+   * Read the rows of pages of this table.
+   * @param pages
+   * @return the values of each row, indexed by 1-based column
+   * @throws OdaException
+   */
+  List<String[]> read(PageSource pages) throws OdaException {
+    int columnCount = variables.size() + 1;
+    List<String[]> read = new ArrayList<String[]>();
+    ValueSetPage page;
+    while((page = pages.nextPage()) != null) {
+      for(int row = 0; row < page.size(); row++) {
+        String[] values = new String[columnCount + 1];
+        for(int column = 1; column <= columnCount; column++) {
+          values[column] = page.isNull(row, column) ? null : page.getString(row, column);
+        }
+        read.add(values);
+      }
+    }
+    return read;
+  }
+
+  /**
+   * Get the rows of this table, as read from its pages.
+   * @return the values of each row, indexed by 1-based column
+   */
+  List<String[]> getRows() {
+    List<String[]> expected = new ArrayList<String[]>();
+    for(String[] row : rows) {
+      String[] values = new String[row.length + 1];
+      System.arraycopy(row, 0, values, 1, row.length);
+      expected.add(values);
+    }
+    return expected;
+  }
+
+  @Override
+  public IResultSetMetaData getMetaData() throws OdaException {
+    return new ResultSetMetaData(getDataSetType(), variables);
+  }
+
+  @Override
+  List<VariableDto> getVariables() throws OdaException {
+    return variables;
+  }
+
+  @Override
+  String getTableFingerprint() throws OdaException {
+    return fingerprint;
+  }
+
+  @Override
+  synchronized ValueSetsDto getValueSets(String select, String where, Integer offset, Integer limit) throws OdaException {
+    requestCount++;
+    ValueSetsDto.Builder valueSets = ValueSetsDto.newBuilder();
+    for(VariableDto variable : variables) {
+      valueSets.addVariables(variable.getName());
+    }
+    int from = offset == null ? 0 : Math.min(offset, rows.size());
+    int to = limit == null ? rows.size() : Math.min(from + limit, rows.size());
+    for(String[] row : rows.subList(from, to)) {
+      ValueSetsDto.ValueSetDto.Builder valueSet = ValueSetsDto.ValueSetDto.newBuilder().setIdentifier(row[0]);
+      for(String value : Arrays.asList(row).subList(1, row.length)) {
+        ValueSetsDto.ValueDto.Builder dto = ValueSetsDto.ValueDto.newBuilder();
+        if(value != null) dto.setValue(value);
+        valueSet.addValues(dto);
+      }
+      valueSets.addValueSets(valueSet);
+    }
+    return valueSets.build();
+  }
+
+  @Override
+  ValueSetStream openValueSets(Integer offset, Integer limit) throws OdaException {
+    byte[] bytes = getValueSets(getSelectScript(), getEntitiesScript(), offset, limit).toByteArray();
+    return new ValueSetStream(this, new ByteArrayInputStream(bytes));
+  }
+
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashJoinTest {
+
+  private static final long IN_MEMORY = HashJoin.DEFAULT_MEMORY;
+
+  private FixtureQuery joined;
+
+  private PageFactory pageFactory;
+
+  @Before
+  public void setUp() throws OdaException {
+    joined = new FixtureQuery("SITE", "text", "AGE", "integer", "WEIGHT", "decimal");
+    pageFactory = new PageFactory((ResultSetMetaData) joined.getMetaData(), false);
+  }
+
+  @Test
+  public void testInnerJoin() throws OdaException {
+    FixtureQuery left = left().addRow("1", "A", "30").addRow("2", "B", null).addRow("3", "A", "40").addRow("4", "B", "50");
+    FixtureQuery right = right().addRow("3", "80.5").addRow("1", "70").addRow("3", "81").addRow("5", "60");
+    List<String[]> rows = join(left, right, false, IN_MEMORY);
+    // in the order of the left rows, one row per match
+    assertEquals(3, rows.size());
+    assertArrayEquals(row("1", "A", "30", "70"), rows.get(0));
+    assertArrayEquals(row("3", "A", "40", "80.5"), rows.get(1));
+    assertArrayEquals(row("3", "A", "40", "81"), rows.get(2));
+  }
+
+  @Test
+  public void testLeftJoin() throws OdaException {
+    FixtureQuery left = left().addRow("1", "A", "30").addRow("2", "B", null);
+    FixtureQuery right = right().addRow("2", null).addRow("5", "60");
+    List<String[]> rows = join(left, right, true, IN_MEMORY);
+    assertEquals(2, rows.size());
+    assertArrayEquals(row("1", "A", "30", null), rows.get(0));
+    assertArrayEquals(row("2", "B", null, null), rows.get(1));
+  }
+
+  @Test
+  public void testPartitionedJoin() throws OdaException {
+    Random random = new Random(42);
+    FixtureQuery left = left();
+    FixtureQuery right = right();
+    for(int i = 0; i < 2000; i++) {
+      left.addRow("E" + i, "S" + random.nextInt(5), Integer.toString(random.nextInt(100)));
+      // some entities have several right rows, some none
+      for(int j = random.nextInt(3); j > 0; j--) {
+        right.addRow("E" + i, Integer.toString(random.nextInt(1000)));
+      }
+    }
+    for(boolean outer : new boolean[] { false, true }) {
+      List<String[]> expected = sorted(join(left, right, outer, IN_MEMORY));
+      // partitioned once
+      assertSameRows(expected, sorted(join(left, right, outer, 100000)));
+      // partitions that do not fit in memory either are partitioned again
+      assertSameRows(expected, sorted(join(left, right, outer, 4000)));
+    }
+  }
+
+  @Test
+  public void testEntityLargerThanMemory() throws OdaException {
+    FixtureQuery left = left().addRow("1", "A", "30").addRow("2", "B", "40");
+    FixtureQuery right = right();
+    for(int i = 0; i < 100; i++) {
+      right.addRow("1", Integer.toString(i));
+    }
+    right.addRow("2", "50");
+    // the rows of an entity cannot be split, they are hashed once partitioned at every level
+    List<String[]> rows = sorted(join(left, right, false, 1000));
+    assertEquals(101, rows.size());
+    assertSameRows(sorted(join(left, right, false, IN_MEMORY)), rows);
+  }
+
+  @Test
+  public void testPartitionFilesDeleted() throws OdaException {
+    File tmpDirectory = new File(System.getProperty("java.io.tmpdir"));
+    int partitionFiles = countPartitionFiles(tmpDirectory);
+    FixtureQuery left = left();
+    FixtureQuery right = right();
+    for(int i = 0; i < 2000; i++) {
+      left.addRow("E" + i, "A", "1");
+      right.addRow("E" + i, "2");
+    }
+    HashJoin join = new HashJoin(left, right, pageFactory, false, 1000);
+    // closed before all the partitions were read
+    assertEquals(1000, join.nextPage().size());
+    join.close();
+    assertEquals(partitionFiles, countPartitionFiles(tmpDirectory));
+  }
+
+  @Test
+  public void testEmptyRight() throws OdaException {
+    FixtureQuery left = left().addRow("1", "A", "30");
+    assertEquals(0, join(left, right(), false, IN_MEMORY).size());
+    HashJoin join = new HashJoin(right(), right(), pageFactory, false, IN_MEMORY);
+    assertNull(join.nextPage());
+    join.close();
+  }
+
+  private List<String[]> join(FixtureQuery left, FixtureQuery right, boolean outer, long memoryLimit) throws OdaException {
+    HashJoin join = new HashJoin(left, right, pageFactory, outer, memoryLimit);
+    try {
+      return joined.read(join);
+    } finally {
+      join.close();
+    }
+  }
+
+  private static FixtureQuery left() {
+    return new FixtureQuery("SITE", "text", "AGE", "integer");
+  }
+
+  private static FixtureQuery right() {
+    return new FixtureQuery("WEIGHT", "decimal");
+  }
+
+  private static String[] row(String... values) {
+    String[] row = new String[values.length + 1];
+    System.arraycopy(values, 0, row, 1, values.length);
+    return row;
+  }
+
+  private static List<String[]> sorted(List<String[]> rows) {
+    List<String[]> sorted = new ArrayList<String[]>(rows);
+    Collections.sort(sorted, new Comparator<String[]>() {
+      public int compare(String[] r1, String[] r2) {
+        return Arrays.toString(r1).compareTo(Arrays.toString(r2));
+      }
+    });
+    return sorted;
+  }
+
+  private static void assertSameRows(List<String[]> expected, List<String[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+  private static int countPartitionFiles(File directory) {
+    String[] files = directory.list(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.startsWith("opal-oda-join");
+      }
+    });
+    return files == null ? 0 : files.length;
+  }
+
+}
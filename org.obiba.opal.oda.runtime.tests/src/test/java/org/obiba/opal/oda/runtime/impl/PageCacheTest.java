@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.List;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PageCacheTest {
+
+  private static final long TTL = 60 * 1000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private File directory;
+
+  private FixtureQuery query;
+
+  private PageFactory pageFactory;
+
+  @Before
+  public void setUp() throws OdaException {
+    directory = new File(folder.getRoot(), "cache");
+    query = new FixtureQuery("SITE", "text", "AGE", "integer");
+    for(int i = 0; i < 35; i++) {
+      query.addRow("P" + i, i % 3 == 0 ? null : "S" + i % 2, Integer.toString(i));
+    }
+    pageFactory = new PageFactory((ResultSetMetaData) query.getMetaData(), true);
+  }
+
+  @Test
+  public void testCachedPages() throws OdaException {
+    PageCache cache = new PageCache(directory, PageCache.DEFAULT_SIZE, TTL);
+    PageSource pages = cache.getPages(query, pageFactory, newFetcher());
+    assertTrue(pages instanceof ValueSetFetcher);
+    assertRows(query.getRows(), query.read(pages));
+    pages.close();
+    int requestCount = query.getRequestCount();
+    assertEquals(1, listPages().length);
+
+    pages = cache.getPages(query, pageFactory, newFetcher());
+    assertFalse(pages instanceof ValueSetFetcher);
+    assertRows(query.getRows(), query.read(pages));
+    pages.close();
+    assertEquals(requestCount, query.getRequestCount());
+  }
+
+  @Test
+  public void testTableUpdated() throws OdaException {
+    PageCache cache = new PageCache(directory, PageCache.DEFAULT_SIZE, TTL);
+    query.read(cache.getPages(query, pageFactory, newFetcher()));
+
+    query.setFingerprint("2");
+    query.addRow("P35", "S1", "35");
+    // the version of the table is trusted during its time to live
+    assertFalse(cache.getPages(query, pageFactory, newFetcher()) instanceof ValueSetFetcher);
+
+    cache = new PageCache(directory, PageCache.DEFAULT_SIZE, TTL);
+    PageSource pages = cache.getPages(query, pageFactory, newFetcher());
+    assertTrue(pages instanceof ValueSetFetcher);
+    assertRows(query.getRows(), query.read(pages));
+  }
+
+  @Test
+  public void testIncompleteReadNotCached() throws OdaException {
+    PageCache cache = new PageCache(directory, PageCache.DEFAULT_SIZE, TTL);
+    PageSource pages = cache.getPages(query, pageFactory, newFetcher());
+    pages.nextPage();
+    pages.close();
+    assertEquals(0, listPages().length);
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void testEvict() throws IOException {
+    assertTrue(directory.mkdirs());
+    long now = System.currentTimeMillis();
+    File oldest = newFile("a.pages", 100, now - 3000);
+    File older = newFile("b.pages", 100, now - 2000);
+    File recent = newFile("c.pages", 100, now - 1000);
+    File other = newFile("d.tmp", 1000, now - 5000);
+
+    new PageCache(directory, 300, TTL).evict();
+    assertTrue(oldest.exists() && older.exists() && recent.exists() && other.exists());
+
+    new PageCache(directory, 150, TTL).evict();
+    assertFalse(oldest.exists());
+    assertFalse(older.exists());
+    assertTrue(recent.exists());
+    assertTrue(other.exists());
+  }
+
+  @Test
+  public void testDigest() {
+    assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", PageCache.digest("abc"));
+    assertEquals("00ff10", PageCache.toHex(new byte[] { 0, -1, 16 }));
+  }
+
+  private ValueSetFetcher newFetcher() {
+    return new ValueSetFetcher(query, pageFactory, new PageSizer(PageSizer.MIN_PAGE_SIZE, 0, 0), new MemoryBudget(0), 1, 2, Integer.MAX_VALUE);
+  }
+
+  private File[] listPages() {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      public boolean accept(File dir, String name) {
+        return name.endsWith(".pages");
+      }
+    });
+    return files == null ? new File[0] : files;
+  }
+
+  private File newFile(String name, int size, long lastModified) throws IOException {
+    File file = new File(directory, name);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[size]);
+    } finally {
+      out.close();
+    }
+    assertTrue(file.setLastModified(lastModified));
+    return file;
+  }
+
+  private static void assertRows(List<String[]> expected, List<String[]> actual) {
+    assertEquals(expected.size(), actual.size());
+    for(int i = 0; i < expected.size(); i++) {
+      assertArrayEquals(expected.get(i), actual.get(i));
+    }
+  }
+
+}
@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.Arrays;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Test;
+
+public class QueryParametersTest {
+
+  @Test
+  public void testNoScript() throws OdaException {
+    QueryParameters parameters = new QueryParameters(null);
+    assertEquals(0, parameters.getCount());
+    assertNull(parameters.compile());
+  }
+
+  @Test
+  public void testNoParameter() throws OdaException {
+    String script = "$('SITE').eq('A')";
+    QueryParameters parameters = new QueryParameters(script);
+    assertEquals(0, parameters.getCount());
+    assertEquals(script, parameters.compile());
+  }
+
+  @Test
+  public void testPositionalParameters() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('SITE').eq(?).and($('VISIT').ge(?))");
+    assertEquals(2, parameters.getCount());
+    assertNull(parameters.getName(1));
+    assertNull(parameters.getName(2));
+    parameters.set(1, "A");
+    parameters.set(2, 2);
+    assertEquals("$('SITE').eq('A').and($('VISIT').ge(2))", parameters.compile());
+  }
+
+  @Test
+  public void testRepeatedNamedParameter() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('SITE').eq(:site).or($('CENTRE').eq(:site)).and($('VISIT').ge(:visit))");
+    assertEquals(2, parameters.getCount());
+    assertEquals("site", parameters.getName(1));
+    assertEquals("visit", parameters.getName(2));
+    assertEquals(1, parameters.find("site"));
+    parameters.set("site", "A");
+    parameters.set("visit", 2);
+    assertEquals("$('SITE').eq('A').or($('CENTRE').eq('A')).and($('VISIT').ge(2))", parameters.compile());
+  }
+
+  @Test
+  public void testMixedParameters() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('SITE').eq(:site).and($('VISIT').ge(?))");
+    assertEquals(2, parameters.getCount());
+    parameters.set(1, "A");
+    parameters.set(2, 2);
+    assertEquals("$('SITE').eq('A').and($('VISIT').ge(2))", parameters.compile());
+  }
+
+  @Test
+  public void testPlaceholdersInQuotedStrings() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A?').eq(':a').and($(\"B ?\").eq(\":b\")).and($('C').eq(?))");
+    assertEquals(1, parameters.getCount());
+    parameters.set(1, "c");
+    assertEquals("$('A?').eq(':a').and($(\"B ?\").eq(\":b\")).and($('C').eq('c'))", parameters.compile());
+  }
+
+  @Test
+  public void testEscapedQuotes() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A').eq('it\\'s ?').or($(\"B\").eq(\"\\\" :b\")).or($('C').eq(:c))");
+    assertEquals(1, parameters.getCount());
+    assertEquals("c", parameters.getName(1));
+    parameters.set(1, "it's");
+    assertEquals("$('A').eq('it\\'s ?').or($(\"B\").eq(\"\\\" :b\")).or($('C').eq('it\\'s'))", parameters.compile());
+  }
+
+  @Test
+  public void testStringValueEscaping() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A').eq(?)");
+    parameters.set(1, "a\\b'c\nd");
+    assertEquals("$('A').eq('a\\\\b\\'c\\nd')", parameters.compile());
+  }
+
+  @Test
+  public void testComments() throws OdaException {
+    String script = "// is ? :a\n$('A').eq(?) /* or :b ? */.and($('B').eq(:b)) // ?";
+    QueryParameters parameters = new QueryParameters(script);
+    assertEquals(2, parameters.getCount());
+    assertNull(parameters.getName(1));
+    assertEquals("b", parameters.getName(2));
+    parameters.set(1, 1);
+    parameters.set(2, 2);
+    assertEquals("// is ? :a\n$('A').eq(1) /* or :b ? */.and($('B').eq(2)) // ?", parameters.compile());
+  }
+
+  @Test
+  public void testConditionalExpression() throws OdaException {
+    String script = "$('A').isNull().value() ? $('B') :$('C')";
+    QueryParameters parameters = new QueryParameters(script);
+    assertEquals(0, parameters.getCount());
+    assertEquals(script, parameters.compile());
+  }
+
+  @Test
+  public void testConditionalExpressionWithParameters() throws OdaException {
+    QueryParameters parameters = new QueryParameters("flag ? (?) : (:other)");
+    assertEquals(2, parameters.getCount());
+    parameters.set(1, 1);
+    parameters.set(2, 2);
+    assertEquals("flag ? (1) : (2)", parameters.compile());
+  }
+
+  @Test
+  public void testObjectLiteral() throws OdaException {
+    String script = "$('WEIGHT').unit({unit:'kg', scale:kg})";
+    QueryParameters parameters = new QueryParameters(script);
+    assertEquals(0, parameters.getCount());
+    assertEquals(script, parameters.compile());
+  }
+
+  @Test
+  public void testOperators() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A').value()>=?&&$('B').value()!=:b||[?,?]");
+    assertEquals(4, parameters.getCount());
+    parameters.set(1, 1);
+    parameters.set(2, 2);
+    parameters.set(3, 3);
+    parameters.set(4, 4);
+    assertEquals("$('A').value()>=1&&$('B').value()!=2||[3,4]", parameters.compile());
+  }
+
+  @Test
+  public void testArrayBinding() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$id().any(:ids)");
+    parameters.set("ids", new String[] { "1", "2" });
+    assertEquals("$id().any('1','2')", parameters.compile());
+    parameters.set("ids", new int[] { 1, 2, 3 });
+    assertEquals("$id().any(1,2,3)", parameters.compile());
+  }
+
+  @Test
+  public void testCollectionBinding() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('SITE').any(?)");
+    parameters.set(1, Arrays.asList("A", null, "B"));
+    assertEquals("$('SITE').any('A',null,'B')", parameters.compile());
+  }
+
+  @Test
+  public void testLiterals() throws OdaException {
+    QueryParameters parameters = new QueryParameters("f(?, ?, ?, ?)");
+    parameters.set(1, null);
+    parameters.set(2, true);
+    parameters.set(3, new BigDecimal("1E+3"));
+    parameters.set(4, Timestamp.valueOf("2012-01-02 03:04:05"));
+    assertEquals("f(null, true, 1000, '2012-01-02T03:04:05.0')", parameters.compile());
+  }
+
+  @Test(expected = OdaException.class)
+  public void testUnboundParameter() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A').eq(:a).and($('B').eq(:b))");
+    parameters.set("a", 1);
+    parameters.compile();
+  }
+
+  @Test(expected = OdaException.class)
+  public void testClearedParameter() throws OdaException {
+    QueryParameters parameters = new QueryParameters("$('A').eq(?)");
+    parameters.set(1, 1);
+    parameters.clear();
+    parameters.compile();
+  }
+
+  @Test(expected = OdaException.class)
+  public void testUnknownParameter() throws OdaException {
+    new QueryParameters("$('A').eq(:a)").find("b");
+  }
+
+  @Test(expected = OdaException.class)
+  public void testInvalidIndex() throws OdaException {
+    new QueryParameters("$('A').eq(?)").set(2, 1);
+  }
+
+}
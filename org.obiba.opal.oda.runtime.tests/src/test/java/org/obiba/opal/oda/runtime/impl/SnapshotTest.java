@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.obiba.opal.web.model.Magma.DatasourceDto;
+
+public class SnapshotTest {
+
+  private static final String WHERE = "$('SITE').eq('S1')";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private FixtureQuery query;
+
+  private PageFactory pageFactory;
+
+  @Before
+  public void setUp() throws OdaException {
+    query = new FixtureQuery("SITE", "text", "AGE", "integer", "BMI", "decimal");
+    for(int i = 0; i < 25; i++) {
+      query.addRow("P" + i, i % 4 == 0 ? null : "S" + i % 2 + "\u00e9", i % 5 == 0 ? null : Integer.toString(i), i + ".50");
+    }
+    query.setProperty(Query.PAGE_SIZE, "10");
+    query.setProperty(Query.WHERE, WHERE);
+    pageFactory = new PageFactory((ResultSetMetaData) query.getMetaData(), true);
+  }
+
+  @Test
+  public void testRoundTrip() throws OdaException {
+    File file = Snapshot.getFile(folder.getRoot(), "ds", "table");
+    Snapshot.write(query, file);
+
+    Snapshot snapshot = new Snapshot(file);
+    try {
+      assertEquals(query.getVariables(), snapshot.getVariables());
+      List<String[]> rows = query.read(snapshot.newPages(pageFactory, null));
+      List<String[]> expected = query.getRows();
+      assertEquals(expected.size(), rows.size());
+      for(int i = 0; i < expected.size(); i++) {
+        assertArrayEquals(expected.get(i), rows.get(i));
+      }
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  @Test
+  public void testProjection() throws OdaException {
+    File file = Snapshot.getFile(folder.getRoot(), "ds", "table");
+    Snapshot.write(query, file);
+
+    Snapshot snapshot = new Snapshot(file);
+    try {
+      List<String[]> rows = query.read(snapshot.newPages(pageFactory, Collections.singleton("AGE")));
+      assertEquals(25, rows.size());
+      assertEquals("P1", rows.get(1)[1]);
+      // variables not read are null
+      assertNull(rows.get(1)[2]);
+      assertEquals("1", rows.get(1)[3]);
+      assertNull(rows.get(1)[4]);
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  @Test
+  public void testScripts() throws OdaException {
+    File file = Snapshot.getFile(folder.getRoot(), "ds", "table");
+    Snapshot.write(query, file);
+
+    Snapshot snapshot = new Snapshot(file);
+    try {
+      snapshot.checkScripts(null, WHERE);
+      try {
+        snapshot.checkScripts(null, "$('SITE').eq('S0')");
+        fail("Accepted another entities filter script");
+      } catch(OdaException e) {
+        // expected
+      }
+      try {
+        snapshot.checkScripts("name().matches(/AGE/)", WHERE);
+        fail("Accepted another select script");
+      } catch(OdaException e) {
+        // expected
+      }
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  @Test
+  public void testDatasources() throws OdaException {
+    Snapshot.write(query, Snapshot.getFile(folder.getRoot(), "ds2", "t1"));
+    Snapshot.write(query, Snapshot.getFile(folder.getRoot(), "ds1", "t2"));
+    Snapshot.write(query, Snapshot.getFile(folder.getRoot(), "ds1", "t1"));
+
+    List<DatasourceDto> datasources = Snapshot.getDatasources(folder.getRoot());
+    assertEquals(2, datasources.size());
+    assertEquals("ds1", datasources.get(0).getName());
+    assertEquals(2, datasources.get(0).getTableCount());
+    assertEquals("t1", datasources.get(0).getTable(0));
+    assertEquals("t2", datasources.get(0).getTable(1));
+    assertEquals("ds2", datasources.get(1).getName());
+  }
+
+  @Test
+  public void testNotASnapshot() throws IOException {
+    File file = folder.newFile("table" + Snapshot.SUFFIX);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(new byte[64]);
+    } finally {
+      out.close();
+    }
+    try {
+      new Snapshot(file);
+      fail("Opened a file that is not a snapshot");
+    } catch(OdaException e) {
+      // expected
+    }
+  }
+
+}
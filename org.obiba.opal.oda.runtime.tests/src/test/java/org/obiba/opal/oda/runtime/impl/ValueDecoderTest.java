@@ -0,0 +1,111 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.Types;
+
+import org.junit.Test;
+
+public class ValueDecoderTest {
+
+  @Test
+  public void testForType() {
+    assertEquals(ValueDecoder.INTEGER, ValueDecoder.forType(Types.INTEGER));
+    assertEquals(ValueDecoder.DECIMAL, ValueDecoder.forType(Types.DECIMAL));
+    assertEquals(ValueDecoder.DATETIME, ValueDecoder.forType(Types.TIMESTAMP));
+    assertEquals(ValueDecoder.DEFAULT, ValueDecoder.forType(Types.VARCHAR));
+  }
+
+  @Test
+  public void testParseInt() {
+    String[] values = { "0", "7", "-7", "+7", "007", "123456789", "-123456789", "2147483647", "-2147483648" };
+    for(String value : values) {
+      assertEquals(value, Integer.parseInt(value), ValueDecoder.parseInt(value));
+    }
+    assertInvalidInt("");
+    assertInvalidInt("-");
+    assertInvalidInt("1.0");
+    assertInvalidInt("2147483648");
+    assertInvalidInt("1e3");
+  }
+
+  @Test
+  public void testParseLong() {
+    String[] values = { "0", "-1", "+42", "000000000000000001", "999999999999999999", "-999999999999999999", "9223372036854775807", "-9223372036854775808" };
+    for(String value : values) {
+      assertEquals(value, Long.parseLong(value), ValueDecoder.parseLong(value));
+    }
+    try {
+      ValueDecoder.parseLong("9223372036854775808");
+      fail("Parsed a value beyond the long range");
+    } catch(NumberFormatException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParseDouble() {
+    String[] values = { "0", "1.5", "-1.5", "+1.5", ".5", "0.1", "0.3", "3.14159", "123456.789012", "9007199254740991", "9007199254740993", "0.1234567890123456789012", "0.12345678901234567890123", "1e10", "-2.5E-3", "1.", "NaN", "-Infinity" };
+    for(String value : values) {
+      assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)), Double.doubleToLongBits(ValueDecoder.parseDouble(value)));
+    }
+  }
+
+  @Test
+  public void testParseBigDecimal() {
+    String[] values = { "0", "1.50", "-1.50", "+3", "007.10", "0.000001", "123456789012345678", "1234567890123456789", "12345678901234567.8901", "1e3", "1." };
+    for(String value : values) {
+      assertEquals(value, new BigDecimal(value), ValueDecoder.parseBigDecimal(value));
+    }
+  }
+
+  @Test
+  public void testParseDate() {
+    assertEquals(Date.valueOf("2011-05-31"), ValueDecoder.parseDate("2011-05-31"));
+    assertEquals(Date.valueOf("2011-5-3"), ValueDecoder.parseDate("2011-5-3"));
+    assertEquals(Date.valueOf("2011-05-31"), ValueDecoder.DATETIME.toDate("2011-05-31T14:22:05.123-0400"));
+    assertEquals(Date.valueOf("2011-05-31"), ValueDecoder.DATETIME.toDate("2011-05-31"));
+  }
+
+  @Test
+  public void testIntegerDecoder() {
+    assertEquals(12.0, ValueDecoder.INTEGER.toDouble("12.0"), 0);
+    assertEquals(1e19, ValueDecoder.INTEGER.toDouble("10000000000000000000"), 0);
+    assertEquals(new BigDecimal("12.0"), ValueDecoder.INTEGER.toBigDecimal("12.0"));
+    assertEquals(new BigDecimal("10000000000000000000"), ValueDecoder.INTEGER.toBigDecimal("10000000000000000000"));
+    try {
+      ValueDecoder.INTEGER.toInt("3000000000");
+      fail("Converted a value beyond the int range");
+    } catch(NumberFormatException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testDecimalDecoder() {
+    assertEquals(2, ValueDecoder.DECIMAL.toInt("2.9"));
+    assertEquals(-2, ValueDecoder.DECIMAL.toInt("-2.9"));
+  }
+
+  private static void assertInvalidInt(String value) {
+    try {
+      ValueDecoder.parseInt(value);
+      fail("Parsed " + value);
+    } catch(NumberFormatException e) {
+      // expected
+    }
+  }
+
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+
+/**
+ * Page holding the string values of its rows, parsed on each access like the values of a {@link ProtobufPage}.
+ */
+class ArrayPage implements ValueSetPage {
+
+  private final String[][] rows;
+
+  private final ValueDecoder[] decoders;
+
+  /**
+   * @param rows the values of each row, indexed by 1-based column
+   * @param decoders decoder of each 1-based column
+   */
+  ArrayPage(String[][] rows, ValueDecoder[] decoders) {
+    this.rows = rows;
+    this.decoders = decoders;
+  }
+
+  public int size() {
+    return rows.length;
+  }
+
+  public boolean isNull(int row, int column) {
+    return rows[row][column] == null;
+  }
+
+  public String getString(int row, int column) {
+    return rows[row][column];
+  }
+
+  public int getInt(int row, int column) {
+    return decoders[column].toInt(rows[row][column]);
+  }
+
+  public double getDouble(int row, int column) {
+    return decoders[column].toDouble(rows[row][column]);
+  }
+
+  public BigDecimal getBigDecimal(int row, int column) {
+    return decoders[column].toBigDecimal(rows[row][column]);
+  }
+
+  public Date getDate(int row, int column) {
+    return decoders[column].toDate(rows[row][column]);
+  }
+
+  public boolean getBoolean(int row, int column) {
+    return decoders[column].toBoolean(rows[row][column]);
+  }
+
+}
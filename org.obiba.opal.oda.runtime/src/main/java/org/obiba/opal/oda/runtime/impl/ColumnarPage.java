@@ -0,0 +1,320 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+/**
+ * Page decoded once into columns when received: integer and decimal columns are parsed into primitive arrays for the
+ * numeric getters, the other columns are dictionary encoded so that repeated values share the same string. Nulls are
+ * kept in a bitmap. The text of a numeric value is formatted from the parsed value when asked for, and is only kept
+ * when it differs from the received one, such as <code>007</code> or <code>1.50</code>, so that
+ * {@link #getString(int, int)} and exact decimals are the ones of Opal. A numeric column having a value that cannot be
+ * parsed is dictionary encoded.
+ */
+class ColumnarPage implements ValueSetPage {
+
+  private final int size;
+
+  private final String[] identifiers;
+
+  private final Column[] columns;
+
+  /**
+   * @param valueSets
+   * @param variableIndices position of the variable of each 1-based column in the value sets, -1 if missing
+   * @param decoders decoder of each 1-based column
+   */
+  ColumnarPage(ValueSetsDto valueSets, int[] variableIndices, ValueDecoder[] decoders) {
+    this(identifiers(valueSets), values(valueSets, variableIndices), decoders);
+  }
+
+  /**
+   * @param identifiers the entity identifiers
+   * @param values the values of each 1-based column, null if the column has no values
+   * @param decoders decoder of each 1-based column
+   */
+  ColumnarPage(String[] identifiers, String[][] values, ValueDecoder[] decoders) {
+    size = identifiers.length;
+    this.identifiers = identifiers;
+    columns = new Column[decoders.length];
+    for(int column = 2; column < decoders.length; column++) {
+      columns[column] = decode(values[column], decoders[column]);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isNull(int row, int column) {
+    return column == 1 ? identifiers[row] == null : columns[column].isNull(row);
+  }
+
+  public String getString(int row, int column) {
+    if(column == 1) return identifiers[row];
+    Column col = columns[column];
+    return col.isNull(row) ? null : col.getString(row);
+  }
+
+  public int getInt(int row, int column) {
+    return column == 1 ? ValueDecoder.DEFAULT.toInt(identifiers[row]) : columns[column].getInt(row);
+  }
+
+  public double getDouble(int row, int column) {
+    return column == 1 ? ValueDecoder.DEFAULT.toDouble(identifiers[row]) : columns[column].getDouble(row);
+  }
+
+  public BigDecimal getBigDecimal(int row, int column) {
+    return column == 1 ? ValueDecoder.DEFAULT.toBigDecimal(identifiers[row]) : columns[column].getBigDecimal(row);
+  }
+
+  public Date getDate(int row, int column) {
+    return column == 1 ? ValueDecoder.DEFAULT.toDate(identifiers[row]) : columns[column].getDate(row);
+  }
+
+  public boolean getBoolean(int row, int column) {
+    return column == 1 ? ValueDecoder.DEFAULT.toBoolean(identifiers[row]) : columns[column].getBoolean(row);
+  }
+
+  private static String[] identifiers(ValueSetsDto valueSets) {
+    String[] identifiers = new String[valueSets.getValueSetsCount()];
+    for(int row = 0; row < identifiers.length; row++) {
+      identifiers[row] = valueSets.getValueSets(row).getIdentifier();
+    }
+    return identifiers;
+  }
+
+  private static String[][] values(ValueSetsDto valueSets, int[] variableIndices) {
+    int size = valueSets.getValueSetsCount();
+    String[][] values = new String[variableIndices.length][];
+    for(int column = 2; column < variableIndices.length; column++) {
+      if(variableIndices[column] < 0) continue;
+      values[column] = new String[size];
+      for(int row = 0; row < size; row++) {
+        ValueSetsDto.ValueDto value = valueSets.getValueSets(row).getValues(variableIndices[column]);
+        if(value.hasValue()) values[column][row] = value.getValue();
+      }
+    }
+    return values;
+  }
+
+  private Column decode(String[] values, ValueDecoder decoder) {
+    if(values == null) values = new String[size];
+    long[] nulls = new long[(size + 63) / 64];
+    for(int row = 0; row < size; row++) {
+      if(values[row] == null) nulls[row >> 6] |= 1L << row;
+    }
+
+    try {
+      if(decoder == ValueDecoder.INTEGER) return new LongColumn(nulls, values);
+      if(decoder == ValueDecoder.DECIMAL) return new DoubleColumn(nulls, values);
+    } catch(NumberFormatException e) {
+      // keep the values as they are
+    }
+    return new DictionaryColumn(nulls, values, decoder);
+  }
+
+  private static abstract class Column {
+
+    private final long[] nulls;
+
+    Column(long[] nulls) {
+      this.nulls = nulls;
+    }
+
+    boolean isNull(int row) {
+      return (nulls[row >> 6] & 1L << row) != 0;
+    }
+
+    abstract String getString(int row);
+
+    abstract int getInt(int row);
+
+    abstract double getDouble(int row);
+
+    abstract BigDecimal getBigDecimal(int row);
+
+    Date getDate(int row) {
+      return ValueDecoder.DEFAULT.toDate(getString(row));
+    }
+
+    boolean getBoolean(int row) {
+      return ValueDecoder.DEFAULT.toBoolean(getString(row));
+    }
+  }
+
+  private static class LongColumn extends Column {
+
+    private final long[] values;
+
+    /**
+     * Received texts that are not formatted from their value, null if there is none.
+     */
+    private final String[] texts;
+
+    LongColumn(long[] nulls, String[] strings) {
+      super(nulls);
+      values = new long[strings.length];
+      String[] received = null;
+      for(int row = 0; row < strings.length; row++) {
+        if(strings[row] == null) continue;
+        values[row] = ValueDecoder.parseLong(strings[row]);
+        if(!isFormatted(strings[row])) {
+          if(received == null) received = new String[strings.length];
+          received[row] = strings[row];
+        }
+      }
+      texts = received;
+    }
+
+    /**
+     * Check whether a parsed text is the one of {@link Long#toString(long)}: no plus sign, no leading zero.
+     */
+    private static boolean isFormatted(String text) {
+      int start = text.charAt(0) == '-' ? 1 : 0;
+      if(text.charAt(0) == '+' || text.length() == start) return false;
+      return text.charAt(start) != '0' || text.length() == 1;
+    }
+
+    @Override
+    String getString(int row) {
+      return texts != null && texts[row] != null ? texts[row] : Long.toString(values[row]);
+    }
+
+    @Override
+    int getInt(int row) {
+      long value = values[row];
+      // as the integer decoder of the other pages
+      if(value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new NumberFormatException("For input string: \"" + getString(row) + "\"");
+      return (int) value;
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+
+    @Override
+    BigDecimal getBigDecimal(int row) {
+      return BigDecimal.valueOf(values[row]);
+    }
+  }
+
+  private static class DoubleColumn extends Column {
+
+    private final double[] values;
+
+    /**
+     * Received texts that are not formatted from their value, null if there is none.
+     */
+    private final String[] texts;
+
+    DoubleColumn(long[] nulls, String[] strings) {
+      super(nulls);
+      values = new double[strings.length];
+      String[] received = null;
+      for(int row = 0; row < strings.length; row++) {
+        if(strings[row] == null) continue;
+        values[row] = ValueDecoder.parseDouble(strings[row]);
+        if(!Double.toString(values[row]).equals(strings[row])) {
+          if(received == null) received = new String[strings.length];
+          received[row] = strings[row];
+        }
+      }
+      texts = received;
+    }
+
+    @Override
+    String getString(int row) {
+      return texts != null && texts[row] != null ? texts[row] : Double.toString(values[row]);
+    }
+
+    @Override
+    int getInt(int row) {
+      return (int) values[row];
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+
+    @Override
+    BigDecimal getBigDecimal(int row) {
+      return ValueDecoder.DECIMAL.toBigDecimal(getString(row));
+    }
+  }
+
+  private static class DictionaryColumn extends Column {
+
+    private final ValueDecoder decoder;
+
+    private final int[] codes;
+
+    private final String[] dictionary;
+
+    DictionaryColumn(long[] nulls, String[] strings, ValueDecoder decoder) {
+      super(nulls);
+      this.decoder = decoder;
+      codes = new int[strings.length];
+      Map<String, Integer> codesByValue = new HashMap<String, Integer>();
+      String[] distinct = new String[strings.length];
+      for(int row = 0; row < strings.length; row++) {
+        if(strings[row] == null) continue;
+        Integer code = codesByValue.get(strings[row]);
+        if(code == null) {
+          code = codesByValue.size();
+          codesByValue.put(strings[row], code);
+          distinct[code] = strings[row];
+        }
+        codes[row] = code;
+      }
+      dictionary = new String[codesByValue.size()];
+      System.arraycopy(distinct, 0, dictionary, 0, dictionary.length);
+    }
+
+    @Override
+    String getString(int row) {
+      return dictionary[codes[row]];
+    }
+
+    @Override
+    int getInt(int row) {
+      return decoder.toInt(getString(row));
+    }
+
+    @Override
+    double getDouble(int row) {
+      return decoder.toDouble(getString(row));
+    }
+
+    @Override
+    BigDecimal getBigDecimal(int row) {
+      return decoder.toBigDecimal(getString(row));
+    }
+
+    @Override
+    Date getDate(int row) {
+      return decoder.toDate(getString(row));
+    }
+
+    @Override
+    boolean getBoolean(int row) {
+      return decoder.toBoolean(getString(row));
+    }
+  }
+
+}
@@ -10,8 +10,15 @@
 
 package org.obiba.opal.oda.runtime.impl;
 
-import java.net.URISyntaxException;
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import org.eclipse.datatools.connectivity.oda.IConnection;
@@ -19,6 +26,7 @@ import org.eclipse.datatools.connectivity.oda.IDataSetMetaData;
 import org.eclipse.datatools.connectivity.oda.IQuery;
 import org.eclipse.datatools.connectivity.oda.OdaException;
 import org.obiba.opal.rest.client.magma.OpalJavaClient;
+import org.obiba.opal.web.model.Magma.DatasourceDto;
 
 import com.ibm.icu.util.ULocale;
 
@@ -37,6 +45,29 @@ public class Connection implements IConnection {
 
   private OpalJavaClient opal;
 
+  private File snapshotDirectory;
+
+  /**
+   * Whether the queries are made on Opal and write the snapshots of their tables, rather than made on the snapshots.
+   */
+  private boolean writeSnapshots;
+
+  /**
+   * Snapshot files written by this connection.
+   */
+  private final Set<File> writtenSnapshots = new HashSet<File>();
+
+  private MemoryBudget memoryBudget = new MemoryBudget(0);
+
+  private final Map<String, Snapshot> snapshots = new HashMap<String, Snapshot>();
+
+  /**
+   * Queries executed and not closed yet, whose metrics are registered.
+   */
+  private final Set<Query> queries = new HashSet<Query>();
+
+  private final Metrics metrics = new Metrics("Connection", Driver.getMetrics());
+
   private Logger log = Logger.getLogger(Connection.class.getName());
 
   /*
@@ -51,16 +82,36 @@ public class Connection implements IConnection {
     username = connProperties.getProperty("USER");
     password = connProperties.getProperty("PASSWORD");
 
+    // bytes of value sets that the queries of this connection may hold in memory
+    memoryBudget = new MemoryBudget(parseLong("MEMORY_BUDGET", connProperties.getProperty("MEMORY_BUDGET")));
+
+    // query local snapshots instead of Opal, or write them when querying Opal
+    String snapshot = connProperties.getProperty("SNAPSHOT");
+    if(snapshot != null && snapshot.trim().length() > 0) {
+      snapshotDirectory = new File(snapshot.trim());
+      writeSnapshots = "WRITE".equalsIgnoreCase(trim(connProperties.getProperty("SNAPSHOT_MODE")));
+      if(writeSnapshots) {
+        if(!snapshotDirectory.isDirectory() && !snapshotDirectory.mkdirs()) throw new OdaException("Cannot create snapshot directory " + snapshotDirectory);
+      } else {
+        if(!snapshotDirectory.isDirectory()) throw new OdaException("Snapshot directory not found: " + snapshotDirectory);
+        metrics.setName(snapshotDirectory.getPath());
+        metrics.register();
+        m_isOpen = true;
+        return;
+      }
+    }
+
     // Make sure there is a slash at the end of the path
     if(!wsURL.endsWith("/")) wsURL += "/";
     wsURL += "ws/";
 
-    try {
-      this.opal = new OpalJavaClient(wsURL, username, password);
-    } catch(URISyntaxException e) {
-      throw new OdaException(e);
-    }
+    // reuse the HTTP connections and session of a previously closed connection
+    this.opal = Driver.getClientPool().acquire(wsURL, username, password);
+    // before the first request of the client, which would otherwise not accept compressed responses
+    if(Driver.isCompressionEnabled()) ContentEncoding.install(opal, Driver.getMetrics());
 
+    metrics.setName(wsURL);
+    metrics.register();
     m_isOpen = true;
   }
 
@@ -68,6 +119,116 @@ public class Connection implements IConnection {
     return opal;
   }
 
+  /**
+   * Get the URL of Opal web services.
+   * @return
+   */
+  public String getURL() {
+    return wsURL;
+  }
+
+  public String getUsername() {
+    return username;
+  }
+
+  /**
+   * Check whether the queries are made on local snapshots rather than on Opal.
+   * @return
+   */
+  public boolean isOffline() {
+    return snapshotDirectory != null && !writeSnapshots;
+  }
+
+  /**
+   * Write the snapshot of the table of a query into the snapshot directory, when the snapshots are written by this
+   * connection. A table is copied once per connection, with the select and entities filter scripts of the first query
+   * executed on it.
+   * @param query
+   * @throws OdaException
+   */
+  void writeSnapshot(Query query) throws OdaException {
+    if(!writeSnapshots) return;
+    File file = Snapshot.getFile(snapshotDirectory, query.getDatasource(), query.getTable());
+    synchronized(writtenSnapshots) {
+      if(!writtenSnapshots.add(file)) return;
+    }
+    boolean written = false;
+    try {
+      query.materialize(snapshotDirectory);
+      written = true;
+    } finally {
+      if(!written) {
+        synchronized(writtenSnapshots) {
+          writtenSnapshots.remove(file);
+        }
+      }
+    }
+  }
+
+  /**
+   * Get the bytes of value sets that the queries of this connection may hold in memory.
+   * @return
+   */
+  MemoryBudget getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Get the request and page counters of the queries of this connection.
+   * @return
+   */
+  Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Keep track of an executed query, until it is closed.
+   * @param query
+   */
+  void executed(Query query) {
+    synchronized(queries) {
+      queries.add(query);
+    }
+  }
+
+  void closed(Query query) {
+    synchronized(queries) {
+      queries.remove(query);
+    }
+  }
+
+  /**
+   * Get the datasources of Opal, or the ones having a snapshot when offline.
+   * @return
+   * @throws OdaException
+   */
+  public List<DatasourceDto> getDatasources() throws OdaException {
+    if(isOffline()) return Snapshot.getDatasources(snapshotDirectory);
+    URI uri = opal.newUri().segment("datasources").build();
+    long start = System.nanoTime();
+    List<DatasourceDto> datasources = getOpal().getResources(DatasourceDto.class, uri, DatasourceDto.newBuilder());
+    metrics.request("datasources", System.nanoTime() - start, Metrics.getSerializedSize(datasources));
+    return datasources;
+  }
+
+  /**
+   * Get the snapshot of a table, when offline.
+   * @param datasource
+   * @param table
+   * @return
+   * @throws OdaException if the table has no snapshot
+   */
+  synchronized Snapshot getSnapshot(String datasource, String table) throws OdaException {
+    File file = Snapshot.getFile(snapshotDirectory, datasource, table);
+    Snapshot snapshot = snapshots.get(file.getPath());
+    if(snapshot == null) {
+      if(!file.isFile()) throw new OdaException("No snapshot of table " + datasource + "." + table + " in " + snapshotDirectory);
+      snapshot = new Snapshot(file);
+      snapshots.put(file.getPath(), snapshot);
+    }
+    return snapshot;
+  }
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IConnection#setAppContext(java.lang.Object)
    */
@@ -79,8 +240,28 @@ public class Connection implements IConnection {
    * @see org.eclipse.datatools.connectivity.oda.IConnection#close()
    */
   public void close() throws OdaException {
-    // TODO check for session timeout
     if(opal != null) {
+      Driver.getClientPool().release(wsURL, username, password, opal);
+      opal = null;
+    }
+    synchronized(this) {
+      for(Snapshot snapshot : snapshots.values()) {
+        snapshot.close();
+      }
+      snapshots.clear();
+    }
+    // the queries that are never closed would stay in the MBean server
+    List<Query> unclosed;
+    synchronized(queries) {
+      unclosed = new ArrayList<Query>(queries);
+      queries.clear();
+    }
+    for(Query query : unclosed) {
+      query.getMetrics().unregister();
+    }
+    if(m_isOpen) {
+      metrics.log();
+      metrics.unregister();
     }
 
     m_isOpen = false;
@@ -106,8 +287,7 @@ public class Connection implements IConnection {
    * @see org.eclipse.datatools.connectivity.oda.IConnection#newQuery(java.lang.String)
    */
   public IQuery newQuery(String dataSetType) throws OdaException {
-    // assumes that this driver supports only one type of data set,
-    // ignores the specified dataSetType
+    if(JoinQuery.DATA_SET_TYPE.equals(dataSetType)) return new JoinQuery(this);
     return new Query(this);
   }
 
@@ -141,4 +321,17 @@ public class Connection implements IConnection {
     // do nothing; assumes no locale support
   }
 
+  private static String trim(String value) {
+    return value == null ? null : value.trim();
+  }
+
+  private static long parseLong(String name, String value) throws OdaException {
+    if(value == null || value.trim().length() == 0) return 0;
+    try {
+      return Long.parseLong(value.trim());
+    } catch(NumberFormatException e) {
+      throw new OdaException("Invalid " + name + " property value: " + value);
+    }
+  }
+
 }
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.apache.http.protocol.HttpContext;
+import org.obiba.opal.rest.client.magma.OpalJavaClient;
+
+/**
+ * Negotiates gzip or deflate compressed responses with Opal: the requests accept these encodings, and the compressed
+ * responses are decompressed while they are read. The sizes of the compressed and decompressed responses are counted
+ * in the driver {@link Metrics}.
+ * <p>
+ * This is a stop-gap until the Opal client negotiates compression itself: the interceptors are attached to its HTTP
+ * client, reached by reflection through {@link OpalHttpClient}. When it cannot be reached, a warning is logged and the
+ * responses are not compressed.
+ */
+class ContentEncoding implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+  private static final String ACCEPT_ENCODING = "Accept-Encoding";
+
+  private static final String CONTENT_ENCODING = "Content-Encoding";
+
+  private static final Logger log = Logger.getLogger(ContentEncoding.class.getName());
+
+  /**
+   * HTTP clients on which the interceptors are installed.
+   */
+  private static final Map<AbstractHttpClient, Boolean> clients = new WeakHashMap<AbstractHttpClient, Boolean>();
+
+  private final Metrics metrics;
+
+  private ContentEncoding(Metrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Install the interceptors on the HTTP client of an Opal client, before its first request.
+   * @param opal
+   * @param metrics where the compressed and decompressed sizes are counted
+   * @return true if the interceptors are installed, false if the HTTP client of the Opal client cannot be reached
+   */
+  static boolean install(OpalJavaClient opal, Metrics metrics) {
+    AbstractHttpClient client = OpalHttpClient.get(opal);
+    if(client == null) {
+      log.warning("Opal responses are not compressed: the HTTP client of " + opal.getClass().getName() + " cannot be reached");
+      return false;
+    }
+    synchronized(clients) {
+      if(!clients.containsKey(client)) {
+        ContentEncoding encoding = new ContentEncoding(metrics);
+        client.addRequestInterceptor(encoding);
+        client.addResponseInterceptor(encoding);
+        clients.put(client, Boolean.TRUE);
+      }
+    }
+    return true;
+  }
+
+  public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+    if(!request.containsHeader(ACCEPT_ENCODING)) request.addHeader(ACCEPT_ENCODING, "gzip,deflate");
+  }
+
+  public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+    HttpEntity entity = response.getEntity();
+    if(entity == null) return;
+    Header header = entity.getContentEncoding();
+    if(header == null) header = response.getFirstHeader(CONTENT_ENCODING);
+    if(header == null) return;
+    String encoding = header.getValue().trim().toLowerCase();
+    if("gzip".equals(encoding) || "x-gzip".equals(encoding) || "deflate".equals(encoding)) {
+      response.setEntity(new DecompressingEntity(entity, encoding.endsWith("gzip")));
+      response.removeHeaders(CONTENT_ENCODING);
+      response.removeHeaders("Content-Length");
+      response.removeHeaders("Content-MD5");
+    }
+  }
+
+  /**
+   * Entity whose content is decompressed while it is read.
+   */
+  private class DecompressingEntity extends HttpEntityWrapper {
+
+    private final boolean gzip;
+
+    private DecompressingEntity(HttpEntity entity, boolean gzip) {
+      super(entity);
+      this.gzip = gzip;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      InputStream raw = wrappedEntity.getContent();
+      CountingInputStream compressed = new CountingInputStream(raw);
+      InputStream content = gzip ? new GZIPInputStream(compressed) : newInflaterInputStream(compressed);
+      return new DecompressedInputStream(content, compressed, raw);
+    }
+
+    @Override
+    public long getContentLength() {
+      return -1;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+      return null;
+    }
+  }
+
+  /**
+   * Inflate a deflate encoded stream, which is meant to have a zlib header but is raw deflate data for some servers.
+   */
+  private static InputStream newInflaterInputStream(InputStream in) throws IOException {
+    PushbackInputStream pushback = new PushbackInputStream(in, 2);
+    int b1 = pushback.read();
+    int b2 = pushback.read();
+    if(b2 >= 0) pushback.unread(b2);
+    if(b1 >= 0) pushback.unread(b1);
+    boolean zlib = b1 >= 0 && b2 >= 0 && (b1 & 0x0f) == 8 && ((b1 << 8) | b2) % 31 == 0;
+    return new InflaterInputStream(pushback, new Inflater(!zlib));
+  }
+
+  /**
+   * Counts the decompressed bytes, and reports them with the compressed ones when closed. Aborting the connection is
+   * delegated to the stream of the HTTP response, without touching the inflater that may be in use by another thread.
+   */
+  private class DecompressedInputStream extends CountingInputStream implements ConnectionReleaseTrigger {
+
+    private final CountingInputStream compressed;
+
+    private final InputStream raw;
+
+    private volatile boolean closed;
+
+    private DecompressedInputStream(InputStream in, CountingInputStream compressed, InputStream raw) {
+      super(in);
+      this.compressed = compressed;
+      this.raw = raw;
+    }
+
+    public void abortConnection() throws IOException {
+      if(raw instanceof ConnectionReleaseTrigger) {
+        ((ConnectionReleaseTrigger) raw).abortConnection();
+      } else {
+        raw.close();
+      }
+    }
+
+    public void releaseConnection() throws IOException {
+      close();
+    }
+
+    @Override
+    public void close() throws IOException {
+      if(!closed) {
+        closed = true;
+        metrics.compressed(compressed.getCount(), getCount());
+      }
+      super.close();
+    }
+  }
+
+}
@@ -109,16 +109,16 @@ public class DataSetMetaData implements IDataSetMetaData {
    * @see org.eclipse.datatools.connectivity.oda.IDataSetMetaData#supportsNamedParameters()
    */
   public boolean supportsNamedParameters() throws OdaException {
-    // TODO Auto-generated method stub
-    return false;
+    // placeholders of the entities filter script
+    return true;
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IDataSetMetaData#supportsInParameters()
    */
   public boolean supportsInParameters() throws OdaException {
-    // TODO Auto-generated method stub
-    return false;
+    // placeholders of the entities filter script
+    return true;
   }
 
   /*
@@ -133,8 +133,8 @@ public class DataSetMetaData implements IDataSetMetaData {
    * @see org.eclipse.datatools.connectivity.oda.IDataSetMetaData#getSortMode()
    */
   public int getSortMode() {
-    // TODO Auto-generated method stub
-    return IDataSetMetaData.sortModeNone;
+    // any number of sort keys, each having its own order
+    return IDataSetMetaData.sortModeColumnOrder;
   }
 
 }
@@ -0,0 +1,164 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Immutable, thread-safe parser of the ISO-8601 date times written by Opal, such as
+ * <code>2011-05-31T14:22:05.123-0400</code>. The fraction of seconds is optional and may have up to 9 digits; the
+ * zone designator is either <code>Z</code>, <code>&plusmn;hh</code>, <code>&plusmn;hhmm</code> or
+ * <code>&plusmn;hh:mm</code>. Date times without zone designator are in the time zone of the parser.
+ */
+class DateTimeParser {
+
+  private static final long MILLIS_PER_SECOND = 1000;
+
+  private static final long MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+
+  private static final long MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+
+  private static final long MILLIS_PER_DAY = 24 * MILLIS_PER_HOUR;
+
+  private static final int NANOS_PER_MILLI = 1000000;
+
+  private final TimeZone timeZone;
+
+  DateTimeParser(TimeZone timeZone) {
+    this.timeZone = (TimeZone) timeZone.clone();
+  }
+
+  /**
+   * Parse a date time.
+   * @param value
+   * @return
+   * @throws ParseException
+   */
+  Timestamp parseTimestamp(String value) throws ParseException {
+    int length = value.length();
+    if(length < 19 || value.charAt(4) != '-' || value.charAt(7) != '-' || value.charAt(10) != 'T' || value.charAt(13) != ':' || value.charAt(16) != ':') {
+      throw new ParseException("Unparseable date time: \"" + value + "\"", 0);
+    }
+    int year = field(value, 0, 4);
+    int month = field(value, 5, 7);
+    int day = field(value, 8, 10);
+    int hour = field(value, 11, 13);
+    int minute = field(value, 14, 16);
+    int second = field(value, 17, 19);
+    if(month < 1 || month > 12 || day < 1 || day > 31 || hour > 23 || minute > 59 || second > 60) {
+      throw new ParseException("Invalid date time: \"" + value + "\"", 0);
+    }
+
+    // fraction of seconds
+    int pos = 19;
+    int nanos = 0;
+    if(pos < length && value.charAt(pos) == '.') {
+      int digits = 0;
+      for(pos++; pos < length && isDigit(value.charAt(pos)); pos++) {
+        if(digits++ < 9) nanos = nanos * 10 + value.charAt(pos) - '0';
+      }
+      if(digits == 0) throw new ParseException("Missing fraction of seconds: \"" + value + "\"", pos);
+      for(; digits < 9; digits++) {
+        nanos *= 10;
+      }
+    }
+
+    long localMillis = daysFromCivil(year, month, day) * MILLIS_PER_DAY + hour * MILLIS_PER_HOUR + minute * MILLIS_PER_MINUTE + second * MILLIS_PER_SECOND + nanos / NANOS_PER_MILLI;
+    long millis = localMillis - (pos < length ? zoneOffset(value, pos) : localOffset(localMillis));
+
+    Timestamp timestamp = new Timestamp(millis);
+    timestamp.setNanos(nanos);
+    return timestamp;
+  }
+
+  /**
+   * Parse a time of the day, <code>HH:mm:ss</code>, or the time part of a date time.
+   * @param value
+   * @return
+   * @throws ParseException
+   */
+  @SuppressWarnings("deprecation")
+  Time parseTime(String value) throws ParseException {
+    if(value.length() == 8 && value.charAt(2) == ':' && value.charAt(5) == ':') {
+      int hour = field(value, 0, 2);
+      int minute = field(value, 3, 5);
+      int second = field(value, 6, 8);
+      if(hour > 23 || minute > 59 || second > 59) throw new ParseException("Invalid time: \"" + value + "\"", 0);
+      return new Time(hour, minute, second);
+    }
+    return new Time(parseTimestamp(value).getTime());
+  }
+
+  /**
+   * Offset in milliseconds of the zone designator at the given position.
+   */
+  private long zoneOffset(String value, int pos) throws ParseException {
+    int length = value.length();
+    char sign = value.charAt(pos);
+    if(sign == 'Z' && pos + 1 == length) return 0;
+    if(sign != '+' && sign != '-') throw new ParseException("Invalid zone designator: \"" + value + "\"", pos);
+
+    int hours;
+    int minutes = 0;
+    switch(length - pos) {
+    case 3: // +hh
+      hours = field(value, pos + 1, pos + 3);
+      break;
+    case 5: // +hhmm
+      hours = field(value, pos + 1, pos + 3);
+      minutes = field(value, pos + 3, pos + 5);
+      break;
+    case 6: // +hh:mm
+      if(value.charAt(pos + 3) != ':') throw new ParseException("Invalid zone designator: \"" + value + "\"", pos);
+      hours = field(value, pos + 1, pos + 3);
+      minutes = field(value, pos + 4, pos + 6);
+      break;
+    default:
+      throw new ParseException("Invalid zone designator: \"" + value + "\"", pos);
+    }
+    long offset = hours * MILLIS_PER_HOUR + minutes * MILLIS_PER_MINUTE;
+    return sign == '-' ? -offset : offset;
+  }
+
+  /**
+   * Offset in milliseconds of the parser time zone at the given local time, daylight saving included.
+   */
+  private long localOffset(long localMillis) {
+    int offset = timeZone.getOffset(localMillis - timeZone.getRawOffset());
+    return timeZone.getOffset(localMillis - offset);
+  }
+
+  private static int field(String value, int begin, int end) throws ParseException {
+    int digits = ValueDecoder.digits(value, begin, end);
+    if(digits < 0) throw new ParseException("Unparseable date time: \"" + value + "\"", begin);
+    return digits;
+  }
+
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /**
+   * Number of days since 1970-01-01 of a date of the proleptic Gregorian calendar.
+   */
+  private static long daysFromCivil(int year, int month, int day) {
+    int y = month <= 2 ? year - 1 : year;
+    int era = (y >= 0 ? y : y - 399) / 400;
+    int yearOfEra = y - era * 400;
+    int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+    int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+    return era * 146097L + dayOfEra - 719468;
+  }
+
+}
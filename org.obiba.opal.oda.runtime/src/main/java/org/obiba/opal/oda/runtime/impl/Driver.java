@@ -10,6 +10,8 @@
 
 package org.obiba.opal.oda.runtime.impl;
 
+import java.io.File;
+
 import org.eclipse.datatools.connectivity.oda.IConnection;
 import org.eclipse.datatools.connectivity.oda.IDriver;
 import org.eclipse.datatools.connectivity.oda.LogConfiguration;
@@ -24,6 +26,49 @@ import org.eclipse.datatools.connectivity.oda.util.manifest.ManifestExplorer;
 public class Driver implements IDriver {
   static String ODA_DATA_SOURCE_ID = "org.obiba.opal.oda.runtime"; //$NON-NLS-1$
 
+  /**
+   * System property for the maximum number of Opal clients shared by the connections (no limit by default).
+   */
+  public static final String MAX_CONNECTIONS_PROPERTY = "org.obiba.opal.oda.maxConnections"; //$NON-NLS-1$
+
+  /**
+   * System property for the time in milliseconds after which an unused Opal client is discarded.
+   */
+  public static final String IDLE_TIMEOUT_PROPERTY = "org.obiba.opal.oda.idleTimeout"; //$NON-NLS-1$
+
+  /**
+   * System property for the maximum number of variable lists kept in the metadata cache.
+   */
+  public static final String METADATA_CACHE_SIZE_PROPERTY = "org.obiba.opal.oda.metadataCacheSize"; //$NON-NLS-1$
+
+  /**
+   * System property for the time in milliseconds during which cached variables are considered up to date.
+   */
+  public static final String METADATA_CACHE_TTL_PROPERTY = "org.obiba.opal.oda.metadataCacheTtl"; //$NON-NLS-1$
+
+  /**
+   * System property for the directory where the value sets of the queries are cached (no disk cache by default).
+   */
+  public static final String PAGE_CACHE_DIRECTORY_PROPERTY = "org.obiba.opal.oda.pageCacheDirectory"; //$NON-NLS-1$
+
+  /**
+   * System property for the maximum size in bytes of the disk cache of value sets.
+   */
+  public static final String PAGE_CACHE_SIZE_PROPERTY = "org.obiba.opal.oda.pageCacheSize"; //$NON-NLS-1$
+
+  /**
+   * System property to disable the gzip or deflate compression of the responses of Opal (enabled by default).
+   */
+  public static final String COMPRESSION_PROPERTY = "org.obiba.opal.oda.compression"; //$NON-NLS-1$
+
+  private static final OpalClientPool clientPool = new OpalClientPool(Integer.getInteger(MAX_CONNECTIONS_PROPERTY, 0), Long.getLong(IDLE_TIMEOUT_PROPERTY, OpalClientPool.DEFAULT_IDLE_TIMEOUT));
+
+  private static final VariablesCache variablesCache = new VariablesCache(Integer.getInteger(METADATA_CACHE_SIZE_PROPERTY, VariablesCache.DEFAULT_SIZE), Long.getLong(METADATA_CACHE_TTL_PROPERTY, VariablesCache.DEFAULT_TTL));
+
+  private static final PageCache pageCache = newPageCache();
+
+  private static final Metrics metrics = newMetrics();
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IDriver#getConnection(java.lang.String)
    */
@@ -38,14 +83,14 @@ public class Driver implements IDriver {
    * LogConfiguration)
    */
   public void setLogConfiguration(LogConfiguration logConfig) throws OdaException {
-    // do nothing; assumes simple driver has no logging
+    if(logConfig != null) Metrics.configure(logConfig);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IDriver#getMaxConnections()
    */
   public int getMaxConnections() throws OdaException {
-    return 0; // no limit
+    return clientPool.getMaxSize(); // 0 means no limit
   }
 
   /*
@@ -55,6 +100,54 @@ public class Driver implements IDriver {
     // do nothing; assumes no support for pass-through context
   }
 
+  /**
+   * Returns the pool of Opal clients shared by the connections of all the driver instances.
+   */
+  static OpalClientPool getClientPool() {
+    return clientPool;
+  }
+
+  /**
+   * Returns the cache of table variables shared by the queries of all the driver instances.
+   */
+  static VariablesCache getVariablesCache() {
+    return variablesCache;
+  }
+
+  /**
+   * Returns the disk cache of value sets shared by the queries of all the driver instances.
+   * @return null if no cache directory is configured
+   */
+  static PageCache getPageCache() {
+    return pageCache;
+  }
+
+  /**
+   * Check whether the responses of Opal are to be compressed.
+   */
+  static boolean isCompressionEnabled() {
+    return !"false".equalsIgnoreCase(System.getProperty(COMPRESSION_PROPERTY));
+  }
+
+  /**
+   * Returns the request and page counters of all the connections.
+   */
+  static Metrics getMetrics() {
+    return metrics;
+  }
+
+  private static Metrics newMetrics() {
+    Metrics driverMetrics = new Metrics("Driver", null);
+    driverMetrics.register();
+    return driverMetrics;
+  }
+
+  private static PageCache newPageCache() {
+    String directory = System.getProperty(PAGE_CACHE_DIRECTORY_PROPERTY);
+    if(directory == null || directory.trim().length() == 0) return null;
+    return new PageCache(new File(directory.trim()), Long.getLong(PAGE_CACHE_SIZE_PROPERTY, PageCache.DEFAULT_SIZE), Long.getLong(METADATA_CACHE_TTL_PROPERTY, VariablesCache.DEFAULT_TTL));
+  }
+
   /**
    * Returns the object that represents this extension's manifest.
    * @throws OdaException
@@ -65,12 +158,13 @@ public class Driver implements IDriver {
 
   /**
    * Returns the native data type name of the specified code, as defined in this data source extension's manifest.
+   * @param dataSetType the id of the data set type, the manifest declaring more than one
    * @param nativeTypeCode the native data type code
    * @return corresponding native data type name
    * @throws OdaException if lookup fails
    */
-  static String getNativeDataTypeName(int nativeDataTypeCode) throws OdaException {
-    DataTypeMapping typeMapping = getManifest().getDataSetType(null).getDataTypeMapping(nativeDataTypeCode);
+  static String getNativeDataTypeName(String dataSetType, int nativeDataTypeCode) throws OdaException {
+    DataTypeMapping typeMapping = getManifest().getDataSetType(dataSetType).getDataTypeMapping(nativeDataTypeCode);
     if(typeMapping != null) return typeMapping.getNativeType();
     return "Non-defined";
   }
@@ -0,0 +1,364 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.eclipse.datatools.connectivity.oda.spec.ExpressionArguments;
+import org.eclipse.datatools.connectivity.oda.spec.ExpressionVariable;
+import org.eclipse.datatools.connectivity.oda.spec.result.FilterExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.AndExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.CompositeExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.CustomExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.NotExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.filter.OrExpression;
+
+/**
+ * Filter of the rows of a query, translated from an ODA filter specification. The filter is sent to Opal as a Magma
+ * script, for instance <code>$('SITE').eq('A').and($('VISIT').ge(2))</code>, and is also evaluated on the received
+ * rows. Supported expressions are comparisons, <code>In</code>, null checks and their combinations with
+ * <code>And</code>, <code>Or</code> and <code>Not</code>, as declared in the plugin manifest.
+ * <p>
+ * Rows are evaluated with the three-valued logic of Magma: a comparison with a null value is unknown, and so is its
+ * negation, so that a row is accepted by the same filter whether Opal applied it or not.
+ */
+@SuppressWarnings("restriction")
+abstract class EntityFilter {
+
+  /**
+   * Translate an ODA filter expression.
+   * @param expression
+   * @param metaData the columns that can be filtered
+   * @return
+   * @throws OdaException
+   * @throws UnsupportedOperationException if the expression, or one of its parts, is not supported
+   */
+  static EntityFilter parse(FilterExpression expression, ResultSetMetaData metaData) throws OdaException {
+    if(expression instanceof AndExpression) return new Composite(parseChildren((AndExpression) expression, metaData), true);
+    if(expression instanceof OrExpression) return new Composite(parseChildren((OrExpression) expression, metaData), false);
+    if(expression instanceof NotExpression) return new Not(parseChildren((NotExpression) expression, metaData).get(0));
+    if(expression instanceof CustomExpression) return parseCustom((CustomExpression) expression, metaData);
+    throw new UnsupportedOperationException("Unsupported filter: " + expression);
+  }
+
+  private static List<EntityFilter> parseChildren(CompositeExpression expression, ResultSetMetaData metaData) throws OdaException {
+    FilterExpression[] expressions = expression.getChildren();
+    if(expressions == null || expressions.length == 0) throw new UnsupportedOperationException("Empty filter: " + expression);
+    List<EntityFilter> children = new ArrayList<EntityFilter>();
+    for(FilterExpression child : expressions) {
+      children.add(parse(child, metaData));
+    }
+    return children;
+  }
+
+  private static EntityFilter parseCustom(CustomExpression expression, ResultSetMetaData metaData) throws OdaException {
+    Column column = findColumn(expression.getVariable(), metaData);
+    List<String> arguments = getArguments(expression.getArguments());
+    String id = expression.getId();
+    // expression ids may be qualified by their declaring extension
+    String operator = id == null ? "" : id.substring(id.lastIndexOf('.') + 1).toLowerCase();
+
+    if(operator.equals("isnull")) return new IsNull(column);
+    if(operator.equals("isnotnull")) return new Not(new IsNull(column));
+    if(operator.equals("in")) {
+      if(arguments.isEmpty()) throw new UnsupportedOperationException("Missing values for filter " + id);
+      List<EntityFilter> equals = new ArrayList<EntityFilter>();
+      for(String argument : arguments) {
+        equals.add(new Comparison(column, Comparison.EQ, argument));
+      }
+      return equals.size() == 1 ? equals.get(0) : new Composite(equals, false);
+    }
+
+    int comparison = Comparison.operator(operator);
+    if(comparison < 0) throw new UnsupportedOperationException("Unsupported filter: " + id);
+    if(arguments.size() != 1) throw new UnsupportedOperationException("Filter " + id + " expects one value");
+    return new Comparison(column, comparison, arguments.get(0));
+  }
+
+  private static Column findColumn(ExpressionVariable variable, ResultSetMetaData metaData) throws OdaException {
+    String name = variable == null || variable.getValueExpression() == null ? null : variable.getValueExpression().getName();
+    int index = name == null ? -1 : metaData.findColumn(name);
+    if(index < 1) throw new UnsupportedOperationException("Filter on unknown column: " + name);
+    return new Column(index, name, index == 1 ? ValueDecoder.DEFAULT : ValueDecoder.forType(metaData.getColumnType(index)));
+  }
+
+  private static List<String> getArguments(ExpressionArguments arguments) {
+    List<String> values = new ArrayList<String>();
+    if(arguments == null) return values;
+    for(int i = 0; i < arguments.valueCount(); i++) {
+      Object value = arguments.getValue(i);
+      if(value == null) throw new UnsupportedOperationException("Null filter value");
+      // Opal date times are ISO-8601
+      values.add(value instanceof Timestamp ? value.toString().replace(' ', 'T') : value.toString());
+    }
+    return values;
+  }
+
+  /**
+   * Get the Magma script selecting the entities that match this filter.
+   * @return
+   */
+  abstract String toScript();
+
+  /**
+   * Check whether a row matches this filter.
+   * @param page
+   * @param row
+   * @return
+   */
+  boolean accept(ValueSetPage page, int row) {
+    return Boolean.TRUE.equals(evaluate(page, row));
+  }
+
+  /**
+   * Evaluate this filter on a row.
+   * @param page
+   * @param row
+   * @return null if unknown, because of a null value
+   */
+  abstract Boolean evaluate(ValueSetPage page, int row);
+
+  /**
+   * Add the names of the variables this filter is evaluated on.
+   * @param variables
+   */
+  abstract void addVariables(Set<String> variables);
+
+  /**
+   * Quote a string as a javascript literal.
+   * @param value
+   * @return
+   */
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 2).append('\'');
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '\\' || c == '\'') quoted.append('\\');
+      if(c == '\n') {
+        quoted.append("\\n");
+      } else if(c == '\r') {
+        quoted.append("\\r");
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('\'').toString();
+  }
+
+  private static class Column {
+
+    private final int index;
+
+    private final String name;
+
+    private final ValueDecoder decoder;
+
+    private Column(int index, String name, ValueDecoder decoder) {
+      this.index = index;
+      this.name = name;
+      this.decoder = decoder;
+    }
+
+    private boolean isNumeric() {
+      return decoder == ValueDecoder.INTEGER || decoder == ValueDecoder.DECIMAL;
+    }
+
+    private String toScript() {
+      return index == 1 ? "$id()" : "$(" + quote(name) + ")";
+    }
+
+    private void addVariable(Set<String> variables) {
+      if(index > 1) variables.add(name);
+    }
+  }
+
+  private static class Composite extends EntityFilter {
+
+    private final List<EntityFilter> children;
+
+    private final boolean and;
+
+    private Composite(List<EntityFilter> children, boolean and) {
+      this.children = children;
+      this.and = and;
+    }
+
+    @Override
+    String toScript() {
+      StringBuilder script = new StringBuilder(children.get(0).toScript());
+      for(int i = 1; i < children.size(); i++) {
+        script.append(and ? ".and(" : ".or(").append(children.get(i).toScript()).append(')');
+      }
+      return script.toString();
+    }
+
+    @Override
+    Boolean evaluate(ValueSetPage page, int row) {
+      Boolean result = Boolean.valueOf(and);
+      for(EntityFilter child : children) {
+        Boolean value = child.evaluate(page, row);
+        if(value == null) {
+          result = null;
+        } else if(value.booleanValue() != and) {
+          return Boolean.valueOf(!and);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    void addVariables(Set<String> variables) {
+      for(EntityFilter child : children) {
+        child.addVariables(variables);
+      }
+    }
+  }
+
+  private static class Not extends EntityFilter {
+
+    private final EntityFilter child;
+
+    private Not(EntityFilter child) {
+      this.child = child;
+    }
+
+    @Override
+    String toScript() {
+      return child.toScript() + ".not()";
+    }
+
+    @Override
+    Boolean evaluate(ValueSetPage page, int row) {
+      Boolean value = child.evaluate(page, row);
+      return value == null ? null : Boolean.valueOf(!value.booleanValue());
+    }
+
+    @Override
+    void addVariables(Set<String> variables) {
+      child.addVariables(variables);
+    }
+  }
+
+  private static class IsNull extends EntityFilter {
+
+    private final Column column;
+
+    private IsNull(Column column) {
+      this.column = column;
+    }
+
+    @Override
+    String toScript() {
+      return column.toScript() + ".isNull()";
+    }
+
+    @Override
+    Boolean evaluate(ValueSetPage page, int row) {
+      return Boolean.valueOf(page.isNull(row, column.index));
+    }
+
+    @Override
+    void addVariables(Set<String> variables) {
+      column.addVariable(variables);
+    }
+  }
+
+  private static class Comparison extends EntityFilter {
+
+    static final int EQ = 0;
+
+    private static final String[] OPERATORS = { "eq", "ne", "lt", "le", "gt", "ge" };
+
+    private static final String[] NAMES = { "equal", "notequal", "lessthan", "lessthanorequal", "greaterthan", "greaterthanorequal" };
+
+    private final Column column;
+
+    private final int operator;
+
+    private final String value;
+
+    private final double number;
+
+    private Comparison(Column column, int operator, String value) {
+      this.column = column;
+      this.operator = operator;
+      this.value = value;
+      double parsed = column.isNumeric() ? parseNumber(value) : Double.NaN;
+      // an infinite value has no script literal, it is compared as text
+      this.number = Double.isInfinite(parsed) ? Double.NaN : parsed;
+    }
+
+    /**
+     * Get the comparison operator of an ODA expression id, such as <code>Equal</code> or <code>eq</code>.
+     * @return -1 if not a comparison
+     */
+    static int operator(String id) {
+      for(int i = 0; i < OPERATORS.length; i++) {
+        if(OPERATORS[i].equals(id) || NAMES[i].equals(id)) return i;
+      }
+      return -1;
+    }
+
+    @Override
+    String toScript() {
+      // the parsed number, not its text: the script engine reads 010 as octal and rejects 1f or 0x1p3
+      String literal = Double.isNaN(number) ? quote(value) : BigDecimal.valueOf(number).stripTrailingZeros().toPlainString();
+      if(OPERATORS[operator].equals("ne")) return column.toScript() + ".eq(" + literal + ").not()";
+      return column.toScript() + "." + OPERATORS[operator] + "(" + literal + ")";
+    }
+
+    @Override
+    Boolean evaluate(ValueSetPage page, int row) {
+      if(page.isNull(row, column.index)) return null;
+      String cell = page.getString(row, column.index);
+      int result;
+      double cellNumber = Double.isNaN(number) ? Double.NaN : parseNumber(cell);
+      if(Double.isNaN(cellNumber)) {
+        result = cell.compareTo(value);
+      } else {
+        result = Double.compare(cellNumber, number);
+      }
+      switch(operator) {
+      case 0:
+        return Boolean.valueOf(result == 0);
+      case 1:
+        return Boolean.valueOf(result != 0);
+      case 2:
+        return Boolean.valueOf(result < 0);
+      case 3:
+        return Boolean.valueOf(result <= 0);
+      case 4:
+        return Boolean.valueOf(result > 0);
+      default:
+        return Boolean.valueOf(result >= 0);
+      }
+    }
+
+    @Override
+    void addVariables(Set<String> variables) {
+      column.addVariable(variables);
+    }
+
+    private static double parseNumber(String value) {
+      try {
+        return ValueDecoder.parseDouble(value);
+      } catch(NumberFormatException e) {
+        return Double.NaN;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,391 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+
+/**
+ * Sorts the rows of a page source. Rows are sorted in memory as long as they fit in the memory limit; beyond it,
+ * sorted runs are written to temporary files and merged while the sorted rows are read. Values of integer and decimal
+ * columns are compared as numbers, other values as strings, null values being lower than any other value.
+ */
+class ExternalSort implements PageSource {
+
+  static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+
+  private static final int PAGE_SIZE = 1000;
+
+  /**
+   * Maximum number of runs merged at once.
+   */
+  private static final int MAX_FAN_IN = 64;
+
+  private static final int NULL_LENGTH = -1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final PageSource source;
+
+  private final PageFactory pageFactory;
+
+  private final int[] keyColumns;
+
+  private final boolean[] descending;
+
+  private final long memoryLimit;
+
+  private final int columnCount;
+
+  private final Comparator<SortedRow> comparator;
+
+  private final List<File> runs = new ArrayList<File>();
+
+  private final List<RunReader> readers = new ArrayList<RunReader>();
+
+  private RowIterator sortedRows;
+
+  private volatile boolean cancelled;
+
+  /**
+   * @param source the rows to be sorted
+   * @param pageFactory creates the pages of sorted rows
+   * @param keyColumns the 1-based column index of each sort key
+   * @param descending whether each sort key is in descending order
+   * @param memoryLimit approximate number of bytes of rows kept in memory
+   */
+  ExternalSort(PageSource source, PageFactory pageFactory, int[] keyColumns, boolean[] descending, long memoryLimit) {
+    this.source = source;
+    this.pageFactory = pageFactory;
+    this.keyColumns = keyColumns;
+    this.descending = descending;
+    this.memoryLimit = memoryLimit;
+    this.columnCount = pageFactory.getColumnCount();
+    this.comparator = new Comparator<SortedRow>() {
+      public int compare(SortedRow r1, SortedRow r2) {
+        return compareKeys(r1.keys, r2.keys);
+      }
+    };
+  }
+
+  public ValueSetPage nextPage() throws OdaException {
+    try {
+      if(sortedRows == null) sortedRows = sort();
+      List<String[]> rows = new ArrayList<String[]>();
+      String[] row;
+      while(rows.size() < PAGE_SIZE && !cancelled && (row = sortedRows.next()) != null) {
+        rows.add(row);
+      }
+      if(rows.isEmpty()) return null;
+      return pageFactory.newPage(rows.toArray(new String[rows.size()][]));
+    } catch(IOException e) {
+      throw new OdaException(e);
+    }
+  }
+
+  public void close() {
+    source.close();
+    for(RunReader reader : readers) {
+      reader.close();
+    }
+    readers.clear();
+    for(File run : runs) {
+      run.delete();
+    }
+    runs.clear();
+  }
+
+  public void cancel() {
+    cancelled = true;
+    source.cancel();
+  }
+
+  /**
+   * Read all the rows of the source, spilling sorted runs to disk when the memory limit is reached.
+   */
+  private RowIterator sort() throws OdaException, IOException {
+    List<SortedRow> buffer = new ArrayList<SortedRow>();
+    long bytes = 0;
+    ValueSetPage page;
+    while(!cancelled && (page = source.nextPage()) != null) {
+      for(int row = 0; row < page.size(); row++) {
+        String[] values = new String[columnCount + 1];
+        for(int column = 1; column <= columnCount; column++) {
+          values[column] = page.isNull(row, column) ? null : page.getString(row, column);
+        }
+        buffer.add(new SortedRow(values, keys(values)));
+        bytes += estimateSize(values);
+        if(bytes > memoryLimit) {
+          runs.add(writeRun(sorted(buffer)));
+          buffer.clear();
+          bytes = 0;
+        }
+      }
+    }
+
+    if(runs.isEmpty()) return sorted(buffer);
+    if(!buffer.isEmpty()) runs.add(writeRun(sorted(buffer)));
+    buffer = null;
+
+    // merge consecutive runs by groups until they can all be merged at once, keeping the runs in row order
+    while(runs.size() > MAX_FAN_IN) {
+      List<File> merged = new ArrayList<File>();
+      while(!runs.isEmpty()) {
+        List<File> group = new ArrayList<File>(runs.subList(0, Math.min(MAX_FAN_IN, runs.size())));
+        runs.subList(0, group.size()).clear();
+        merged.add(mergeRuns(group));
+      }
+      runs.addAll(merged);
+    }
+    return new MergedRows(runs);
+  }
+
+  private File mergeRuns(List<File> group) throws IOException {
+    MergedRows rows = new MergedRows(group);
+    try {
+      return writeRun(rows);
+    } finally {
+      rows.close();
+      for(File run : group) {
+        run.delete();
+      }
+    }
+  }
+
+  /**
+   * Sort the rows held in memory.
+   */
+  private RowIterator sorted(List<SortedRow> rows) {
+    Collections.sort(rows, comparator);
+    final Iterator<SortedRow> it = rows.iterator();
+    return new RowIterator() {
+      public String[] next() {
+        return it.hasNext() ? it.next().values : null;
+      }
+    };
+  }
+
+  /**
+   * Write sorted rows to a temporary file.
+   */
+  private File writeRun(RowIterator rows) throws IOException {
+    File run = File.createTempFile("opal-oda-sort", ".run");
+    run.deleteOnExit();
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+    try {
+      String[] values;
+      while((values = rows.next()) != null) {
+        for(int column = 1; column <= columnCount; column++) {
+          if(values[column] == null) {
+            out.writeInt(NULL_LENGTH);
+          } else {
+            byte[] bytes = values[column].getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+          }
+        }
+      }
+    } finally {
+      out.close();
+    }
+    return run;
+  }
+
+  private Object[] keys(String[] values) {
+    Object[] keys = new Object[keyColumns.length];
+    for(int i = 0; i < keyColumns.length; i++) {
+      keys[i] = key(values[keyColumns[i]], pageFactory.getDecoder(keyColumns[i]));
+    }
+    return keys;
+  }
+
+  private static Object key(String value, ValueDecoder decoder) {
+    if(value == null) return null;
+    try {
+      if(decoder == ValueDecoder.INTEGER) return ValueDecoder.parseLong(value);
+      if(decoder == ValueDecoder.DECIMAL) return ValueDecoder.parseDouble(value);
+    } catch(NumberFormatException e) {
+      // compared as a string
+    }
+    return value;
+  }
+
+  private int compareKeys(Object[] keys1, Object[] keys2) {
+    for(int i = 0; i < keys1.length; i++) {
+      int result = compareKey(keys1[i], keys2[i]);
+      if(result != 0) return descending[i] ? -result : result;
+    }
+    return 0;
+  }
+
+  /**
+   * Compare keys of the same column: nulls come first, then the numbers, then the values that could not be parsed as
+   * numbers. Keys are only compared with keys of the same kind, so that the order is total.
+   */
+  @SuppressWarnings({ "unchecked", "rawtypes" })
+  private static int compareKey(Object key1, Object key2) {
+    int rank1 = rank(key1);
+    int rank2 = rank(key2);
+    if(rank1 != rank2) return rank1 < rank2 ? -1 : 1;
+    if(key1 == null) return 0;
+    if(key1.getClass() == key2.getClass()) return ((Comparable) key1).compareTo(key2);
+    // a long and a double, not expected in the same column
+    return Double.compare(((Number) key1).doubleValue(), ((Number) key2).doubleValue());
+  }
+
+  private static int rank(Object key) {
+    if(key == null) return 0;
+    return key instanceof Number ? 1 : 2;
+  }
+
+  private static long estimateSize(String[] values) {
+    long size = 16 + 4L * values.length;
+    for(String value : values) {
+      if(value != null) size += 40 + 2L * value.length();
+    }
+    // the row and its keys
+    return size + 64;
+  }
+
+  private interface RowIterator {
+
+    /**
+     * @return the next row, or null if there is no more rows
+     */
+    String[] next() throws IOException;
+  }
+
+  private static class SortedRow {
+
+    private final String[] values;
+
+    private final Object[] keys;
+
+    private SortedRow(String[] values, Object[] keys) {
+      this.values = values;
+      this.keys = keys;
+    }
+  }
+
+  /**
+   * Reads the rows of a run file, in order.
+   */
+  private class RunReader {
+
+    private final DataInputStream in;
+
+    private final int index;
+
+    private byte[] bytes = new byte[256];
+
+    private RunReader(File run, int index) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+      this.index = index;
+    }
+
+    private SortedRow next() throws IOException {
+      String[] values = new String[columnCount + 1];
+      for(int column = 1; column <= columnCount; column++) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch(EOFException e) {
+          if(column == 1) return null;
+          throw e;
+        }
+        if(length == NULL_LENGTH) continue;
+        if(length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+        in.readFully(bytes, 0, length);
+        values[column] = new String(bytes, 0, length, "UTF-8");
+      }
+      return new SortedRow(values, keys(values));
+    }
+
+    private void close() {
+      try {
+        in.close();
+      } catch(IOException e) {
+        // ignore
+      }
+    }
+  }
+
+  /**
+   * Merges sorted runs, rows with equal keys being returned in the order of their runs.
+   */
+  private class MergedRows implements RowIterator {
+
+    private final PriorityQueue<Head> heads;
+
+    private final List<RunReader> mergedReaders = new ArrayList<RunReader>();
+
+    private MergedRows(List<File> runs) throws IOException {
+      heads = new PriorityQueue<Head>(Math.max(1, runs.size()));
+      for(File run : runs) {
+        RunReader reader = new RunReader(run, mergedReaders.size());
+        mergedReaders.add(reader);
+        readers.add(reader);
+        advance(reader);
+      }
+    }
+
+    public String[] next() throws IOException {
+      Head head = heads.poll();
+      if(head == null) return null;
+      advance(head.reader);
+      return head.row.values;
+    }
+
+    private void advance(RunReader reader) throws IOException {
+      SortedRow row = reader.next();
+      if(row != null) heads.add(new Head(row, reader));
+    }
+
+    private void close() {
+      for(RunReader reader : mergedReaders) {
+        reader.close();
+        readers.remove(reader);
+      }
+    }
+
+    private class Head implements Comparable<Head> {
+
+      private final SortedRow row;
+
+      private final RunReader reader;
+
+      private Head(SortedRow row, RunReader reader) {
+        this.row = row;
+        this.reader = reader;
+      }
+
+      public int compareTo(Head other) {
+        int result = comparator.compare(row, other.row);
+        return result == 0 ? reader.index - other.reader.index : result;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+
+/**
+ * Keeps the rows of a page source that match a filter. Pages in which all the rows match, as expected when Opal
+ * applied the filter, are passed through as they are.
+ */
+class FilteredPages implements PageSource {
+
+  private final PageSource source;
+
+  private final EntityFilter filter;
+
+  private final PageFactory pageFactory;
+
+  FilteredPages(PageSource source, EntityFilter filter, PageFactory pageFactory) {
+    this.source = source;
+    this.filter = filter;
+    this.pageFactory = pageFactory;
+  }
+
+  public ValueSetPage nextPage() throws OdaException {
+    ValueSetPage page;
+    while((page = source.nextPage()) != null) {
+      List<String[]> rows = null;
+      for(int row = 0; row < page.size(); row++) {
+        boolean accepted = filter.accept(page, row);
+        if(!accepted && rows == null) {
+          // copy the rows accepted so far
+          rows = new ArrayList<String[]>();
+          for(int previous = 0; previous < row; previous++) {
+            rows.add(getRow(page, previous));
+          }
+        } else if(accepted && rows != null) {
+          rows.add(getRow(page, row));
+        }
+      }
+      if(rows == null) return page;
+      if(!rows.isEmpty()) return pageFactory.newPage(rows.toArray(new String[rows.size()][]));
+    }
+    return null;
+  }
+
+  public void close() {
+    source.close();
+  }
+
+  public void cancel() {
+    source.cancel();
+  }
+
+  private String[] getRow(ValueSetPage page, int row) {
+    String[] values = new String[pageFactory.getColumnCount() + 1];
+    for(int column = 1; column < values.length; column++) {
+      values[column] = page.getString(row, column);
+    }
+    return values;
+  }
+
+}
@@ -0,0 +1,522 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+
+/**
+ * Joins the rows of two queries on their entity identifier. The rows of the right query are read first into a hash
+ * table, then the rows of the left query are streamed and matched against it, so that the joined rows come in the order
+ * of the left query. When the right rows do not fit in the memory limit, the rows of both queries are partitioned by
+ * entity identifier into temporary files and each pair of partitions is joined in turn: the joined rows then come
+ * partition by partition. A right partition that does not fit in the memory limit either is partitioned again, with a
+ * different hash of the entity identifiers, together with the left partition.
+ * <p>
+ * A joined row has the columns of the left row followed by the columns of the right row but its entity identifier. An
+ * inner join drops the left rows without a match, a left join completes them with null values.
+ */
+class HashJoin implements PageSource {
+
+  static final long DEFAULT_MEMORY = 64 * 1024 * 1024;
+
+  private static final int PAGE_SIZE = 1000;
+
+  private static final int PARTITIONS = 32;
+
+  /**
+   * Levels of partitioning after which a partition is hashed whatever its size, as the rows of a single entity cannot be
+   * split.
+   */
+  private static final int MAX_LEVELS = 4;
+
+  private static final int NULL_LENGTH = -1;
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Query left;
+
+  private final Query right;
+
+  private final PageFactory pageFactory;
+
+  private final boolean outer;
+
+  private final long memoryLimit;
+
+  private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+  private final List<Partitions> partitions = new ArrayList<Partitions>();
+
+  private int leftColumnCount;
+
+  private int rightColumnCount;
+
+  private RowIterator joinedRows;
+
+  private volatile boolean cancelled;
+
+  /**
+   * @param left the query whose rows are streamed
+   * @param right the query whose rows are hashed
+   * @param pageFactory creates the pages of joined rows
+   * @param outer true for a left join, false for an inner join
+   * @param memoryLimit approximate number of bytes of right rows kept in memory
+   */
+  HashJoin(Query left, Query right, PageFactory pageFactory, boolean outer, long memoryLimit) {
+    this.left = left;
+    this.right = right;
+    this.pageFactory = pageFactory;
+    this.outer = outer;
+    this.memoryLimit = memoryLimit;
+  }
+
+  public ValueSetPage nextPage() throws OdaException {
+    try {
+      if(joinedRows == null) joinedRows = join();
+      List<String[]> rows = new ArrayList<String[]>();
+      String[] row;
+      while(rows.size() < PAGE_SIZE && !cancelled && (row = joinedRows.next()) != null) {
+        rows.add(row);
+      }
+      if(rows.isEmpty()) return null;
+      return pageFactory.newPage(rows.toArray(new String[rows.size()][]));
+    } catch(IOException e) {
+      throw new OdaException(e);
+    }
+  }
+
+  public void close() {
+    for(ResultSet resultSet : resultSets) {
+      try {
+        resultSet.close();
+      } catch(OdaException e) {
+        // ignore
+      }
+    }
+    resultSets.clear();
+    for(Partitions partition : partitions) {
+      partition.delete();
+    }
+    partitions.clear();
+  }
+
+  public void cancel() {
+    cancelled = true;
+    cancel(left);
+    cancel(right);
+  }
+
+  private static void cancel(Query query) {
+    try {
+      query.cancel();
+    } catch(OdaException e) {
+      // the query stops at its next request
+    }
+  }
+
+  /**
+   * Hash the right rows, partitioning them when the memory limit is reached, and prepare the matching of the left rows.
+   */
+  private RowIterator join() throws OdaException, IOException {
+    leftColumnCount = left.getMetaData().getColumnCount();
+    rightColumnCount = right.getMetaData().getColumnCount();
+
+    ResultSet rightRows = execute(right);
+    Map<String, List<String[]>> table = new HashMap<String, List<String[]>>();
+    Partitions rightPartitions = null;
+    long bytes = 0;
+    while(!cancelled && rightRows.next()) {
+      String[] row = read(rightRows, rightColumnCount);
+      if(rightPartitions != null) {
+        rightPartitions.write(row);
+        continue;
+      }
+      put(table, row);
+      bytes += estimateSize(row);
+      if(bytes > memoryLimit) {
+        rightPartitions = new Partitions(rightColumnCount, 0);
+        rightPartitions.write(table);
+      }
+    }
+    close(rightRows);
+
+    final ResultSet leftRows = execute(left);
+    if(rightPartitions == null) {
+      return new Probe(table, new RowIterator() {
+        public String[] next() throws OdaException {
+          return !cancelled && leftRows.next() ? read(leftRows, leftColumnCount) : null;
+        }
+      });
+    }
+
+    // the right rows did not fit in memory, neither would the left ones
+    rightPartitions.finish();
+    Partitions leftPartitions = new Partitions(leftColumnCount, 0);
+    while(!cancelled && leftRows.next()) {
+      leftPartitions.write(read(leftRows, leftColumnCount));
+    }
+    close(leftRows);
+    leftPartitions.finish();
+    return new PartitionedProbe(leftPartitions, rightPartitions);
+  }
+
+  private ResultSet execute(Query query) throws OdaException {
+    ResultSet resultSet = (ResultSet) query.executeQuery();
+    resultSets.add(resultSet);
+    return resultSet;
+  }
+
+  private void close(ResultSet resultSet) throws OdaException {
+    resultSets.remove(resultSet);
+    resultSet.close();
+  }
+
+  private static String[] read(ResultSet resultSet, int columnCount) throws OdaException {
+    String[] values = new String[columnCount + 1];
+    for(int column = 1; column <= columnCount; column++) {
+      values[column] = resultSet.getString(column);
+    }
+    return values;
+  }
+
+  private static void put(Map<String, List<String[]>> table, String[] row) {
+    List<String[]> rows = table.get(row[1]);
+    if(rows == null) {
+      // most entities have a single row
+      rows = new ArrayList<String[]>(1);
+      table.put(row[1], rows);
+    }
+    rows.add(row);
+  }
+
+  /**
+   * Concatenate a left row and the columns of a right row but its entity identifier.
+   * @param leftRow
+   * @param rightRow null for a left row without a match
+   * @return
+   */
+  private String[] joined(String[] leftRow, String[] rightRow) {
+    String[] values = new String[leftColumnCount + rightColumnCount];
+    System.arraycopy(leftRow, 1, values, 1, leftColumnCount);
+    if(rightRow != null) System.arraycopy(rightRow, 2, values, leftColumnCount + 1, rightColumnCount - 1);
+    return values;
+  }
+
+  private static long estimateSize(String[] values) {
+    long size = 16 + 4L * values.length;
+    for(String value : values) {
+      if(value != null) size += 40 + 2L * value.length();
+    }
+    // the row and its hash table entry
+    return size + 64;
+  }
+
+  private interface RowIterator {
+
+    /**
+     * @return the next row, or null if there is no more rows
+     */
+    String[] next() throws OdaException, IOException;
+  }
+
+  /**
+   * Matches left rows against the right rows of a hash table.
+   */
+  private class Probe implements RowIterator {
+
+    private final Map<String, List<String[]>> table;
+
+    private final RowIterator leftRows;
+
+    private String[] leftRow;
+
+    private List<String[]> matches = Collections.emptyList();
+
+    private int match;
+
+    private boolean done;
+
+    private Probe(Map<String, List<String[]>> table, RowIterator leftRows) {
+      this.table = table;
+      this.leftRows = leftRows;
+    }
+
+    public String[] next() throws OdaException, IOException {
+      while(match >= matches.size()) {
+        leftRow = done ? null : leftRows.next();
+        if(leftRow == null) {
+          // the left rows may not be read again once at their end
+          done = true;
+          return null;
+        }
+        match = 0;
+        matches = leftRow[1] == null ? null : table.get(leftRow[1]);
+        if(matches == null) {
+          matches = Collections.emptyList();
+          if(outer) return joined(leftRow, null);
+        }
+      }
+      return joined(leftRow, matches.get(match++));
+    }
+  }
+
+  /**
+   * Joins each partition of the left rows with the same partition of the right rows.
+   */
+  private class PartitionedProbe implements RowIterator {
+
+    private final Partitions leftPartitions;
+
+    private final Partitions rightPartitions;
+
+    private int partition = -1;
+
+    private RowIterator probe;
+
+    private PartitionedProbe(Partitions leftPartitions, Partitions rightPartitions) {
+      this.leftPartitions = leftPartitions;
+      this.rightPartitions = rightPartitions;
+    }
+
+    public String[] next() throws OdaException, IOException {
+      while(!cancelled && partition < PARTITIONS) {
+        String[] row = probe == null ? null : probe.next();
+        if(row != null) return row;
+        probe = ++partition < PARTITIONS ? newProbe() : null;
+      }
+      return null;
+    }
+
+    /**
+     * Hash the right rows of the current partition, or partition them again with the left rows if they do not fit in
+     * the memory limit.
+     */
+    private RowIterator newProbe() throws IOException {
+      Map<String, List<String[]>> table = new HashMap<String, List<String[]>>();
+      Partitions repartitioned = null;
+      long bytes = 0;
+      PartitionReader rightRows = rightPartitions.read(partition);
+      try {
+        String[] row;
+        while((row = rightRows.next()) != null) {
+          if(repartitioned != null) {
+            repartitioned.write(row);
+            continue;
+          }
+          put(table, row);
+          bytes += estimateSize(row);
+          if(bytes > memoryLimit && rightPartitions.level + 1 < MAX_LEVELS) {
+            repartitioned = new Partitions(rightColumnCount, rightPartitions.level + 1);
+            repartitioned.write(table);
+          }
+        }
+      } finally {
+        rightRows.close();
+        rightPartitions.delete(partition);
+      }
+      if(repartitioned != null) {
+        repartitioned.finish();
+        return new PartitionedProbe(repartition(), repartitioned);
+      }
+      final PartitionReader leftRows = leftPartitions.read(partition);
+      return new Probe(table, new RowIterator() {
+        public String[] next() throws IOException {
+          String[] row = leftRows.next();
+          if(row == null) {
+            leftRows.close();
+            leftPartitions.delete(partition);
+          }
+          return row;
+        }
+      });
+    }
+
+    /**
+     * Partition the left rows of the current partition at the next level.
+     */
+    private Partitions repartition() throws IOException {
+      Partitions repartitioned = new Partitions(leftColumnCount, leftPartitions.level + 1);
+      PartitionReader leftRows = leftPartitions.read(partition);
+      try {
+        String[] row;
+        while((row = leftRows.next()) != null) {
+          repartitioned.write(row);
+        }
+      } finally {
+        leftRows.close();
+        leftPartitions.delete(partition);
+      }
+      repartitioned.finish();
+      return repartitioned;
+    }
+  }
+
+  /**
+   * Temporary files of rows, split by the hash of their entity identifier.
+   */
+  private class Partitions {
+
+    private final int columnCount;
+
+    /**
+     * Number of times the rows were partitioned, which gives the hash of their entity identifier.
+     */
+    private final int level;
+
+    private final File[] files = new File[PARTITIONS];
+
+    private final DataOutputStream[] outs = new DataOutputStream[PARTITIONS];
+
+    private final List<PartitionReader> readers = new ArrayList<PartitionReader>();
+
+    private Partitions(int columnCount, int level) throws IOException {
+      this.columnCount = columnCount;
+      this.level = level;
+      partitions.add(this);
+      for(int i = 0; i < PARTITIONS; i++) {
+        files[i] = File.createTempFile("opal-oda-join", ".part");
+        files[i].deleteOnExit();
+        outs[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(files[i]), BUFFER_SIZE / PARTITIONS));
+      }
+    }
+
+    private void write(String[] values) throws IOException {
+      DataOutputStream out = outs[partition(values[1])];
+      for(int column = 1; column <= columnCount; column++) {
+        if(values[column] == null) {
+          out.writeInt(NULL_LENGTH);
+        } else {
+          byte[] bytes = values[column].getBytes("UTF-8");
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+      }
+    }
+
+    /**
+     * Write the rows of a hash table, which is then cleared.
+     */
+    private void write(Map<String, List<String[]>> table) throws IOException {
+      for(List<String[]> rows : table.values()) {
+        for(String[] row : rows) {
+          write(row);
+        }
+      }
+      table.clear();
+    }
+
+    private int partition(String identifier) {
+      if(identifier == null) return 0;
+      // mixed with the level, so that the rows of a partition are split by the next level
+      int hash = identifier.hashCode() + level * 0x9e3779b9;
+      hash ^= hash >>> 16;
+      hash *= 0x85ebca6b;
+      hash ^= hash >>> 13;
+      hash *= 0xc2b2ae35;
+      hash ^= hash >>> 16;
+      return (hash & 0x7fffffff) % PARTITIONS;
+    }
+
+    private void finish() throws IOException {
+      for(int i = 0; i < PARTITIONS; i++) {
+        if(outs[i] != null) outs[i].close();
+        outs[i] = null;
+      }
+    }
+
+    private PartitionReader read(int partition) throws IOException {
+      PartitionReader reader = new PartitionReader(files[partition], columnCount);
+      readers.add(reader);
+      return reader;
+    }
+
+    private void delete(int partition) {
+      if(files[partition] != null) files[partition].delete();
+      files[partition] = null;
+    }
+
+    private void delete() {
+      for(PartitionReader reader : readers) {
+        reader.close();
+      }
+      readers.clear();
+      for(int i = 0; i < PARTITIONS; i++) {
+        if(outs[i] != null) {
+          try {
+            outs[i].close();
+          } catch(IOException e) {
+            // ignore
+          }
+          outs[i] = null;
+        }
+        delete(i);
+      }
+    }
+  }
+
+  /**
+   * Reads the rows of a partition file.
+   */
+  private static class PartitionReader {
+
+    private final DataInputStream in;
+
+    private final int columnCount;
+
+    private byte[] bytes = new byte[256];
+
+    private PartitionReader(File file, int columnCount) throws IOException {
+      this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE));
+      this.columnCount = columnCount;
+    }
+
+    private String[] next() throws IOException {
+      String[] values = new String[columnCount + 1];
+      for(int column = 1; column <= columnCount; column++) {
+        int length;
+        try {
+          length = in.readInt();
+        } catch(EOFException e) {
+          if(column == 1) return null;
+          throw e;
+        }
+        if(length == NULL_LENGTH) continue;
+        if(length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+        in.readFully(bytes, 0, length);
+        values[column] = new String(bytes, 0, length, "UTF-8");
+      }
+      return values;
+    }
+
+    private void close() {
+      try {
+        in.close();
+      } catch(IOException e) {
+        // ignore
+      }
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.eclipse.datatools.connectivity.oda.spec.QuerySpecification;
+import org.eclipse.datatools.connectivity.oda.spec.result.ResultSetSpecification;
+import org.obiba.opal.web.model.Magma.VariableDto;
+
+/**
+ * Query of the join data set: the rows of the table of the data set properties are joined on their entity identifier
+ * with the rows of the table of the <code>RIGHT_</code> properties, by a {@link HashJoin}. Both tables are read
+ * through the paging of their own {@link Query}, which get the paging properties of the data set. The input
+ * parameters apply to the entities filter of the left table.
+ * <p>
+ * The columns are the ones of the left table followed by the variables of the right table, prefixed by the name of the
+ * right table when their name is taken by a left column. Joined rows are sorted by the result set, as the rows of any
+ * other query.
+ */
+public class JoinQuery extends Query {
+
+  public static final String DATA_SET_TYPE = "org.obiba.opal.oda.runtime.joinDataSet";
+
+  public static final String RIGHT_DATASOURCE = "RIGHT_DATASOURCE";
+
+  public static final String RIGHT_TABLE = "RIGHT_TABLE";
+
+  public static final String RIGHT_SELECT = "RIGHT_SELECT";
+
+  public static final String RIGHT_WHERE = "RIGHT_WHERE";
+
+  /**
+   * <code>INNER</code> (default) or <code>LEFT</code>.
+   */
+  public static final String JOIN = "JOIN";
+
+  public static final String JOIN_MEMORY = "JOIN_MEMORY";
+
+  private static final String RIGHT_PREFIX = "RIGHT_";
+
+  /**
+   * Properties of the left table only, the other ones apply to both tables.
+   */
+  private static final Set<String> TABLE_PROPERTIES = new HashSet<String>(Arrays.asList(DATASOURCE, TABLE, SELECT, WHERE, COLUMNS));
+
+  private final Query left;
+
+  private final Query right;
+
+  private String join;
+
+  private long joinMemory = HashJoin.DEFAULT_MEMORY;
+
+  /**
+   * @param connection
+   */
+  public JoinQuery(Connection connection) {
+    super(connection);
+    this.left = new Query(connection) {
+      @Override
+      String getEntitiesScript() throws OdaException {
+        // bound to the input parameters of the join query
+        return JoinQuery.this.getEntitiesScript();
+      }
+    };
+    this.right = new Query(connection);
+  }
+
+  @Override
+  public void close() throws OdaException {
+    left.close();
+    right.close();
+    super.close();
+  }
+
+  @Override
+  public IResultSetMetaData getMetaData() throws OdaException {
+    return new ResultSetMetaData(DATA_SET_TYPE, getVariables());
+  }
+
+  @Override
+  String getDataSetType() {
+    return DATA_SET_TYPE;
+  }
+
+  /**
+   * Get the variables of the left table followed by the ones of the right table.
+   */
+  @Override
+  List<VariableDto> getVariables() throws OdaException {
+    List<VariableDto> leftVariables = left.getVariables();
+    List<VariableDto> variables = new ArrayList<VariableDto>(leftVariables);
+    Set<String> names = new HashSet<String>();
+    names.add(((ResultSetMetaData) left.getMetaData()).getEntityIdentifierColumnName());
+    for(VariableDto variable : leftVariables) {
+      names.add(variable.getName());
+    }
+    for(VariableDto variable : right.getVariables()) {
+      if(names.contains(variable.getName())) {
+        variable = VariableDto.newBuilder(variable).setName(right.getTable() + "." + variable.getName()).build();
+      }
+      variables.add(variable);
+    }
+    return variables;
+  }
+
+  @Override
+  ResultSet newResultSet() throws OdaException {
+    long memory = joinMemory;
+    MemoryBudget budget = getConnection().getMemoryBudget();
+    // the hashed rows count in the budget of the connection as well
+    if(budget.isLimited()) memory = Math.min(memory, budget.getMaxBytes() / 2);
+    PageFactory pageFactory = new PageFactory((ResultSetMetaData) getMetaData(), isColumnar(), getMetrics());
+    return new ResultSet(this, new HashJoin(left, right, pageFactory, "LEFT".equalsIgnoreCase(join), memory));
+  }
+
+  @Override
+  public void setProperty(String name, String value) throws OdaException {
+    super.setProperty(name, value);
+    if(JOIN.equals(name)) {
+      join = value;
+    } else if(JOIN_MEMORY.equals(name)) {
+      joinMemory = parseBytes(JOIN_MEMORY, value, HashJoin.DEFAULT_MEMORY);
+    } else if(name.startsWith(RIGHT_PREFIX)) {
+      right.setProperty(name.substring(RIGHT_PREFIX.length()), value);
+    } else {
+      left.setProperty(name, value);
+      if(!TABLE_PROPERTIES.contains(name)) right.setProperty(name, value);
+    }
+  }
+
+  /*
+   * @see org.eclipse.datatools.connectivity.oda.IQuery#setSpecification(org.eclipse.datatools.connectivity.oda.spec.
+   * QuerySpecification)
+   */
+  @Override
+  @SuppressWarnings("restriction")
+  public void setSpecification(QuerySpecification querySpec) throws OdaException, UnsupportedOperationException {
+    ResultSetSpecification resultSpec = querySpec == null ? null : querySpec.getResultSetSpecification();
+    if(resultSpec != null && resultSpec.getFilterSpecification() != null) throw new UnsupportedOperationException("Joined rows are not filtered by the driver.");
+    // the hidden columns of a projection are still read from both tables
+    super.setSpecification(querySpec);
+  }
+
+}
@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+/**
+ * Bytes of value sets that the queries of a connection may keep in memory: the pages received and not yet read past
+ * by their result set. The budget is not a hard limit, as received pages are always accounted for, but the fetchers
+ * request smaller pages and stop reading ahead when it is reached, until the pages are read.
+ */
+class MemoryBudget {
+
+  private final long maxBytes;
+
+  private long usedBytes;
+
+  /**
+   * @param maxBytes the budget in bytes, zero or less for no limit
+   */
+  MemoryBudget(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  boolean isLimited() {
+    return maxBytes > 0;
+  }
+
+  long getMaxBytes() {
+    return maxBytes;
+  }
+
+  synchronized long getUsedBytes() {
+    return usedBytes;
+  }
+
+  /**
+   * Get the bytes that can still be used.
+   * @return {@link Long#MAX_VALUE} if there is no limit
+   */
+  synchronized long getAvailableBytes() {
+    return isLimited() ? Math.max(0, maxBytes - usedBytes) : Long.MAX_VALUE;
+  }
+
+  /**
+   * Account for bytes held in memory, even beyond the budget.
+   * @param bytes
+   */
+  synchronized void reserve(long bytes) {
+    usedBytes += bytes;
+  }
+
+  /**
+   * Give back bytes that were accounted for by {@link #reserve(long)}.
+   * @param bytes
+   */
+  synchronized void release(long bytes) {
+    usedBytes = Math.max(0, usedBytes - bytes);
+  }
+
+}
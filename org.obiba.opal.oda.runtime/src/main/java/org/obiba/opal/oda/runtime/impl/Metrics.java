@@ -0,0 +1,379 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.eclipse.datatools.connectivity.oda.LogConfiguration;
+
+import com.google.protobuf.Message;
+
+/**
+ * Counters of the requests made to Opal and of the pages read, for the driver, a connection or a query. What is
+ * counted for a query is counted for its connection as well, and what is counted for a connection is counted for the
+ * driver. The counters are exposed as MBeans and, if the driver log configuration enables it, logged: each request is
+ * logged at the FINE level or below, the counters of a query when it is closed.
+ */
+public class Metrics implements MetricsMXBean {
+
+  static final String DOMAIN = "org.obiba.opal.oda";
+
+  private static final Logger log = Logger.getLogger(Metrics.class.getName());
+
+  /**
+   * Inclusive upper bounds of the latency histogram buckets.
+   */
+  private static final long[] BUCKET_BOUNDS_MILLIS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000 };
+
+  private static final long NANOS_PER_MILLI = 1000000;
+
+  private static final AtomicLong ids = new AtomicLong();
+
+  private static volatile Level logLevel = Level.OFF;
+
+  private static Handler logHandler;
+
+  private final ObjectName objectName;
+
+  private final Metrics parent;
+
+  private volatile String name;
+
+  private final AtomicLong requestCount = new AtomicLong();
+
+  private final AtomicLong bytesReceived = new AtomicLong();
+
+  private final AtomicLong rowCount = new AtomicLong();
+
+  private final AtomicLong pageCount = new AtomicLong();
+
+  private final AtomicLong decodeNanos = new AtomicLong();
+
+  private final AtomicLong compressedBytes = new AtomicLong();
+
+  private final AtomicLong decompressedBytes = new AtomicLong();
+
+  private final Map<String, Histogram> latencies = new LinkedHashMap<String, Histogram>();
+
+  /**
+   * @param type the type of the MBean: Driver, Connection or Query
+   * @param parent the metrics to which the counts are added as well, may be null
+   */
+  Metrics(String type, Metrics parent) {
+    this.parent = parent;
+    this.objectName = newObjectName(type, parent);
+  }
+
+  private static ObjectName newObjectName(String type, Metrics parent) {
+    StringBuilder name = new StringBuilder(DOMAIN).append(":type=").append(type);
+    if(parent != null && parent.parent != null) {
+      // identify the connection of a query
+      name.append(",").append(parent.objectName.getKeyProperty("type").toLowerCase()).append("=").append(parent.objectName.getKeyProperty("id"));
+    }
+    if(parent != null) name.append(",id=").append(ids.incrementAndGet());
+    try {
+      return new ObjectName(name.toString());
+    } catch(JMException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /**
+   * Expose these metrics in the platform MBean server.
+   */
+  void register() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if(!server.isRegistered(objectName)) server.registerMBean(this, objectName);
+    } catch(JMException e) {
+      log.log(Level.FINE, "Metrics not registered: " + objectName, e);
+    }
+  }
+
+  void unregister() {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if(server.isRegistered(objectName)) server.unregisterMBean(objectName);
+    } catch(JMException e) {
+      log.log(Level.FINE, "Metrics not unregistered: " + objectName, e);
+    }
+  }
+
+  void setName(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Count a request made to Opal.
+   * @param resource the kind of resource, such as <code>valueSets</code>
+   * @param nanos time until the response was read
+   * @param bytes size of the response
+   */
+  void request(String resource, long nanos, long bytes) {
+    requestCount.incrementAndGet();
+    bytesReceived.addAndGet(bytes);
+    getHistogram(resource).add(nanos);
+    if(parent != null) {
+      parent.request(resource, nanos, bytes);
+    } else if(isLoggable(Level.FINE)) {
+      log.log(logLevel, String.format("%s request: %.1f ms, %d bytes", resource, (double) nanos / NANOS_PER_MILLI, bytes));
+    }
+  }
+
+  /**
+   * Count a page of value sets.
+   * @param rows number of value sets in the page
+   * @param nanos time spent decoding the page
+   */
+  void page(int rows, long nanos) {
+    pageCount.incrementAndGet();
+    decodeNanos.addAndGet(nanos);
+    if(parent != null) parent.page(rows, nanos);
+  }
+
+  /**
+   * Count a compressed response.
+   * @param compressed size of the response as transferred
+   * @param decompressed size of the response once decompressed
+   */
+  void compressed(long compressed, long decompressed) {
+    compressedBytes.addAndGet(compressed);
+    decompressedBytes.addAndGet(decompressed);
+    if(parent != null) parent.compressed(compressed, decompressed);
+  }
+
+  /**
+   * Count rows read from a result set.
+   * @param rows
+   */
+  void rows(long rows) {
+    if(rows <= 0) return;
+    rowCount.addAndGet(rows);
+    if(parent != null) parent.rows(rows);
+  }
+
+  /**
+   * Get the size of a list of messages, as received.
+   * @param messages
+   * @return
+   */
+  static long getSerializedSize(List<? extends Message> messages) {
+    long size = 0;
+    for(Message message : messages) {
+      size += message.getSerializedSize();
+    }
+    return size;
+  }
+
+  /**
+   * Log the counters at the level of the driver log configuration.
+   */
+  void log() {
+    if(!isLoggable(logLevel)) return;
+    StringBuilder message = new StringBuilder(toString());
+    for(ResourceLatency latency : getLatencies()) {
+      message.append("\n  ").append(latency);
+    }
+    log.log(logLevel, message.toString());
+  }
+
+  private boolean isLoggable(Level level) {
+    Level current = logLevel;
+    return current != Level.OFF && current.intValue() <= level.intValue() && log.isLoggable(current);
+  }
+
+  private Histogram getHistogram(String resource) {
+    synchronized(latencies) {
+      Histogram histogram = latencies.get(resource);
+      if(histogram == null) {
+        histogram = new Histogram();
+        latencies.put(resource, histogram);
+      }
+      return histogram;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived.get();
+  }
+
+  public long getRowCount() {
+    return rowCount.get();
+  }
+
+  public long getPageCount() {
+    return pageCount.get();
+  }
+
+  public long getDecodeTimeMillis() {
+    return decodeNanos.get() / NANOS_PER_MILLI;
+  }
+
+  public long getCompressedBytes() {
+    return compressedBytes.get();
+  }
+
+  public long getDecompressedBytes() {
+    return decompressedBytes.get();
+  }
+
+  public double getCompressionRatio() {
+    long compressed = compressedBytes.get();
+    return compressed == 0 ? 0 : (double) decompressedBytes.get() / compressed;
+  }
+
+  public List<ResourceLatency> getLatencies() {
+    List<ResourceLatency> list = new ArrayList<ResourceLatency>();
+    synchronized(latencies) {
+      for(Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+        list.add(entry.getValue().toLatency(entry.getKey()));
+      }
+    }
+    return list;
+  }
+
+  public void reset() {
+    requestCount.set(0);
+    bytesReceived.set(0);
+    rowCount.set(0);
+    pageCount.set(0);
+    decodeNanos.set(0);
+    compressedBytes.set(0);
+    decompressedBytes.set(0);
+    synchronized(latencies) {
+      latencies.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    String type = objectName.getKeyProperty("type");
+    return String.format("%s: %d requests, %d bytes, %d rows, %d pages, decoding %d ms, compression %.1f:1", name == null ? type : type + " " + name, getRequestCount(), getBytesReceived(), getRowCount(), getPageCount(), getDecodeTimeMillis(), getCompressionRatio());
+  }
+
+  /**
+   * Apply the log configuration of the driver: the level at which metrics are logged and, if a log directory is
+   * given, the file they are logged to.
+   * @param logConfig
+   */
+  static synchronized void configure(LogConfiguration logConfig) {
+    Level level = toLevel(logConfig.getLogLevel());
+    logLevel = level;
+    // back to the configured level of the logger when off
+    log.setLevel(level == Level.OFF ? null : level);
+
+    if(logHandler != null) {
+      log.removeHandler(logHandler);
+      logHandler.close();
+      logHandler = null;
+    }
+    if(level == Level.OFF || logConfig.getLogDirectory() == null) return;
+    try {
+      String prefix = logConfig.getLogPrefix() == null ? "opal-oda" : logConfig.getLogPrefix();
+      FileHandler handler = new FileHandler(new File(logConfig.getLogDirectory(), prefix + "-%g.log").getPath(), true);
+      if(logConfig.getFormatterClassName() != null) {
+        handler.setFormatter((Formatter) Class.forName(logConfig.getFormatterClassName()).newInstance());
+      }
+      handler.setLevel(level);
+      log.addHandler(handler);
+      logHandler = handler;
+    } catch(IOException e) {
+      log.log(Level.WARNING, "Cannot log to " + logConfig.getLogDirectory(), e);
+    } catch(Exception e) {
+      log.log(Level.WARNING, "Invalid log formatter: " + logConfig.getFormatterClassName(), e);
+    }
+  }
+
+  /**
+   * Convert an ODA log level, which has the values of the java.util.logging levels.
+   */
+  private static Level toLevel(int level) {
+    if(level >= Level.OFF.intValue()) return Level.OFF;
+    try {
+      return Level.parse(Integer.toString(level));
+    } catch(IllegalArgumentException e) {
+      return Level.INFO;
+    }
+  }
+
+  /**
+   * Histogram of latencies in milliseconds, with buckets of increasing width.
+   */
+  private static class Histogram {
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_BOUNDS_MILLIS.length + 1);
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void add(long nanos) {
+      long millis = nanos / NANOS_PER_MILLI;
+      int bucket = 0;
+      while(bucket < BUCKET_BOUNDS_MILLIS.length && millis > BUCKET_BOUNDS_MILLIS[bucket]) {
+        bucket++;
+      }
+      counts.incrementAndGet(bucket);
+      totalNanos.addAndGet(nanos);
+      long max;
+      while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        // retry
+      }
+    }
+
+    ResourceLatency toLatency(String resource) {
+      long[] bucketCounts = new long[counts.length()];
+      long count = 0;
+      for(int i = 0; i < bucketCounts.length; i++) {
+        bucketCounts[i] = counts.get(i);
+        count += bucketCounts[i];
+      }
+      long max = maxNanos.get() / NANOS_PER_MILLI;
+      double mean = count == 0 ? 0 : (double) totalNanos.get() / count / NANOS_PER_MILLI;
+      return new ResourceLatency(resource, count, mean, max, percentile(bucketCounts, count, 0.5, max), percentile(bucketCounts, count, 0.9, max), percentile(bucketCounts, count, 0.99, max), BUCKET_BOUNDS_MILLIS.clone(), bucketCounts);
+    }
+
+    private static long percentile(long[] bucketCounts, long count, double percentile, long max) {
+      long rank = (long) Math.ceil(percentile * count);
+      long cumulated = 0;
+      for(int i = 0; i < bucketCounts.length; i++) {
+        cumulated += bucketCounts[i];
+        if(cumulated >= rank && cumulated > 0) return i < BUCKET_BOUNDS_MILLIS.length ? Math.min(BUCKET_BOUNDS_MILLIS[i], max) : max;
+      }
+      return 0;
+    }
+  }
+
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.List;
+
+/**
+ * Management interface of the request and page counters of the driver, of a connection or of a query, registered in
+ * the platform MBean server under the <code>org.obiba.opal.oda</code> domain.
+ */
+public interface MetricsMXBean {
+
+  /**
+   * Get the table of a query, the URL of a connection.
+   * @return
+   */
+  String getName();
+
+  long getRequestCount();
+
+  /**
+   * Get the size in bytes of the messages received from Opal.
+   * @return
+   */
+  long getBytesReceived();
+
+  /**
+   * Get the number of rows read from the result sets.
+   * @return
+   */
+  long getRowCount();
+
+  /**
+   * Get the number of pages of value sets received from Opal or read from a snapshot.
+   * @return
+   */
+  long getPageCount();
+
+  /**
+   * Get the time spent turning the received value sets into pages.
+   * @return
+   */
+  long getDecodeTimeMillis();
+
+  /**
+   * Get the size in bytes of the compressed responses, as transferred. Responses are counted by the driver only, as
+   * its HTTP clients are shared by the connections.
+   * @return
+   */
+  long getCompressedBytes();
+
+  /**
+   * Get the size in bytes of the compressed responses, once decompressed.
+   * @return
+   */
+  long getDecompressedBytes();
+
+  /**
+   * Get the ratio of the decompressed size to the transferred size of the compressed responses.
+   * @return zero if no response was compressed
+   */
+  double getCompressionRatio();
+
+  /**
+   * Get the latency statistics of the requests of each kind of resource.
+   * @return
+   */
+  List<ResourceLatency> getLatencies();
+
+  void reset();
+
+}
@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.rest.client.magma.OpalJavaClient;
+
+/**
+ * Pool of {@link OpalJavaClient} shared by the connections of the driver. Clients are keyed by Opal URL and user, so
+ * that a connection reuses the HTTP connections and the session of a client released by a previous one. Released
+ * clients that stay idle longer than the idle timeout are evicted.
+ */
+class OpalClientPool {
+
+  static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000;
+
+  private static final long ACQUIRE_TIMEOUT = 60 * 1000;
+
+  private final Map<String, LinkedList<PooledClient>> idleClients = new HashMap<String, LinkedList<PooledClient>>();
+
+  private final int maxSize;
+
+  private final long idleTimeout;
+
+  private int size;
+
+  private Timer evictor;
+
+  /**
+   * @param maxSize maximum number of clients, leased or idle; zero for no limit
+   * @param idleTimeout time in milliseconds after which an idle client is evicted
+   */
+  OpalClientPool(int maxSize, long idleTimeout) {
+    this.maxSize = maxSize;
+    this.idleTimeout = idleTimeout;
+  }
+
+  int getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Get an idle client for the given URL and credentials, or create one. When the pool is full, wait for a client to
+   * be released or evicted. A new client is created outside of the pool lock, so that it does not hold up the other
+   * connections.
+   * @param url
+   * @param username
+   * @param password
+   * @return
+   * @throws OdaException if no client could be obtained
+   */
+  OpalJavaClient acquire(String url, String username, String password) throws OdaException {
+    List<OpalJavaClient> evicted = new ArrayList<OpalJavaClient>();
+    try {
+      OpalJavaClient idle = reserve(url, username, password, evicted);
+      if(idle != null) return idle;
+    } finally {
+      close(evicted);
+    }
+    boolean created = false;
+    try {
+      OpalJavaClient client = newClient(url, username, password);
+      created = true;
+      return client;
+    } finally {
+      if(!created) unreserve();
+    }
+  }
+
+  /**
+   * Take an idle client, or reserve room for a new one.
+   * @param url
+   * @param username
+   * @param password
+   * @param evicted receives the clients evicted to make room, to be closed
+   * @return the idle client taken, null if room was reserved for a new client
+   * @throws OdaException if the pool stays full
+   */
+  private synchronized OpalJavaClient reserve(String url, String username, String password, List<OpalJavaClient> evicted) throws OdaException {
+    long deadline = System.currentTimeMillis() + ACQUIRE_TIMEOUT;
+    while(true) {
+      PooledClient pooled = removeIdle(key(url, username), password);
+      if(pooled != null) return pooled.client;
+
+      if(maxSize <= 0 || size < maxSize) {
+        size++;
+        return null;
+      }
+
+      // make room by dropping an idle client of another URL or user
+      OpalJavaClient oldest = evictOldest();
+      if(oldest != null) {
+        evicted.add(oldest);
+        continue;
+      }
+
+      long wait = deadline - System.currentTimeMillis();
+      if(wait <= 0) throw new OdaException("No Opal connection available: maximum of " + maxSize + " reached.");
+      try {
+        wait(wait);
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new OdaException(e);
+      }
+    }
+  }
+
+  private synchronized void unreserve() {
+    size--;
+    notifyAll();
+  }
+
+  /**
+   * Give back a client so that it can be reused by another connection with the same URL and credentials.
+   * @param url
+   * @param username
+   * @param password
+   * @param client
+   */
+  synchronized void release(String url, String username, String password, OpalJavaClient client) {
+    String key = key(url, username);
+    LinkedList<PooledClient> clients = idleClients.get(key);
+    if(clients == null) {
+      clients = new LinkedList<PooledClient>();
+      idleClients.put(key, clients);
+    }
+    clients.addFirst(new PooledClient(client, password));
+    startEvictor();
+    notifyAll();
+  }
+
+  /**
+   * Close the clients that have been idle for longer than the idle timeout.
+   */
+  void evictIdle() {
+    List<OpalJavaClient> evicted = new ArrayList<OpalJavaClient>();
+    synchronized(this) {
+      long now = System.currentTimeMillis();
+      for(Iterator<LinkedList<PooledClient>> it = idleClients.values().iterator(); it.hasNext();) {
+        LinkedList<PooledClient> clients = it.next();
+        while(!clients.isEmpty() && now - clients.getLast().releaseTime >= idleTimeout) {
+          evicted.add(clients.removeLast().client);
+          size--;
+        }
+        if(clients.isEmpty()) it.remove();
+      }
+      if(idleClients.isEmpty() && evictor != null) {
+        evictor.cancel();
+        evictor = null;
+      }
+      notifyAll();
+    }
+    close(evicted);
+  }
+
+  private PooledClient removeIdle(String key, String password) {
+    LinkedList<PooledClient> clients = idleClients.get(key);
+    if(clients == null) return null;
+    for(Iterator<PooledClient> it = clients.iterator(); it.hasNext();) {
+      PooledClient pooled = it.next();
+      if(equals(pooled.password, password)) {
+        it.remove();
+        if(clients.isEmpty()) idleClients.remove(key);
+        return pooled;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Remove the client that has been idle for the longest time.
+   * @return the client to be closed, null if there is no idle client
+   */
+  private OpalJavaClient evictOldest() {
+    String oldestKey = null;
+    PooledClient oldest = null;
+    for(Map.Entry<String, LinkedList<PooledClient>> entry : idleClients.entrySet()) {
+      PooledClient pooled = entry.getValue().getLast();
+      if(oldest == null || pooled.releaseTime < oldest.releaseTime) {
+        oldestKey = entry.getKey();
+        oldest = pooled;
+      }
+    }
+    if(oldest == null) return null;
+
+    LinkedList<PooledClient> clients = idleClients.get(oldestKey);
+    clients.removeLast();
+    if(clients.isEmpty()) idleClients.remove(oldestKey);
+    size--;
+    return oldest.client;
+  }
+
+  private void startEvictor() {
+    if(evictor != null) return;
+    evictor = new Timer("opal-oda-client-evictor", true);
+    long period = Math.max(1000, idleTimeout / 2);
+    evictor.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        evictIdle();
+      }
+    }, period, period);
+  }
+
+  /**
+   * Close evicted clients, so that their HTTP connections are released.
+   * @param clients
+   */
+  private static void close(List<OpalJavaClient> clients) {
+    for(OpalJavaClient client : clients) {
+      OpalHttpClient.close(client);
+    }
+  }
+
+  private OpalJavaClient newClient(String url, String username, String password) throws OdaException {
+    try {
+      return new OpalJavaClient(url, username, password);
+    } catch(URISyntaxException e) {
+      throw new OdaException(e);
+    }
+  }
+
+  private static String key(String url, String username) {
+    return url + "|" + username;
+  }
+
+  private static boolean equals(String s1, String s2) {
+    return s1 == null ? s2 == null : s1.equals(s2);
+  }
+
+  private static class PooledClient {
+
+    private final OpalJavaClient client;
+
+    private final String password;
+
+    private final long releaseTime = System.currentTimeMillis();
+
+    private PooledClient(OpalJavaClient client, String password) {
+      this.client = client;
+      this.password = password;
+    }
+  }
+
+}
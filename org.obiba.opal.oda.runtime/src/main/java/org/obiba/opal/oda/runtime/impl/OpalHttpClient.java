@@ -0,0 +1,107 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.AbstractHttpClient;
+import org.obiba.opal.rest.client.magma.OpalJavaClient;
+
+/**
+ * Access to the HTTP client of an {@link OpalJavaClient}, which does not expose it. This is a stop-gap until the Opal
+ * client gives access to its HTTP client: it is found by reflection on the private members of the Opal client, which
+ * may change with its version, so that callers must cope with not finding it.
+ */
+final class OpalHttpClient {
+
+  private static final Logger log = Logger.getLogger(OpalHttpClient.class.getName());
+
+  private OpalHttpClient() {
+  }
+
+  /**
+   * Find the HTTP client of an Opal client, which may only be created by its first request.
+   * @param opal
+   * @return null if not found
+   */
+  static AbstractHttpClient find(OpalJavaClient opal) {
+    return find(opal, 2);
+  }
+
+  /**
+   * Get the HTTP client of an Opal client, having it created by its private accessor if the Opal client did not make any
+   * request yet.
+   * @param opal
+   * @return null if not found
+   */
+  static AbstractHttpClient get(OpalJavaClient opal) {
+    AbstractHttpClient client = find(opal);
+    if(client != null) return client;
+    for(Method method : opal.getClass().getDeclaredMethods()) {
+      if(method.getParameterTypes().length > 0 || !HttpClient.class.isAssignableFrom(method.getReturnType())) continue;
+      try {
+        method.setAccessible(true);
+        method.invoke(opal);
+      } catch(Exception e) {
+        log.log(Level.FINE, "HTTP client not created: " + method, e);
+      }
+      return find(opal);
+    }
+    return null;
+  }
+
+  /**
+   * Release the HTTP connections of an Opal client that is not used anymore, by its own close method when it has one or
+   * else by shutting down the connection manager of its HTTP client.
+   * @param opal
+   */
+  static void close(OpalJavaClient opal) {
+    try {
+      Method close = opal.getClass().getMethod("close");
+      close.invoke(opal);
+      return;
+    } catch(NoSuchMethodException e) {
+      // no close method in this version of the Opal client
+    } catch(Exception e) {
+      log.log(Level.FINE, "Opal client not closed", e);
+    }
+    HttpClient client = find(opal);
+    if(client != null) client.getConnectionManager().shutdown();
+  }
+
+  /**
+   * Look for the HTTP client in the fields of an object, and in the fields of the HTTP clients that decorate it.
+   */
+  private static AbstractHttpClient find(Object object, int depth) {
+    for(Class<?> type = object.getClass(); type != null && type != Object.class; type = type.getSuperclass()) {
+      for(Field field : type.getDeclaredFields()) {
+        if(!HttpClient.class.isAssignableFrom(field.getType())) continue;
+        try {
+          field.setAccessible(true);
+          Object value = field.get(object);
+          if(value instanceof AbstractHttpClient) return (AbstractHttpClient) value;
+          if(value instanceof HttpClient && depth > 1) {
+            AbstractHttpClient client = find(value, depth - 1);
+            if(client != null) return client;
+          }
+        } catch(Exception e) {
+          log.log(Level.FINE, "HTTP client not accessible: " + field, e);
+        }
+      }
+    }
+    return null;
+  }
+
+}
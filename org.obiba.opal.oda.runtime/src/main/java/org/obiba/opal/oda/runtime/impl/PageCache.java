@@ -0,0 +1,292 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+/**
+ * Disk cache of the value sets of the queries that were read to the end. The pages of a query are stored in a single
+ * file, named after the query and the version of its table, as a sequence of length prefixed protobuf messages that
+ * are read back through memory mapping. The least recently used files are deleted when the cache exceeds its size.
+ */
+class PageCache {
+
+  static final long DEFAULT_SIZE = 512 * 1024 * 1024;
+
+  private static final String SUFFIX = ".pages";
+
+  private final File directory;
+
+  private final long maxSize;
+
+  private final long fingerprintTtl;
+
+  private final Map<String, CachedFingerprint> fingerprints = new HashMap<String, CachedFingerprint>();
+
+  /**
+   * @param directory where the pages are stored
+   * @param maxSize maximum size of the cache in bytes
+   * @param fingerprintTtl time in milliseconds during which a table version is trusted without asking Opal
+   */
+  PageCache(File directory, long maxSize, long fingerprintTtl) {
+    this.directory = directory;
+    this.maxSize = maxSize;
+    this.fingerprintTtl = fingerprintTtl;
+  }
+
+  /**
+   * Get the pages of the query, read from the cache if the version of its table did not change since they were
+   * stored, or fetched from Opal and stored while they are read otherwise.
+   * @param query
+   * @param pageFactory
+   * @param fetcher supplies the pages from Opal on a cache miss
+   * @return
+   * @throws OdaException
+   */
+  PageSource getPages(Query query, PageFactory pageFactory, ValueSetFetcher fetcher) throws OdaException {
+    File file = new File(directory, digest(query.getResultKey() + "|" + getFingerprint(query)) + SUFFIX);
+    if(file.isFile()) {
+      try {
+        PageSource pages = new CachedPages(file, pageFactory);
+        file.setLastModified(System.currentTimeMillis());
+        return pages;
+      } catch(IOException e) {
+        // evicted meanwhile or unreadable, fetch again
+      }
+    }
+    try {
+      fetcher.setWriter(new Writer(file));
+    } catch(IOException e) {
+      // no caching if the cache directory is not writable
+    }
+    return fetcher;
+  }
+
+  private String getFingerprint(Query query) throws OdaException {
+    String key = query.getTableKey();
+    synchronized(fingerprints) {
+      CachedFingerprint cached = fingerprints.get(key);
+      if(cached != null && System.currentTimeMillis() - cached.time <= fingerprintTtl) return cached.fingerprint;
+    }
+    String fingerprint = query.getTableFingerprint();
+    synchronized(fingerprints) {
+      fingerprints.put(key, new CachedFingerprint(fingerprint));
+    }
+    return fingerprint;
+  }
+
+  /**
+   * Delete the least recently used files until the cache fits in its maximum size.
+   */
+  synchronized void evict() {
+    File[] files = directory.listFiles();
+    if(files == null) return;
+
+    long size = 0;
+    for(File file : files) {
+      if(file.getName().endsWith(SUFFIX)) size += file.length();
+    }
+    if(size <= maxSize) return;
+
+    Arrays.sort(files, new Comparator<File>() {
+      public int compare(File f1, File f2) {
+        long m1 = f1.lastModified();
+        long m2 = f2.lastModified();
+        return m1 < m2 ? -1 : m1 == m2 ? 0 : 1;
+      }
+    });
+    for(File file : files) {
+      if(size <= maxSize) break;
+      if(!file.getName().endsWith(SUFFIX)) continue;
+      long length = file.length();
+      if(file.delete()) size -= length;
+    }
+  }
+
+  static String digest(String value) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+      return toHex(digest);
+    } catch(NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    } catch(IOException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(bytes.length * 2);
+    for(byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Stores the pages of a query in a temporary file, that becomes visible in the cache once all the pages were
+   * written.
+   */
+  class Writer {
+
+    private final File file;
+
+    private final File tmpFile;
+
+    private final DataOutputStream out;
+
+    private Writer(File file) throws IOException {
+      this.file = file;
+      if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+      tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+      out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+    }
+
+    void write(ValueSetsDto valueSets) throws IOException {
+      byte[] bytes = valueSets.toByteArray();
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+
+    /**
+     * Publish the written pages in the cache.
+     */
+    void commit() {
+      try {
+        out.close();
+        if(file.exists()) file.delete();
+        if(tmpFile.renameTo(file)) {
+          evict();
+          return;
+        }
+      } catch(IOException e) {
+        // the pages are not cached
+      }
+      tmpFile.delete();
+    }
+
+    /**
+     * Discard the written pages.
+     */
+    void abort() {
+      try {
+        out.close();
+      } catch(IOException e) {
+        // ignore
+      }
+      tmpFile.delete();
+    }
+  }
+
+  /**
+   * Reads the pages of a cache file.
+   */
+  private static class CachedPages implements PageSource {
+
+    private final PageFactory pageFactory;
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private long position;
+
+    private CachedPages(File file, PageFactory pageFactory) throws IOException {
+      this.pageFactory = pageFactory;
+      this.file = new RandomAccessFile(file, "r");
+      this.channel = this.file.getChannel();
+    }
+
+    public ValueSetPage nextPage() throws OdaException {
+      try {
+        if(position >= channel.size()) return null;
+
+        ByteBuffer length = ByteBuffer.allocate(4);
+        while(length.hasRemaining()) {
+          if(channel.read(length, position + length.position()) < 0) throw new IOException("Truncated cache file");
+        }
+        length.flip();
+        int size = length.getInt();
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + 4, size);
+        position += 4 + size;
+        return pageFactory.newPage(ValueSetsDto.parseFrom(new ByteBufferInputStream(buffer)));
+      } catch(IOException e) {
+        throw new OdaException(e);
+      }
+    }
+
+    public void close() {
+      try {
+        file.close();
+      } catch(IOException e) {
+        // ignore
+      }
+    }
+
+    public void cancel() {
+      // pages are read from the local disk, the result set stops reading them
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if(!buffer.hasRemaining()) return -1;
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+
+  private static class CachedFingerprint {
+
+    private final String fingerprint;
+
+    private final long time = System.currentTimeMillis();
+
+    private CachedFingerprint(String fingerprint) {
+      this.fingerprint = fingerprint;
+    }
+  }
+
+}
@@ -0,0 +1,163 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+/**
+ * Turns the value sets received from Opal into pages of the result set columns, either kept as received or decoded
+ * into columns. Pages may be created concurrently by the fetching threads.
+ */
+class PageFactory {
+
+  private final ResultSetMetaData metaData;
+
+  private final boolean columnar;
+
+  private final Metrics metrics;
+
+  private final ValueDecoder[] decoders;
+
+  private List<String> indexedVariables;
+
+  private Map<String, Integer> variableIndices;
+
+  private int[] columnToVariableIndices;
+
+  /**
+   * @param metaData the columns of the result set
+   * @param columnar true to decode each page into columns
+   * @throws OdaException
+   */
+  PageFactory(ResultSetMetaData metaData, boolean columnar) throws OdaException {
+    this(metaData, columnar, null);
+  }
+
+  /**
+   * @param metaData the columns of the result set
+   * @param columnar true to decode each page into columns
+   * @param metrics counts the decoded pages, may be null
+   * @throws OdaException
+   */
+  PageFactory(ResultSetMetaData metaData, boolean columnar, Metrics metrics) throws OdaException {
+    this.metaData = metaData;
+    this.columnar = columnar;
+    this.metrics = metrics;
+    int columnCount = metaData.getColumnCount();
+    decoders = new ValueDecoder[columnCount + 1];
+    decoders[1] = ValueDecoder.DEFAULT;
+    for(int i = 2; i <= columnCount; i++) {
+      decoders[i] = ValueDecoder.forType(metaData.getColumnType(i));
+    }
+  }
+
+  ValueSetPage newPage(ValueSetsDto valueSets) throws OdaException {
+    long start = System.nanoTime();
+    int[] variableIndices = indexVariables(valueSets.getVariablesList());
+    ValueSetPage page = columnar ? new ColumnarPage(valueSets, variableIndices, decoders) : new ProtobufPage(valueSets, variableIndices, decoders);
+    if(metrics != null) metrics.page(page.size(), System.nanoTime() - start);
+    return page;
+  }
+
+  /**
+   * Create a columnar page from the values of each variable.
+   * @param identifiers the entity identifiers
+   * @param variables the variable names
+   * @param variableValues the values of each variable, in the order of the variable names, null if not read
+   * @return
+   * @throws OdaException
+   */
+  ValueSetPage newPage(String[] identifiers, List<String> variables, String[][] variableValues) throws OdaException {
+    long start = System.nanoTime();
+    int[] variableIndices = indexVariables(variables);
+    String[][] values = new String[variableIndices.length][];
+    for(int column = 2; column < variableIndices.length; column++) {
+      if(variableIndices[column] >= 0) values[column] = variableValues[variableIndices[column]];
+    }
+    ValueSetPage page = new ColumnarPage(identifiers, values, decoders);
+    if(metrics != null) metrics.page(page.size(), System.nanoTime() - start);
+    return page;
+  }
+
+  /**
+   * Create a page from the values of its rows.
+   * @param rows the values of each row, indexed by 1-based column
+   * @return
+   */
+  ValueSetPage newPage(String[][] rows) {
+    if(!columnar) return new ArrayPage(rows, decoders);
+
+    String[] identifiers = new String[rows.length];
+    String[][] values = new String[decoders.length][rows.length];
+    for(int row = 0; row < rows.length; row++) {
+      identifiers[row] = rows[row][1];
+      for(int column = 2; column < decoders.length; column++) {
+        values[column][row] = rows[row][column];
+      }
+    }
+    return new ColumnarPage(identifiers, values, decoders);
+  }
+
+  /**
+   * Get the decoder of the values of a 1-based column.
+   * @param column
+   * @return
+   */
+  ValueDecoder getDecoder(int column) {
+    return decoders[column];
+  }
+
+  int getColumnCount() {
+    return decoders.length - 1;
+  }
+
+  /**
+   * Get the position of a variable in the last received value sets.
+   * @param variable
+   * @return -1 if not found
+   */
+  synchronized int findVariable(String variable) {
+    Integer index = variableIndices == null ? null : variableIndices.get(variable);
+    return index == null ? -1 : index;
+  }
+
+  /**
+   * Map each 1-based column index to the position of its variable in the value sets. The column number is not the
+   * variable position in the value set, so the mapping is computed with a hash index of the variable names, once for
+   * all the pages sharing the same variables.
+   * @param variables
+   * @return
+   * @throws OdaException
+   */
+  private synchronized int[] indexVariables(List<String> variables) throws OdaException {
+    if(variables == indexedVariables || variables.equals(indexedVariables)) return columnToVariableIndices;
+
+    variableIndices = new HashMap<String, Integer>(variables.size() * 2);
+    for(int i = 0; i < variables.size(); i++) {
+      variableIndices.put(variables.get(i), i);
+    }
+    int columnCount = metaData.getColumnCount();
+    columnToVariableIndices = new int[columnCount + 1];
+    columnToVariableIndices[0] = -1;
+    columnToVariableIndices[1] = -1;
+    for(int i = 2; i <= columnCount; i++) {
+      Integer index = variableIndices.get(metaData.getColumnName(i));
+      columnToVariableIndices[i] = index == null ? -1 : index;
+    }
+    indexedVariables = variables;
+    return columnToVariableIndices;
+  }
+
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+/**
+ * Chooses the number of value sets to request per page. Unless a fixed page size is given, the size is adjusted from
+ * the bytes per row and the latency observed on the previous pages, so that a page stays within both the targeted
+ * number of bytes and the latency budget.
+ */
+class PageSizer {
+
+  static final int DEFAULT_PAGE_SIZE = 100;
+
+  static final int MIN_PAGE_SIZE = 10;
+
+  static final int MAX_PAGE_SIZE = 10000;
+
+  /**
+   * Maximum growth factor between two consecutive page sizes.
+   */
+  private static final int MAX_GROWTH = 4;
+
+  /**
+   * Weight of the last observation in the moving averages.
+   */
+  private static final double SMOOTHING = 0.5;
+
+  private final boolean fixed;
+
+  private final long targetBytes;
+
+  private final long targetMillis;
+
+  private int pageSize;
+
+  private double bytesPerRow;
+
+  private double millisPerRow;
+
+  /**
+   * @param pageSize fixed page size, or zero or less to adapt it at runtime
+   * @param targetBytes targeted size of a page in bytes
+   * @param targetMillis targeted time to fetch a page in milliseconds
+   */
+  PageSizer(int pageSize, long targetBytes, long targetMillis) {
+    this.fixed = pageSize > 0;
+    this.pageSize = fixed ? pageSize : DEFAULT_PAGE_SIZE;
+    this.targetBytes = targetBytes;
+    this.targetMillis = targetMillis;
+  }
+
+  synchronized int getPageSize() {
+    return pageSize;
+  }
+
+  /**
+   * Get the average size of a row in the observed pages.
+   * @return zero if no page was observed
+   */
+  synchronized double getBytesPerRow() {
+    return bytesPerRow;
+  }
+
+  /**
+   * Record the cost of a fetched page and adjust the page size accordingly.
+   * @param rows number of value sets in the page
+   * @param bytes size of the page
+   * @param millis time spent fetching the page
+   */
+  synchronized void observe(int rows, long bytes, long millis) {
+    if(rows == 0) return;
+
+    bytesPerRow = average(bytesPerRow, (double) bytes / rows);
+    millisPerRow = average(millisPerRow, (double) millis / rows);
+    if(fixed) return;
+
+    double size = MAX_PAGE_SIZE;
+    if(targetBytes > 0 && bytesPerRow > 0) size = Math.min(size, targetBytes / bytesPerRow);
+    if(targetMillis > 0 && millisPerRow > 0) size = Math.min(size, targetMillis / millisPerRow);
+    size = Math.min(size, (double) pageSize * MAX_GROWTH);
+
+    pageSize = (int) Math.max(MIN_PAGE_SIZE, Math.min(MAX_PAGE_SIZE, size));
+  }
+
+  private double average(double previous, double value) {
+    return previous == 0 ? value : previous * (1 - SMOOTHING) + value * SMOOTHING;
+  }
+
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+
+/**
+ * Supplies the pages of a {@link ResultSet}, in row order.
+ */
+interface PageSource {
+
+  /**
+   * Get the next page.
+   * @return the next page, or null if all the rows were read
+   * @throws OdaException
+   */
+  ValueSetPage nextPage() throws OdaException;
+
+  /**
+   * Release the resources held by this source.
+   */
+  void close();
+
+  /**
+   * Stop supplying pages. Unlike the other methods, can be called from any thread.
+   */
+  void cancel();
+
+}
@@ -14,28 +14,36 @@ import org.eclipse.datatools.connectivity.oda.IParameterMetaData;
 import org.eclipse.datatools.connectivity.oda.OdaException;
 
 /**
- * Implementation class of IParameterMetaData for an ODA runtime driver. <br>
- * For demo purpose, the auto-generated method stubs have hard-coded implementation that returns a pre-defined set of
- * meta-data and query results. A custom ODA driver is expected to implement own data source specific behavior in its
- * place.
+ * Implementation class of IParameterMetaData for an ODA runtime driver. The parameters are the placeholders of the
+ * entities filter script, their type is the one of their bound value.
  */
 public class ParameterMetaData implements IParameterMetaData {
 
+  private final String dataSetType;
+
+  private final QueryParameters parameters;
+
+  /**
+   * @param dataSetType the data set type declaring the native data types
+   * @param parameters
+   */
+  ParameterMetaData(String dataSetType, QueryParameters parameters) {
+    this.dataSetType = dataSetType;
+    this.parameters = parameters;
+  }
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IParameterMetaData#getParameterCount()
    */
   public int getParameterCount() throws OdaException {
-    // TODO replace with data source specific implementation
-
-    // hard-coded for demo purpose
-    return 1;
+    return parameters.getCount();
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IParameterMetaData#getParameterMode(int)
    */
   public int getParameterMode(int param) throws OdaException {
-    // TODO Auto-generated method stub
+    checkIndex(param);
     return IParameterMetaData.parameterModeIn;
   }
 
@@ -45,18 +53,16 @@ public class ParameterMetaData implements IParameterMetaData {
    * @see org.eclipse.datatools.connectivity.oda.IParameterMetaData#getParameterName(int)
    */
   public String getParameterName(int param) throws OdaException {
-    // TODO Auto-generated method stub
-    return null; // name is not available
+    checkIndex(param);
+    return parameters.getName(param); // null if positional
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IParameterMetaData#getParameterType(int)
    */
   public int getParameterType(int param) throws OdaException {
-    // TODO replace with data source specific implementation
-
-    // hard-coded for demo purpose
-    return java.sql.Types.CHAR; // as defined in data set extension manifest
+    checkIndex(param);
+    return parameters.getType(param); // as defined in data set extension manifest
   }
 
   /*
@@ -64,7 +70,7 @@ public class ParameterMetaData implements IParameterMetaData {
    */
   public String getParameterTypeName(int param) throws OdaException {
     int nativeTypeCode = getParameterType(param);
-    return Driver.getNativeDataTypeName(nativeTypeCode);
+    return Driver.getNativeDataTypeName(dataSetType, nativeTypeCode);
   }
 
   /*
@@ -87,8 +93,12 @@ public class ParameterMetaData implements IParameterMetaData {
    * @see org.eclipse.datatools.connectivity.oda.IParameterMetaData#isNullable(int)
    */
   public int isNullable(int param) throws OdaException {
-    // TODO Auto-generated method stub
+    checkIndex(param);
     return IParameterMetaData.parameterNullableUnknown;
   }
 
+  private void checkIndex(int param) throws OdaException {
+    if(param < 1 || param > parameters.getCount()) throw new OdaException("Invalid parameter index: " + param);
+  }
+
 }
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+/**
+ * Page that reads its values from the value sets message as received from Opal, parsing them on each access.
+ */
+class ProtobufPage implements ValueSetPage {
+
+  private final ValueSetsDto valueSets;
+
+  private final int[] variableIndices;
+
+  private final ValueDecoder[] decoders;
+
+  /**
+   * @param valueSets
+   * @param variableIndices position of the variable of each 1-based column in the value sets, -1 if missing
+   * @param decoders decoder of each 1-based column
+   */
+  ProtobufPage(ValueSetsDto valueSets, int[] variableIndices, ValueDecoder[] decoders) {
+    this.valueSets = valueSets;
+    this.variableIndices = variableIndices;
+    this.decoders = decoders;
+  }
+
+  public int size() {
+    return valueSets.getValueSetsCount();
+  }
+
+  public boolean isNull(int row, int column) {
+    return getString(row, column) == null;
+  }
+
+  public String getString(int row, int column) {
+    ValueSetsDto.ValueSetDto valueSet = valueSets.getValueSets(row);
+    if(column == 1) return valueSet.getIdentifier();
+
+    int variableIndex = variableIndices[column];
+    if(variableIndex < 0) return null;
+    ValueSetsDto.ValueDto value = valueSet.getValues(variableIndex);
+    return value.hasValue() ? value.getValue() : null;
+  }
+
+  public int getInt(int row, int column) {
+    return decoders[column].toInt(getString(row, column));
+  }
+
+  public double getDouble(int row, int column) {
+    return decoders[column].toDouble(getString(row, column));
+  }
+
+  public BigDecimal getBigDecimal(int row, int column) {
+    return decoders[column].toBigDecimal(getString(row, column));
+  }
+
+  public Date getDate(int row, int column) {
+    return decoders[column].toDate(getString(row, column));
+  }
+
+  public boolean getBoolean(int row, int column) {
+    return decoders[column].toBoolean(getString(row, column));
+  }
+
+}
@@ -10,15 +10,28 @@
 
 package org.obiba.opal.oda.runtime.impl;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.math.BigDecimal;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionReleaseTrigger;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.datatools.connectivity.oda.IParameterMetaData;
 import org.eclipse.datatools.connectivity.oda.IQuery;
 import org.eclipse.datatools.connectivity.oda.IResultSet;
@@ -26,11 +39,18 @@ import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
 import org.eclipse.datatools.connectivity.oda.OdaException;
 import org.eclipse.datatools.connectivity.oda.SortSpec;
 import org.eclipse.datatools.connectivity.oda.spec.QuerySpecification;
+import org.eclipse.datatools.connectivity.oda.spec.result.ColumnIdentifier;
+import org.eclipse.datatools.connectivity.oda.spec.result.FilterExpression;
+import org.eclipse.datatools.connectivity.oda.spec.result.ResultProjection;
+import org.eclipse.datatools.connectivity.oda.spec.result.ResultSetSpecification;
 import org.obiba.opal.rest.client.magma.UriBuilder;
+import org.obiba.opal.web.model.Magma.TableDto;
 import org.obiba.opal.web.model.Magma.ValueSetsDto;
 import org.obiba.opal.web.model.Magma.VariableDto;
 import org.obiba.opal.web.model.Magma.VariableEntityDto;
 
+import com.google.protobuf.Message;
+
 /**
  * Implementation class of IQuery for an ODA runtime driver. <br>
  * For demo purpose, the auto-generated method stubs have hard-coded implementation that returns a pre-defined set of
@@ -39,12 +59,51 @@ import org.obiba.opal.web.model.Magma.VariableEntityDto;
  */
 public class Query implements IQuery {
 
+  public static final String DATA_SET_TYPE = "org.obiba.opal.oda.runtime.dataSet";
+
   public static final String DATASOURCE = "DATASOURCE";
 
   public static final String TABLE = "TABLE";
 
   public static final String SELECT = "SELECT";
 
+  public static final String WHERE = "WHERE";
+
+  public static final String COLUMNS = "COLUMNS";
+
+  public static final String PREFETCH = "PREFETCH";
+
+  public static final String PARALLELISM = "PARALLELISM";
+
+  public static final String PAGE_SIZE = "PAGE_SIZE";
+
+  public static final String PAGE_BYTES = "PAGE_BYTES";
+
+  public static final String PAGE_LATENCY = "PAGE_LATENCY";
+
+  public static final String COLUMNAR = "COLUMNAR";
+
+  public static final String SORT_MEMORY = "SORT_MEMORY";
+
+  private static final int DEFAULT_PREFETCH = 1;
+
+  private static final int DEFAULT_PARALLELISM = 1;
+
+  private static final int DEFAULT_PAGE_BYTES = 1024 * 1024;
+
+  private static final int DEFAULT_PAGE_LATENCY = 2000;
+
+  /**
+   * Maximum length of the script listing the projected variables, beyond which all the variables are fetched.
+   */
+  private static final int MAX_PROJECTION_LENGTH = 2000;
+
+  /**
+   * Variables are projected when the report uses at most one in this number of them, a longer select script is not
+   * worth leaving out fewer variables.
+   */
+  private static final int MIN_PROJECTION_RATIO = 2;
+
   private int maxRows;
 
   private String preparedText;
@@ -53,12 +112,33 @@ public class Query implements IQuery {
 
   private Map<String, String> properties = new HashMap<String, String>();
 
+  private final List<ResultSet> resultSets = new ArrayList<ResultSet>();
+
+  private final Set<InputStream> responses = new HashSet<InputStream>();
+
+  private volatile boolean cancelled;
+
+  private SortSpec sortSpec;
+
+  private QuerySpecification specification;
+
+  private EntityFilter filter;
+
+  private Set<String> hiddenColumns = new HashSet<String>();
+
+  private QueryParameters parameters;
+
+  private Projection projection;
+
+  private final Metrics metrics;
+
   /**
    * @param connection
    */
   public Query(Connection connection) {
     super();
     this.connection = connection;
+    this.metrics = new Metrics("Query", connection.getMetrics());
   }
 
   /*
@@ -79,31 +159,239 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#close()
    */
   public void close() throws OdaException {
-    // TODO Auto-generated method stub
     preparedText = null;
+    synchronized(resultSets) {
+      resultSets.clear();
+    }
+    metrics.log();
+    metrics.unregister();
+    connection.closed(this);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#getMetaData()
    */
   public IResultSetMetaData getMetaData() throws OdaException {
-    URI uri = addNonNullQuery(fromBase("variables"), "script", getSelect()).build();
-    List<VariableDto> variables = connection.getOpal().getResources(VariableDto.class, uri, VariableDto.newBuilder());
-    return new ResultSetMetaData(variables);
+    return new ResultSetMetaData(getDataSetType(), getVariables());
+  }
+
+  /**
+   * Get the id of the data set type of this query, as declared in the plugin manifest.
+   * @return
+   */
+  String getDataSetType() {
+    return DATA_SET_TYPE;
+  }
+
+  /**
+   * Get the variables of the table matching the select script, from the metadata cache if they were already fetched.
+   * @return
+   * @throws OdaException
+   */
+  List<VariableDto> getVariables() throws OdaException {
+    if(connection.isOffline()) return connection.getSnapshot(getDatasource(), getTable()).getVariables();
+
+    VariablesCache cache = Driver.getVariablesCache();
+    List<VariableDto> variables = cache.get(connection.getURL(), connection.getUsername(), getDatasource(), getTable(), getSelect());
+    if(variables == null) {
+      URI uri = addNonNullQuery(fromBase("variables"), "script", getSelect()).build();
+      long start = System.nanoTime();
+      variables = connection.getOpal().getResources(VariableDto.class, uri, VariableDto.newBuilder());
+      metrics.request("variables", System.nanoTime() - start, Metrics.getSerializedSize(variables));
+      variables = cache.put(connection.getURL(), connection.getUsername(), getDatasource(), getTable(), getSelect(), variables);
+    }
+    return variables;
+  }
+
+  /**
+   * Copy the value sets of this query into a snapshot in the given directory, so that they can be queried offline by a
+   * connection having this directory as its snapshot directory. The snapshot has the variables and the entities of the
+   * select and entities filter scripts, the other filters of the query are applied when it is read.
+   * @param directory
+   * @throws OdaException
+   */
+  public void materialize(File directory) throws OdaException {
+    Snapshot.write(this, Snapshot.getFile(directory, getDatasource(), getTable()));
+  }
+
+  /**
+   * Get the pages of the snapshot of the table of this query, when offline. The variables not used by the report are
+   * not read.
+   * @param pageFactory
+   * @return
+   * @throws OdaException if the snapshot was not written with the select and entities filter scripts of this query,
+   * which cannot be evaluated without Opal
+   */
+  PageSource getSnapshotPages(PageFactory pageFactory) throws OdaException {
+    Snapshot snapshot = connection.getSnapshot(getDatasource(), getTable());
+    snapshot.checkScripts(getSelectScript(), getEntitiesScript());
+    return snapshot.newPages(pageFactory, getProjectedVariables());
+  }
+
+  /**
+   * Discard the cached variables of the table of this query, so that they are fetched again from Opal.
+   */
+  public void invalidateMetaData() {
+    Driver.getVariablesCache().invalidate(connection.getURL(), getDatasource(), getTable());
+  }
+
+  /**
+   * Get a key identifying the table of this query in its Opal server.
+   * @return
+   */
+  String getTableKey() {
+    return connection.getURL() + "|" + connection.getUsername() + "|" + getDatasource() + "|" + getTable();
+  }
+
+  /**
+   * Get a key identifying the rows returned by this query, whatever the version of its table.
+   * @return
+   * @throws OdaException
+   */
+  String getResultKey() throws OdaException {
+    return getTableKey() + "|" + getProjectedSelect() + "|" + getWhereScript();
+  }
+
+  /**
+   * Get a digest of the table description and of the selected variables, that changes when the table is updated.
+   * @return
+   * @throws OdaException
+   */
+  String getTableFingerprint() throws OdaException {
+    long start = System.nanoTime();
+    TableDto table = connection.getOpal().getResource(TableDto.class, baseUri().build(), TableDto.newBuilder());
+    metrics.request("table", System.nanoTime() - start, table.getSerializedSize());
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      digest.update(table.toByteArray());
+      for(VariableDto variable : getVariables()) {
+        digest.update(variable.toByteArray());
+      }
+      return PageCache.toHex(digest.digest());
+    } catch(NoSuchAlgorithmException e) {
+      throw new OdaException(e);
+    }
   }
 
   public ValueSetsDto getValueSets(Integer offset, Integer limit) throws OdaException {
-    URI uri = addNonNullQuery(//
+    return getValueSets(getProjectedSelect(), getWhereScript(), offset, limit);
+  }
+
+  /**
+   * Get value sets of variables and entities selected by the given scripts rather than by the ones of this query.
+   * @param select
+   * @param where
+   * @param offset
+   * @param limit
+   * @return
+   * @throws OdaException
+   */
+  ValueSetsDto getValueSets(String select, String where, Integer offset, Integer limit) throws OdaException {
+    return (ValueSetsDto) readResource("valueSets", valueSetsUri(select, where, offset, limit), ValueSetsDto.newBuilder());
+  }
+
+  /**
+   * Request value sets, to be decoded one by one while they are received.
+   * @param offset
+   * @param limit
+   * @return the value sets stream, to be closed
+   * @throws OdaException
+   */
+  ValueSetStream openValueSets(Integer offset, Integer limit) throws OdaException {
+    return new ValueSetStream(this, openResource(valueSetsUri(getProjectedSelect(), getWhereScript(), offset, limit)));
+  }
+
+  private URI valueSetsUri(String select, String where, Integer offset, Integer limit) {
+    return addNonNullQuery(//
     fromBase("valueSets"),//
-    "select", getSelect(),//
+    "select", select,//
+    "where", where,//
     "offset", (offset == null ? null : offset.toString()),//
     "limit", (limit == null ? null : limit.toString())).build();
-    return connection.getOpal().getResource(ValueSetsDto.class, uri, ValueSetsDto.newBuilder());
+  }
+
+  /**
+   * Read a resource, keeping track of its response stream so that it can be aborted by {@link #cancel()}.
+   * @param resource the kind of resource, for the metrics
+   * @param uri
+   * @param builder
+   * @return
+   * @throws OdaException if the request fails or was cancelled
+   */
+  private Message readResource(String resource, URI uri, Message.Builder builder) throws OdaException {
+    long start = System.nanoTime();
+    InputStream content = openResource(uri);
+    try {
+      Message message = builder.mergeFrom(content).build();
+      metrics.request(resource, System.nanoTime() - start, message.getSerializedSize());
+      return message;
+    } catch(IOException e) {
+      checkNotCancelled();
+      throw new OdaException(e);
+    } finally {
+      closeResource(content);
+    }
+  }
+
+  /**
+   * Request a resource and get its response stream, which is kept track of so that it can be aborted by
+   * {@link #cancel()} until it is closed by {@link #closeResource(InputStream)}.
+   * @param uri
+   * @return
+   * @throws OdaException if the request fails or was cancelled
+   */
+  InputStream openResource(URI uri) throws OdaException {
+    checkNotCancelled();
+    InputStream content = null;
+    try {
+      HttpResponse response = connection.getOpal().get(uri);
+      HttpEntity entity = response.getEntity();
+      if(response.getStatusLine().getStatusCode() >= 400) {
+        EntityUtils.consume(entity);
+        throw new OdaException("Request failed: " + uri + " (" + response.getStatusLine().getStatusCode() + " " + response.getStatusLine().getReasonPhrase() + ")");
+      }
+      content = entity.getContent();
+      synchronized(responses) {
+        responses.add(content);
+      }
+      checkNotCancelled();
+      return content;
+    } catch(IOException e) {
+      closeResource(content);
+      checkNotCancelled();
+      throw new OdaException(e);
+    } catch(OdaException e) {
+      closeResource(content);
+      throw e;
+    }
+  }
+
+  /**
+   * Close the response stream of a resource.
+   * @param content may be null
+   */
+  void closeResource(InputStream content) {
+    if(content == null) return;
+    synchronized(responses) {
+      responses.remove(content);
+    }
+    try {
+      content.close();
+    } catch(IOException e) {
+      // ignore
+    }
+  }
+
+  private void checkNotCancelled() throws OdaException {
+    if(cancelled) throw new OdaException("Query cancelled");
   }
 
   public List<VariableEntityDto> getEntities() throws OdaException {
     URI uri = addNonNullQuery(fromBase("entities")).build();
-    return connection.getOpal().getResources(VariableEntityDto.class, uri, VariableEntityDto.newBuilder());
+    long start = System.nanoTime();
+    List<VariableEntityDto> entities = connection.getOpal().getResources(VariableEntityDto.class, uri, VariableEntityDto.newBuilder());
+    metrics.request("entities", System.nanoTime() - start, Metrics.getSerializedSize(entities));
+    return entities;
   }
 
   private UriBuilder addNonNullQuery(UriBuilder builder, String... params) {
@@ -132,8 +420,16 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#executeQuery()
    */
   public IResultSet executeQuery() throws OdaException {
-    IResultSet resultSet = new ResultSet(this);
+    cancelled = false;
+    resetProjection();
+    // registered once executed, until closed by the query or by its connection
+    metrics.register();
+    connection.executed(this);
+    ResultSet resultSet = newResultSet();
     resultSet.setMaxRows(getMaxRows());
+    synchronized(resultSets) {
+      resultSets.add(resultSet);
+    }
     return resultSet;
   }
 
@@ -149,15 +445,265 @@ public class Query implements IQuery {
     return properties.get(SELECT);
   }
 
+  public String getWhere() {
+    return properties.get(WHERE);
+  }
+
+  /**
+   * Get the script selecting the variables to be fetched: the variables selection property restricted to the columns
+   * used by the report, when known from the bound columns property or from the hidden columns of the query
+   * specification. The columns that are not fetched have null values.
+   * @return null if all the variables are fetched
+   * @throws OdaException
+   */
+  String getProjectedSelect() throws OdaException {
+    return getProjection().select;
+  }
+
+  /**
+   * Get the script selecting the variables of the table.
+   * @return null if all the variables are selected
+   */
+  String getSelectScript() {
+    String select = getSelect();
+    return select == null || select.trim().length() == 0 ? null : select;
+  }
+
+  /**
+   * Get the names of the variables used by the report, including the ones needed to filter and sort the rows.
+   * @return null if all the variables are fetched
+   * @throws OdaException
+   */
+  Set<String> getProjectedVariables() throws OdaException {
+    return getProjection().variables;
+  }
+
+  /**
+   * Get the projection of the current execution, computed once as it is needed by each page request.
+   * @return
+   * @throws OdaException
+   */
+  private synchronized Projection getProjection() throws OdaException {
+    if(projection == null) projection = newProjection();
+    return projection;
+  }
+
+  /**
+   * Forget the projection, when the properties or the specification it depends on change.
+   */
+  private synchronized void resetProjection() {
+    projection = null;
+  }
+
+  private Projection newProjection() throws OdaException {
+    String select = getSelectScript();
+    Set<String> variables = findProjectedVariables();
+    if(variables == null) return new Projection(select, null);
+
+    StringBuilder names = new StringBuilder("name().any(");
+    for(String variable : variables) {
+      if(names.charAt(names.length() - 1) != '(') names.append(',');
+      names.append(EntityFilter.quote(variable));
+    }
+    names.append(')');
+    // the select script is sent in the query string of each request
+    if(names.length() > MAX_PROJECTION_LENGTH) return new Projection(select, null);
+    return new Projection(select == null ? names.toString() : "(" + select + ").and(" + names + ")", variables);
+  }
+
+  /**
+   * Find the variables used by the report.
+   * @return null if not known, or if leaving out the other variables is not worth a longer select script
+   * @throws OdaException
+   */
+  private Set<String> findProjectedVariables() throws OdaException {
+    String columns = properties.get(COLUMNS);
+    boolean bound = columns != null && columns.trim().length() > 0;
+    if(!bound && hiddenColumns.isEmpty()) return null;
+
+    ResultSetMetaData metaData = (ResultSetMetaData) getMetaData();
+    int variableCount = metaData.getColumnCount() - 1;
+    Set<String> variables = new LinkedHashSet<String>();
+    if(bound) {
+      for(String column : columns.split(",")) {
+        if(metaData.findColumn(column.trim()) > 1) variables.add(column.trim());
+      }
+    } else {
+      for(int i = 2; i <= metaData.getColumnCount(); i++) {
+        variables.add(metaData.getColumnName(i));
+      }
+    }
+    variables.removeAll(hiddenColumns);
+
+    if(filter != null) filter.addVariables(variables);
+    if(sortSpec != null) {
+      for(int i = 1; i <= sortSpec.getSortKeyCount(); i++) {
+        if(metaData.findColumn(sortSpec.getSortColumn(i)) > 1) variables.add(sortSpec.getSortColumn(i));
+      }
+    }
+
+    // name().any() would match no variable: keep one so that the entities are still listed
+    if(variables.isEmpty() && variableCount > 0) variables.add(metaData.getColumnName(2));
+    if(variables.size() * MIN_PROJECTION_RATIO > variableCount) return null;
+    return variables;
+  }
+
+  /**
+   * Get the filter of the query specification, that is also evaluated on the received rows.
+   * @return null if there is no filter
+   */
+  EntityFilter getFilter() {
+    return filter;
+  }
+
+  /**
+   * Get the script selecting the entities of this query in Opal, combining the entities filter property and the filter
+   * of the query specification. The input parameters are replaced by their values.
+   * @return null if all the entities are selected
+   * @throws OdaException if an input parameter is not bound
+   */
+  String getWhereScript() throws OdaException {
+    String where = getEntitiesScript();
+    if(filter == null) return where;
+    return where == null ? filter.toScript() : "(" + where + ").and(" + filter.toScript() + ")";
+  }
+
+  /**
+   * Get the entities filter property, with its input parameters replaced by their values.
+   * @return null if all the entities are selected
+   * @throws OdaException if an input parameter is not bound
+   */
+  String getEntitiesScript() throws OdaException {
+    String where = getParameters().compile();
+    return where == null || where.trim().length() == 0 ? null : where;
+  }
+
+  /**
+   * Get the number of pages of value sets to be fetched ahead of the one being read.
+   * @return
+   */
+  public int getPrefetch() {
+    return getIntProperty(PREFETCH, DEFAULT_PREFETCH);
+  }
+
+  /**
+   * Get the number of pages of value sets that can be requested concurrently to Opal.
+   * @return
+   */
+  public int getParallelism() {
+    return getIntProperty(PARALLELISM, DEFAULT_PARALLELISM);
+  }
+
+  /**
+   * Get the fixed number of value sets per page, or zero if the page size is adapted at runtime.
+   * @return
+   */
+  public int getPageSize() {
+    return getIntProperty(PAGE_SIZE, 0);
+  }
+
+  /**
+   * Get the targeted size in bytes of a page of value sets, when the page size is adapted at runtime.
+   * @return
+   */
+  public int getPageBytes() {
+    return getIntProperty(PAGE_BYTES, DEFAULT_PAGE_BYTES);
+  }
+
+  /**
+   * Get the targeted time in milliseconds to fetch a page of value sets, when the page size is adapted at runtime.
+   * @return
+   */
+  public int getPageLatency() {
+    return getIntProperty(PAGE_LATENCY, DEFAULT_PAGE_LATENCY);
+  }
+
+  /**
+   * Check whether the pages of value sets are decoded into columns when received, rather than parsed on each access.
+   * @return
+   */
+  public boolean isColumnar() {
+    return Boolean.parseBoolean(properties.get(COLUMNAR));
+  }
+
+  /**
+   * Get the approximate number of bytes of rows that are sorted in memory, beyond which sorted runs are written to
+   * disk.
+   * @return
+   * @throws OdaException if the property is not a positive number
+   */
+  public long getSortMemory() throws OdaException {
+    return parseBytes(SORT_MEMORY, properties.get(SORT_MEMORY), ExternalSort.DEFAULT_MEMORY);
+  }
+
+  /**
+   * Parse a property giving a number of bytes.
+   * @param name
+   * @param value
+   * @param defaultValue if the property is not set
+   * @return
+   * @throws OdaException if the value is not a positive number
+   */
+  static long parseBytes(String name, String value, long defaultValue) throws OdaException {
+    if(value == null || value.trim().length() == 0) return defaultValue;
+    try {
+      long bytes = Long.parseLong(value.trim());
+      if(bytes > 0) return bytes;
+    } catch(NumberFormatException e) {
+      // reported below
+    }
+    throw new OdaException("Invalid " + name + " property value: " + value);
+  }
+
+  private int getIntProperty(String name, int defaultValue) {
+    String value = properties.get(name);
+    if(value == null || value.trim().length() == 0) return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch(NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  /**
+   * Create the result set returned by {@link #executeQuery()}.
+   * @return
+   * @throws OdaException
+   */
+  ResultSet newResultSet() throws OdaException {
+    connection.writeSnapshot(this);
+    return new ResultSet(this);
+  }
+
   public Connection getConnection() {
     return connection;
   }
 
+  /**
+   * Get the request and page counters of this query.
+   * @return
+   */
+  Metrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Forget a result set once closed, it does not need to be cancelled anymore.
+   * @param resultSet
+   */
+  void closed(ResultSet resultSet) {
+    synchronized(resultSets) {
+      resultSets.remove(resultSet);
+    }
+  }
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setProperty(java.lang.String, java.lang.String)
    */
   public void setProperty(String name, String value) throws OdaException {
     properties.put(name, value);
+    resetProjection();
+    if(DATASOURCE.equals(name) || TABLE.equals(name)) metrics.setName(getDatasource() + "." + getTable());
   }
 
   /*
@@ -178,120 +724,105 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#clearInParameters()
    */
   public void clearInParameters() throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().clear();
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setInt(java.lang.String, int)
    */
   public void setInt(String parameterName, int value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setInt(int, int)
    */
   public void setInt(int parameterId, int value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setDouble(java.lang.String, double)
    */
   public void setDouble(String parameterName, double value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setDouble(int, double)
    */
   public void setDouble(int parameterId, double value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setBigDecimal(java.lang.String, java.math.BigDecimal)
    */
   public void setBigDecimal(String parameterName, BigDecimal value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setBigDecimal(int, java.math.BigDecimal)
    */
   public void setBigDecimal(int parameterId, BigDecimal value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setString(java.lang.String, java.lang.String)
    */
   public void setString(String parameterName, String value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setString(int, java.lang.String)
    */
   public void setString(int parameterId, String value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setDate(java.lang.String, java.sql.Date)
    */
   public void setDate(String parameterName, Date value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setDate(int, java.sql.Date)
    */
   public void setDate(int parameterId, Date value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setTime(java.lang.String, java.sql.Time)
    */
   public void setTime(String parameterName, Time value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setTime(int, java.sql.Time)
    */
   public void setTime(int parameterId, Time value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setTimestamp(java.lang.String, java.sql.Timestamp)
    */
   public void setTimestamp(String parameterName, Timestamp value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setTimestamp(int, java.sql.Timestamp)
    */
   public void setTimestamp(int parameterId, Timestamp value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
@@ -300,8 +831,7 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setBoolean(java.lang.String, boolean)
    */
   public void setBoolean(String parameterName, boolean value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
@@ -310,8 +840,7 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setBoolean(int, boolean)
    */
   public void setBoolean(int parameterId, boolean value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
@@ -320,8 +849,7 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setObject(java.lang.String, java.lang.Object)
    */
   public void setObject(String parameterName, Object value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, value);
   }
 
   /*
@@ -330,8 +858,7 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setObject(int, java.lang.Object)
    */
   public void setObject(int parameterId, Object value) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, value);
   }
 
   /*
@@ -340,8 +867,7 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setNull(java.lang.String)
    */
   public void setNull(String parameterName) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
+    getParameters().set(parameterName, null);
   }
 
   /*
@@ -350,41 +876,49 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setNull(int)
    */
   public void setNull(int parameterId) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to input parameter
+    getParameters().set(parameterId, null);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#findInParameter(java.lang.String)
    */
   public int findInParameter(String parameterName) throws OdaException {
-    // TODO Auto-generated method stub
-    // only applies to named input parameter
-    return 0;
+    return getParameters().find(parameterName);
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#getParameterMetaData()
    */
   public IParameterMetaData getParameterMetaData() throws OdaException {
-    // return new ParameterMetaData();
-    return null;
+    return new ParameterMetaData(getDataSetType(), getParameters());
+  }
+
+  /**
+   * Get the input parameters of the entities filter property, parsed again if this property has changed.
+   * @return
+   */
+  private QueryParameters getParameters() {
+    String where = getWhere();
+    if(parameters == null || (where == null ? parameters.getScript() != null : !where.equals(parameters.getScript()))) {
+      parameters = new QueryParameters(where);
+    }
+    return parameters;
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#setSortSpec(org.eclipse.datatools.connectivity.oda.SortSpec)
    */
   public void setSortSpec(SortSpec sortBy) throws OdaException {
-    // only applies to sorting, assumes not supported
-    throw new UnsupportedOperationException();
+    // Opal cannot order value sets, rows are sorted by the result set
+    sortSpec = sortBy;
+    resetProjection();
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IQuery#getSortSpec()
    */
   public SortSpec getSortSpec() throws OdaException {
-    // only applies to sorting
-    return null;
+    return sortSpec;
   }
 
   /*
@@ -395,8 +929,34 @@ public class Query implements IQuery {
    */
   @SuppressWarnings("restriction")
   public void setSpecification(QuerySpecification querySpec) throws OdaException, UnsupportedOperationException {
-    // assumes no support
-    throw new UnsupportedOperationException();
+    ResultSetSpecification resultSpec = querySpec == null ? null : querySpec.getResultSetSpecification();
+    FilterExpression filterSpec = resultSpec == null ? null : resultSpec.getFilterSpecification();
+    // throws UnsupportedOperationException if the filter cannot be entirely evaluated by the driver
+    filter = filterSpec == null ? null : EntityFilter.parse(filterSpec, (ResultSetMetaData) getMetaData());
+    hiddenColumns = new HashSet<String>();
+    ResultProjection projection = resultSpec == null ? null : resultSpec.getResultProjection();
+    if(projection != null && projection.getHiddenResultColumns() != null) {
+      for(ColumnIdentifier column : projection.getHiddenResultColumns()) {
+        String name = getColumnName(column);
+        if(name != null) hiddenColumns.add(name);
+      }
+    }
+    specification = querySpec;
+    resetProjection();
+  }
+
+  /**
+   * Get the name of a column identified by its name or by its position.
+   * @param column
+   * @return null if the column is not found
+   * @throws OdaException
+   */
+  @SuppressWarnings("restriction")
+  private String getColumnName(ColumnIdentifier column) throws OdaException {
+    if(column.hasNameExpression()) return column.getNameExpression();
+    Integer number = column.getNumber();
+    IResultSetMetaData metaData = getMetaData();
+    return number == null || number < 1 || number > metaData.getColumnCount() ? null : metaData.getColumnName(number);
   }
 
   /*
@@ -406,8 +966,7 @@ public class Query implements IQuery {
    */
   @SuppressWarnings("restriction")
   public QuerySpecification getSpecification() {
-    // assumes no support
-    return null;
+    return specification;
   }
 
   /*
@@ -426,8 +985,50 @@ public class Query implements IQuery {
    * @see org.eclipse.datatools.connectivity.oda.IQuery#cancel()
    */
   public void cancel() throws OdaException, UnsupportedOperationException {
-    // assumes unable to cancel while executing a query
-    throw new UnsupportedOperationException();
+    cancelled = true;
+    synchronized(resultSets) {
+      for(ResultSet resultSet : resultSets) {
+        resultSet.cancel();
+      }
+    }
+    // abort the requests in progress rather than reading their responses to the end
+    synchronized(responses) {
+      for(InputStream content : responses) {
+        abort(content);
+      }
+      responses.clear();
+    }
+  }
+
+  private void abort(InputStream content) {
+    try {
+      if(content instanceof ConnectionReleaseTrigger) {
+        ((ConnectionReleaseTrigger) content).abortConnection();
+      } else {
+        content.close();
+      }
+    } catch(IOException e) {
+      // ignore
+    }
+  }
+
+  /**
+   * Variables fetched by an execution of the query.
+   */
+  private static class Projection {
+
+    private final String select;
+
+    private final Set<String> variables;
+
+    /**
+     * @param select null if all the variables are selected
+     * @param variables null if all the variables of the select script are fetched
+     */
+    private Projection(String select, Set<String> variables) {
+      this.select = select;
+      this.variables = variables;
+    }
   }
 
 }
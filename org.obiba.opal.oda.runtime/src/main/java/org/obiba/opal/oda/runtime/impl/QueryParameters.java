@@ -0,0 +1,259 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+
+/**
+ * Input parameters of an entities filter script. <code>?</code> is a positional parameter and <code>:name</code> a
+ * named parameter; a named parameter may appear several times. Placeholders are only recognised where a value is
+ * expected: at the beginning of the script or after an opening bracket, a comma, a semicolon or an operator, but not
+ * in string literals nor in comments. The <code>?</code> and <code>:</code> of a conditional expression or of an object
+ * literal are then left as they are; a placeholder in a branch of a conditional expression is to be put between
+ * parentheses. Parameters are numbered from 1 in their order of first appearance. The bound values are written into
+ * the script as javascript literals; a collection or an array is written as a comma separated list of literals, for
+ * instance to be used as the arguments of <code>$id().any(:ids)</code>.
+ */
+class QueryParameters {
+
+  /**
+   * Characters after which a value is expected.
+   */
+  private static final String VALUE_PRECEDING_CHARACTERS = "([{,;=!<>&|+-*/%^~";
+
+  private final String script;
+
+  /**
+   * Script fragments around the placeholders: fragment i is followed by the parameter at placeholder i.
+   */
+  private final List<String> fragments = new ArrayList<String>();
+
+  /**
+   * Parameter index, 0-based, of each placeholder.
+   */
+  private final List<Integer> placeholders = new ArrayList<Integer>();
+
+  /**
+   * Name of each parameter, null if positional.
+   */
+  private final List<String> names = new ArrayList<String>();
+
+  private final Object[] values;
+
+  private final boolean[] bound;
+
+  /**
+   * @param script the script with placeholders, may be null
+   */
+  QueryParameters(String script) {
+    this.script = script;
+    if(script != null) parse(script);
+    values = new Object[names.size()];
+    bound = new boolean[names.size()];
+  }
+
+  String getScript() {
+    return script;
+  }
+
+  int getCount() {
+    return names.size();
+  }
+
+  /**
+   * Get the name of a parameter.
+   * @param index 1-based parameter index
+   * @return null if positional
+   */
+  String getName(int index) {
+    return names.get(index - 1);
+  }
+
+  /**
+   * Get the SQL type of a parameter, from its bound value.
+   * @param index 1-based parameter index
+   * @return
+   */
+  int getType(int index) {
+    Object value = values[index - 1];
+    if(value instanceof Integer || value instanceof Long || value instanceof Short) return java.sql.Types.INTEGER;
+    if(value instanceof Double || value instanceof Float) return java.sql.Types.DOUBLE;
+    if(value instanceof BigDecimal) return java.sql.Types.DECIMAL;
+    if(value instanceof java.sql.Date) return java.sql.Types.DATE;
+    if(value instanceof java.sql.Time) return java.sql.Types.TIME;
+    if(value instanceof Timestamp) return java.sql.Types.TIMESTAMP;
+    if(value instanceof Boolean) return java.sql.Types.BOOLEAN;
+    return java.sql.Types.CHAR;
+  }
+
+  /**
+   * Get the 1-based index of a named parameter.
+   * @param name
+   * @return
+   * @throws OdaException if there is no such parameter
+   */
+  int find(String name) throws OdaException {
+    int index = names.indexOf(name);
+    if(index < 0) throw new OdaException("Unknown parameter: " + name);
+    return index + 1;
+  }
+
+  void set(int index, Object value) throws OdaException {
+    if(index < 1 || index > values.length) throw new OdaException("Invalid parameter index: " + index);
+    values[index - 1] = value;
+    bound[index - 1] = true;
+  }
+
+  void set(String name, Object value) throws OdaException {
+    set(find(name), value);
+  }
+
+  void clear() {
+    for(int i = 0; i < values.length; i++) {
+      values[i] = null;
+      bound[i] = false;
+    }
+  }
+
+  /**
+   * Get the script with the bound values in place of the placeholders.
+   * @return
+   * @throws OdaException if a parameter is not bound
+   */
+  String compile() throws OdaException {
+    if(placeholders.isEmpty()) return script;
+
+    StringBuilder compiled = new StringBuilder(script.length() + 16 * placeholders.size());
+    for(int i = 0; i < placeholders.size(); i++) {
+      compiled.append(fragments.get(i));
+      int index = placeholders.get(i);
+      if(!bound[index]) {
+        String name = names.get(index);
+        throw new OdaException("Parameter " + (name == null ? String.valueOf(index + 1) : name) + " is not bound");
+      }
+      appendValue(compiled, values[index]);
+    }
+    return compiled.append(fragments.get(placeholders.size())).toString();
+  }
+
+  private void parse(String script) {
+    int start = 0;
+    int length = script.length();
+    // last character that is not a blank nor part of a comment, 0 at the beginning of the script
+    char previous = 0;
+    for(int i = 0; i < length; i++) {
+      char c = script.charAt(i);
+      char next = i + 1 < length ? script.charAt(i + 1) : 0;
+      if(c == '\'' || c == '"') {
+        i = skipString(script, i);
+        previous = c;
+      } else if(c == '/' && next == '/') {
+        int end = script.indexOf('\n', i);
+        i = end < 0 ? length : end;
+      } else if(c == '/' && next == '*') {
+        int end = script.indexOf("*/", i + 2);
+        i = end < 0 ? length : end + 1;
+      } else if(c == '?' && isValueExpected(previous)) {
+        addPlaceholder(script.substring(start, i), null);
+        start = i + 1;
+        previous = c;
+      } else if(c == ':' && isValueExpected(previous) && Character.isJavaIdentifierStart(next)) {
+        int end = i + 2;
+        while(end < length && Character.isJavaIdentifierPart(script.charAt(end))) {
+          end++;
+        }
+        addPlaceholder(script.substring(start, i), script.substring(i + 1, end));
+        start = end;
+        i = end - 1;
+        previous = c;
+      } else if(!Character.isWhitespace(c)) {
+        previous = c;
+      }
+    }
+    fragments.add(script.substring(start));
+  }
+
+  /**
+   * @param fragment the script since the previous placeholder
+   * @param name null if positional
+   */
+  private void addPlaceholder(String fragment, String name) {
+    int index = name == null ? -1 : names.indexOf(name);
+    if(index < 0) {
+      names.add(name);
+      index = names.size() - 1;
+    }
+    fragments.add(fragment);
+    placeholders.add(index);
+  }
+
+  /**
+   * Get the position of the quote closing a string literal.
+   * @param script
+   * @param start position of the opening quote
+   * @return the position of the closing quote, or the last position if the string is not closed
+   */
+  private static int skipString(String script, int start) {
+    char quote = script.charAt(start);
+    for(int i = start + 1; i < script.length(); i++) {
+      char c = script.charAt(i);
+      if(c == '\\') {
+        i++;
+      } else if(c == quote) {
+        return i;
+      }
+    }
+    return script.length() - 1;
+  }
+
+  private static boolean isValueExpected(char previous) {
+    return previous == 0 || VALUE_PRECEDING_CHARACTERS.indexOf(previous) >= 0;
+  }
+
+  private static void appendValue(StringBuilder script, Object value) {
+    if(value instanceof Collection<?>) {
+      appendValues(script, ((Collection<?>) value).iterator());
+    } else if(value != null && value.getClass().isArray()) {
+      List<Object> elements = new ArrayList<Object>();
+      for(int i = 0; i < Array.getLength(value); i++) {
+        elements.add(Array.get(value, i));
+      }
+      appendValues(script, elements.iterator());
+    } else {
+      script.append(toLiteral(value));
+    }
+  }
+
+  private static void appendValues(StringBuilder script, Iterator<?> values) {
+    while(values.hasNext()) {
+      script.append(toLiteral(values.next()));
+      if(values.hasNext()) script.append(',');
+    }
+  }
+
+  private static String toLiteral(Object value) {
+    if(value == null) return "null";
+    if(value instanceof BigDecimal) return ((BigDecimal) value).toPlainString();
+    if(value instanceof Number || value instanceof Boolean) return value.toString();
+    // Opal date times are ISO-8601
+    if(value instanceof Timestamp) return EntityFilter.quote(value.toString().replace(' ', 'T'));
+    return EntityFilter.quote(value.toString());
+  }
+
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+/**
+ * Latency statistics of the requests made for one kind of Opal resource, such as <code>variables</code> or
+ * <code>valueSets</code>. Percentiles are the upper bounds of the histogram buckets they fall into.
+ */
+public class ResourceLatency {
+
+  private final String resource;
+
+  private final long count;
+
+  private final double meanMillis;
+
+  private final long maxMillis;
+
+  private final long p50Millis;
+
+  private final long p90Millis;
+
+  private final long p99Millis;
+
+  private final long[] bucketBoundsMillis;
+
+  private final long[] bucketCounts;
+
+  ResourceLatency(String resource, long count, double meanMillis, long maxMillis, long p50Millis, long p90Millis, long p99Millis, long[] bucketBoundsMillis, long[] bucketCounts) {
+    this.resource = resource;
+    this.count = count;
+    this.meanMillis = meanMillis;
+    this.maxMillis = maxMillis;
+    this.p50Millis = p50Millis;
+    this.p90Millis = p90Millis;
+    this.p99Millis = p99Millis;
+    this.bucketBoundsMillis = bucketBoundsMillis;
+    this.bucketCounts = bucketCounts;
+  }
+
+  public String getResource() {
+    return resource;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public double getMeanMillis() {
+    return meanMillis;
+  }
+
+  public long getMaxMillis() {
+    return maxMillis;
+  }
+
+  public long getP50Millis() {
+    return p50Millis;
+  }
+
+  public long getP90Millis() {
+    return p90Millis;
+  }
+
+  public long getP99Millis() {
+    return p99Millis;
+  }
+
+  /**
+   * Get the inclusive upper bound of each bucket, the last one has no bound.
+   * @return
+   */
+  public long[] getBucketBoundsMillis() {
+    return bucketBoundsMillis.clone();
+  }
+
+  public long[] getBucketCounts() {
+    return bucketCounts.clone();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d requests, mean %.1f ms, p50 %d ms, p90 %d ms, p99 %d ms, max %d ms", resource, count, meanMillis, p50Millis, p90Millis, p99Millis, maxMillis);
+  }
+
+}
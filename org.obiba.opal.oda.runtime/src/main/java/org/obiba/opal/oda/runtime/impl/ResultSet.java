@@ -15,16 +15,14 @@ import java.sql.Date;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.List;
+import java.util.TimeZone;
 
 import org.eclipse.datatools.connectivity.oda.IBlob;
 import org.eclipse.datatools.connectivity.oda.IClob;
 import org.eclipse.datatools.connectivity.oda.IResultSet;
 import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
 import org.eclipse.datatools.connectivity.oda.OdaException;
-import org.obiba.opal.web.model.Magma.ValueSetsDto;
-import org.obiba.opal.web.model.Magma.VariableEntityDto;
+import org.eclipse.datatools.connectivity.oda.SortSpec;
 
 /**
  * Implementation class of IResultSet for an ODA runtime driver. <br>
@@ -34,29 +32,39 @@ import org.obiba.opal.web.model.Magma.VariableEntityDto;
  */
 public class ResultSet implements IResultSet {
 
-  private static final int VALUE_SET_BUFFER_LENGTH = 100;
-
-  private final SimpleDateFormat DATETIME_ISO_8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZZ");
+  private final DateTimeParser dateTimeParser = new DateTimeParser(TimeZone.getDefault());
 
   private int maxRows;
 
   private int currentRowId;
 
-  private ValueSetsDto.ValueSetDto currentValueSet;
+  private ValueSetPage currentPage;
+
+  private int currentPageRow;
 
   private Query query;
 
   private ResultSetMetaData metaData;
 
-  private List<VariableEntityDto> entities;
+  private PageFactory pageFactory;
 
-  private ValueSetsDto valueSetBuffer;
+  private volatile PageSource fetcher;
 
-  private int valueSetOffset;
+  /**
+   * Pages to be read instead of the value sets of the query, null if none.
+   */
+  private PageSource source;
+
+  private int pageOffset;
 
   private boolean wasNull;
 
-  private int[] columnToVariableIndices;
+  /**
+   * Number of rows already added to the metrics of the query.
+   */
+  private int countedRows;
+
+  private volatile boolean cancelled;
 
   /**
    * @param connection
@@ -66,6 +74,15 @@ public class ResultSet implements IResultSet {
     this.query = query;
   }
 
+  /**
+   * @param query
+   * @param source the pages to be read, instead of the value sets of the query
+   */
+  ResultSet(Query query, PageSource source) {
+    this(query);
+    this.source = source;
+  }
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getMetaData()
    */
@@ -80,7 +97,7 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#setMaxRows(int)
    */
   public void setMaxRows(int max) throws OdaException {
-    maxRows = Math.min(max, getEntities().size());
+    maxRows = max;
   }
 
   /**
@@ -95,72 +112,132 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#next()
    */
   public boolean next() throws OdaException {
-    if((maxRows == 0 || currentRowId < maxRows) && currentRowId < getEntities().size()) {
-      currentValueSet = getValueSetAt(currentRowId);
-      currentRowId++;
-      return true;
+    if(cancelled) return false;
+    if(maxRows == 0 || currentRowId < maxRows) {
+      if(moveTo(currentRowId) && !cancelled) {
+        currentRowId++;
+        return true;
+      }
     }
 
     return false;
   }
 
-  private List<VariableEntityDto> getEntities() throws OdaException {
-    if(entities == null) {
-      entities = query.getEntities();
+  /**
+   * Move the cursor to the value set at the 0-based row index. The table is scanned page by page without knowing its
+   * size beforehand: the end is reached when Opal returns a short or empty page.
+   * @param index
+   * @return false if there is no more value sets
+   * @throws OdaException
+   */
+  private boolean moveTo(int index) throws OdaException {
+    if(currentPage == null || index >= pageOffset + currentPage.size()) {
+      if(currentPage != null) pageOffset += currentPage.size();
+      countRows();
+      currentPage = nextPage();
+      if(currentPage == null) return false;
+    }
+    currentPageRow = index - pageOffset;
+    return true;
+  }
+
+  private ValueSetPage nextPage() throws OdaException {
+    if(fetcher == null) {
+      fetcher = newPageSource();
+      if(cancelled) fetcher.cancel();
+    }
+    return fetcher.nextPage();
+  }
+
+  private PageSource newPageSource() throws OdaException {
+    SortSpec sortSpec = query.getSortSpec();
+    if(sortSpec == null || sortSpec.getSortKeyCount() == 0) return source == null ? newValueSetSource(maxRows) : source;
+
+    // all the rows are needed to find the first ones
+    int[] keyColumns = new int[sortSpec.getSortKeyCount()];
+    boolean[] descending = new boolean[keyColumns.length];
+    for(int i = 0; i < keyColumns.length; i++) {
+      keyColumns[i] = findColumn(sortSpec.getSortColumn(i + 1));
+      if(keyColumns[i] < 1) throw new OdaException("Unknown sort column: " + sortSpec.getSortColumn(i + 1));
+      descending[i] = sortSpec.getSortOrder(i + 1) == SortSpec.sortDesc;
+    }
+    long sortMemory = query.getSortMemory();
+    MemoryBudget budget = query.getConnection().getMemoryBudget();
+    // the rows sorted in memory count in the budget of the connection as well
+    if(budget.isLimited()) sortMemory = Math.min(sortMemory, budget.getMaxBytes() / 2);
+    return new ExternalSort(source == null ? newValueSetSource(0) : source, getPageFactory(), keyColumns, descending, sortMemory);
+  }
+
+  private PageSource newValueSetSource(int rowCount) throws OdaException {
+    EntityFilter filter = query.getFilter();
+    if(filter == null) return newUnfilteredSource(rowCount);
+    // filtered rows are counted once received, in case Opal did not apply the filter
+    return new FilteredPages(newUnfilteredSource(0), filter, getPageFactory());
+  }
+
+  private PageSource newUnfilteredSource(int rowCount) throws OdaException {
+    Connection connection = query.getConnection();
+    if(connection.isOffline()) {
+      return query.getSnapshotPages(getPageFactory());
     }
-    return entities;
+
+    PageSizer pageSizer = new PageSizer(query.getPageSize(), query.getPageBytes(), query.getPageLatency());
+    ValueSetFetcher valueSetFetcher = new ValueSetFetcher(query, getPageFactory(), pageSizer, connection.getMemoryBudget(), query.getPrefetch(), query.getParallelism(), rowCount > 0 ? rowCount : Integer.MAX_VALUE);
+    PageCache cache = Driver.getPageCache();
+    // a limited read is a single request, checking the table version for the cache would double it
+    if(cache == null || rowCount > 0) return valueSetFetcher;
+    return cache.getPages(query, getPageFactory(), valueSetFetcher);
   }
 
-  private ValueSetsDto.ValueSetDto getValueSetAt(int index) throws OdaException {
-    if(valueSetBuffer == null) {
-      valueSetOffset = 0;
-      valueSetBuffer = query.getValueSets(0, VALUE_SET_BUFFER_LENGTH);
-    } else if(index >= valueSetOffset + VALUE_SET_BUFFER_LENGTH) {
-      valueSetOffset += VALUE_SET_BUFFER_LENGTH;
-      valueSetBuffer = query.getValueSets(valueSetOffset, VALUE_SET_BUFFER_LENGTH);
+  private PageFactory getPageFactory() throws OdaException {
+    if(pageFactory == null) {
+      pageFactory = new PageFactory((ResultSetMetaData) getMetaData(), query.isColumnar(), query.getMetrics());
     }
-    return valueSetBuffer.getValueSets(index - valueSetOffset);
+    return pageFactory;
   }
 
   /**
-   * Get the string value at the 1-based column index for the current row.
+   * Check whether the value at the 1-based column index for the current row is null, and remember it for
+   * {@link #wasNull()}.
    * @param index
    * @return
    */
-  private String getValueAt(int index) throws OdaException {
-    // index is the column number, but the variables are not in the same order in the value set
-    // so build a map from column index to variable index
-    if(columnToVariableIndices == null) {
-      columnToVariableIndices = new int[getMetaData().getColumnCount()];
-      for(int i = 2; i <= getMetaData().getColumnCount(); i++) {
-        String columnName = getMetaData().getColumnName(i);
-        columnToVariableIndices[i - 1] = findValueSetColumn(columnName);
-        // log.info(columnName + " [" + (i - 1) + "]=" + columnToVariableIndices[i - 1]);
-      }
-    }
-
-    String rval = null;
-    if(index == 1) {
-      rval = currentValueSet.getIdentifier();
-    } else {
-      ValueSetsDto.ValueDto value = currentValueSet.getValues(columnToVariableIndices[index - 1]);
-      if(value.hasValue()) {
-        rval = value.getValue();
-      }
-    }
-    wasNull = (rval == null);
-    return rval;
+  private boolean isNull(int index) {
+    wasNull = currentPage.isNull(currentPageRow, index);
+    return wasNull;
+  }
 
+  /**
+   * Stop reading rows, from any thread: pending page fetches are stopped and {@link #next()} returns false.
+   */
+  void cancel() {
+    cancelled = true;
+    PageSource source = fetcher;
+    if(source != null) source.cancel();
   }
 
   /*
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#close()
    */
   public void close() throws OdaException {
-    entities = null;
+    if(fetcher != null) {
+      fetcher.close();
+      fetcher = null;
+    } else if(source != null) {
+      source.close();
+    }
+    source = null;
+    query.closed(this);
+    countRows();
     currentRowId = 0; // reset row counter
-    valueSetBuffer = null;
-    valueSetOffset = 0;
+    countedRows = 0;
+    currentPage = null;
+    pageOffset = 0;
+  }
+
+  private void countRows() {
+    query.getMetrics().rows(currentRowId - countedRows);
+    countedRows = currentRowId;
   }
 
   /*
@@ -174,7 +251,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getString(int)
    */
   public String getString(int index) throws OdaException {
-    return getValueAt(index);
+    if(isNull(index)) return null;
+    return currentPage.getString(currentPageRow, index);
   }
 
   /*
@@ -188,9 +266,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getInt(int)
    */
   public int getInt(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return 0;
-    return Integer.parseInt(value);
+    if(isNull(index)) return 0;
+    return currentPage.getInt(currentPageRow, index);
   }
 
   /*
@@ -204,9 +281,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getDouble(int)
    */
   public double getDouble(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return 0;
-    return Double.parseDouble(value);
+    if(isNull(index)) return 0;
+    return currentPage.getDouble(currentPageRow, index);
   }
 
   /*
@@ -220,9 +296,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getBigDecimal(int)
    */
   public BigDecimal getBigDecimal(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return null;
-    return new BigDecimal(value);
+    if(isNull(index)) return null;
+    return currentPage.getBigDecimal(currentPageRow, index);
   }
 
   /*
@@ -236,9 +311,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getDate(int)
    */
   public Date getDate(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return null;
-    return Date.valueOf(value);
+    if(isNull(index)) return null;
+    return currentPage.getDate(currentPageRow, index);
   }
 
   /*
@@ -252,8 +326,13 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getTime(int)
    */
   public Time getTime(int index) throws OdaException {
-    // TODO Auto-generated method stub
-    throw new UnsupportedOperationException();
+    if(isNull(index)) return null;
+    String value = currentPage.getString(currentPageRow, index);
+    try {
+      return dateTimeParser.parseTime(value);
+    } catch(ParseException e) {
+      throw new OdaException(e);
+    }
   }
 
   /*
@@ -267,10 +346,10 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getTimestamp(int)
    */
   public Timestamp getTimestamp(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return null;
+    if(isNull(index)) return null;
+    String value = currentPage.getString(currentPageRow, index);
     try {
-      return new Timestamp(DATETIME_ISO_8601.parse(value).getTime());
+      return dateTimeParser.parseTimestamp(value);
     } catch(ParseException e) {
       throw new OdaException(e);
     }
@@ -319,9 +398,8 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#getBoolean(int)
    */
   public boolean getBoolean(int index) throws OdaException {
-    String value = getValueAt(index);
-    if(value == null) return false;
-    return Boolean.parseBoolean(value);
+    if(isNull(index)) return false;
+    return currentPage.getBoolean(currentPageRow, index);
   }
 
   /*
@@ -363,22 +441,11 @@ public class ResultSet implements IResultSet {
    * @see org.eclipse.datatools.connectivity.oda.IResultSet#findColumn(java.lang.String)
    */
   public int findColumn(String columnName) throws OdaException {
-    for(int i = 1; i <= getMetaData().getColumnCount(); i++) {
-      if(getMetaData().getColumnName(i).equals(columnName)) {
-        return i;
-      }
-    }
-    return -1;
+    return ((ResultSetMetaData) getMetaData()).findColumn(columnName);
   }
 
   public int findValueSetColumn(String columnName) throws OdaException {
-    List<String> variables = valueSetBuffer.getVariablesList();
-    for(int i = 0; i < variables.size(); i++) {
-      if(variables.get(i).equals(columnName)) {
-        return i;
-      }
-    }
-    return -1;
+    return pageFactory == null ? -1 : pageFactory.findVariable(columnName);
   }
 
 }
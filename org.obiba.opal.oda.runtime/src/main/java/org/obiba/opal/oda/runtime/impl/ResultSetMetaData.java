@@ -10,7 +10,10 @@
 
 package org.obiba.opal.oda.runtime.impl;
 
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.eclipse.datatools.connectivity.oda.IResultSetMetaData;
 import org.eclipse.datatools.connectivity.oda.OdaException;
@@ -27,12 +30,42 @@ public class ResultSetMetaData implements IResultSetMetaData {
 
   public static final String ENTITY_IDENTIFIER = "ID";
 
+  private static final Map<String, Integer> VALUE_TYPES = new HashMap<String, Integer>();
+
+  static {
+    VALUE_TYPES.put("text", java.sql.Types.VARCHAR);
+    VALUE_TYPES.put("integer", java.sql.Types.INTEGER);
+    VALUE_TYPES.put("decimal", java.sql.Types.DECIMAL);
+    VALUE_TYPES.put("boolean", java.sql.Types.BOOLEAN);
+    VALUE_TYPES.put("date", java.sql.Types.DATE);
+    VALUE_TYPES.put("datetime", java.sql.Types.TIMESTAMP);
+    VALUE_TYPES.put("binary", java.sql.Types.BINARY);
+    VALUE_TYPES.put("locale", java.sql.Types.VARCHAR);
+  }
+
+  private static final int UNRESOLVED_TYPE = Integer.MIN_VALUE;
+
+  private final String dataSetType;
+
   private List<VariableDto> variables;
 
   private String entityType;
 
+  private Map<String, Integer> columnIndices;
+
+  private int[] columnTypes;
+
   public ResultSetMetaData(List<VariableDto> variables) {
+    this(Query.DATA_SET_TYPE, variables);
+  }
+
+  /**
+   * @param dataSetType the data set type declaring the native data types
+   * @param variables
+   */
+  public ResultSetMetaData(String dataSetType, List<VariableDto> variables) {
     super();
+    this.dataSetType = dataSetType;
     this.variables = variables;
   }
 
@@ -68,6 +101,25 @@ public class ResultSetMetaData implements IResultSetMetaData {
     return variables.size() + 1;
   }
 
+  /**
+   * Get the 1-based index of the column with the given name.
+   * @param columnName
+   * @return -1 if there is no such column
+   * @throws OdaException
+   */
+  public int findColumn(String columnName) throws OdaException {
+    if(columnIndices == null) {
+      Map<String, Integer> indices = new HashMap<String, Integer>();
+      for(int i = getColumnCount(); i >= 1; i--) {
+        // first column wins in case of duplicate names
+        indices.put(getColumnName(i), i);
+      }
+      columnIndices = indices;
+    }
+    Integer index = columnIndices.get(columnName);
+    return index == null ? -1 : index;
+  }
+
   /*
    * @see org.eclipse.datatools.connectivity.oda.IResultSetMetaData#getColumnName(int)
    */
@@ -108,26 +160,17 @@ public class ResultSetMetaData implements IResultSetMetaData {
   public int getColumnType(int index) throws OdaException {
     if(index == 1) return java.sql.Types.VARCHAR;
 
-    String valueType = getVariable(index).getValueType();
-    if(valueType.equals("text")) {
-      return java.sql.Types.VARCHAR;
-    } else if(valueType.equals("integer")) {
-      return java.sql.Types.INTEGER;
-    } else if(valueType.equals("decimal")) {
-      return java.sql.Types.DECIMAL;
-    } else if(valueType.equals("boolean")) {
-      return java.sql.Types.BOOLEAN;
-    } else if(valueType.equals("date")) {
-      return java.sql.Types.DATE;
-    } else if(valueType.equals("datetime")) {
-      return java.sql.Types.TIMESTAMP;
-    } else if(valueType.equals("binary")) {
-      return java.sql.Types.BINARY;
-    } else if(valueType.equals("locale")) {
-      return java.sql.Types.VARCHAR;
-    } else {
-      throw new OdaException("Unidentified variable value type: " + valueType);
+    if(columnTypes == null) {
+      columnTypes = new int[getColumnCount() + 1];
+      Arrays.fill(columnTypes, UNRESOLVED_TYPE);
+    }
+    if(columnTypes[index] == UNRESOLVED_TYPE) {
+      String valueType = getVariable(index).getValueType();
+      Integer type = VALUE_TYPES.get(valueType);
+      if(type == null) throw new OdaException("Unidentified variable value type: " + valueType);
+      columnTypes[index] = type;
     }
+    return columnTypes[index];
   }
 
   /*
@@ -135,7 +178,7 @@ public class ResultSetMetaData implements IResultSetMetaData {
    */
   public String getColumnTypeName(int index) throws OdaException {
     int nativeTypeCode = getColumnType(index);
-    return Driver.getNativeDataTypeName(nativeTypeCode);
+    return Driver.getNativeDataTypeName(dataSetType, nativeTypeCode);
   }
 
   /*
@@ -0,0 +1,374 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.web.model.Magma.DatasourceDto;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+import org.obiba.opal.web.model.Magma.VariableDto;
+
+/**
+ * Local copy of the value sets of an Opal table, that can be queried without Opal. The file is made of chunks of
+ * rows, each chunk storing the entity identifiers and then the values of each variable, followed by a footer with the
+ * select and entities filter scripts of the copy, the variables and the position of the chunks. Chunks are read
+ * through memory mapping.
+ */
+class Snapshot {
+
+  static final String SUFFIX = ".snapshot";
+
+  private static final long MAGIC = 0x4f50414c534e4150L; // OPALSNAP
+
+  private static final int VERSION = 2;
+
+  private static final int NULL_LENGTH = -1;
+
+  private final File path;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  private final String select;
+
+  private final String where;
+
+  private final List<VariableDto> variables;
+
+  private final List<String> variableNames;
+
+  private final long[] chunkOffsets;
+
+  private final int[] chunkSizes;
+
+  /**
+   * Open a snapshot file.
+   * @param file
+   * @throws OdaException if the file cannot be read
+   */
+  Snapshot(File file) throws OdaException {
+    this.path = file;
+    try {
+      this.file = new RandomAccessFile(file, "r");
+      this.channel = this.file.getChannel();
+      long size = channel.size();
+      if(size < 28) throw new OdaException("Not an Opal snapshot: " + file);
+      ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, 12);
+      ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, size - 16, 16);
+      long footerOffset = trailer.getLong();
+      if(header.getLong() != MAGIC || trailer.getLong() != MAGIC) throw new OdaException("Not an Opal snapshot: " + file);
+      if(header.getInt() != VERSION) throw new OdaException("Unsupported Opal snapshot version: " + file);
+
+      ByteBuffer footer = channel.map(FileChannel.MapMode.READ_ONLY, footerOffset, size - 16 - footerOffset);
+      String[] scripts = new String[2];
+      readStrings(footer, scripts, new byte[256]);
+      select = scripts[0];
+      where = scripts[1];
+      List<VariableDto> variables = new ArrayList<VariableDto>();
+      List<String> variableNames = new ArrayList<String>();
+      for(int i = footer.getInt(); i > 0; i--) {
+        byte[] bytes = new byte[footer.getInt()];
+        footer.get(bytes);
+        VariableDto variable = VariableDto.parseFrom(bytes);
+        variables.add(variable);
+        variableNames.add(variable.getName());
+      }
+      this.variables = Collections.unmodifiableList(variables);
+      this.variableNames = Collections.unmodifiableList(variableNames);
+      int chunkCount = footer.getInt();
+      chunkOffsets = new long[chunkCount + 1];
+      chunkSizes = new int[chunkCount];
+      for(int i = 0; i < chunkCount; i++) {
+        chunkOffsets[i] = footer.getLong();
+        chunkSizes[i] = footer.getInt();
+      }
+      chunkOffsets[chunkCount] = footerOffset;
+    } catch(IOException e) {
+      throw new OdaException(e);
+    }
+  }
+
+  /**
+   * Get the snapshot file of a table in a snapshot directory.
+   * @param directory
+   * @param datasource
+   * @param table
+   * @return
+   */
+  static File getFile(File directory, String datasource, String table) {
+    return new File(new File(directory, datasource), table + SUFFIX);
+  }
+
+  /**
+   * List the datasources and tables having a snapshot in a snapshot directory.
+   * @param directory
+   * @return
+   */
+  static List<DatasourceDto> getDatasources(File directory) {
+    List<DatasourceDto> datasources = new ArrayList<DatasourceDto>();
+    File[] datasourceDirectories = directory.listFiles();
+    if(datasourceDirectories == null) return datasources;
+    Arrays.sort(datasourceDirectories);
+    for(File datasourceDirectory : datasourceDirectories) {
+      File[] files = datasourceDirectory.listFiles();
+      if(files == null) continue;
+      Arrays.sort(files);
+      DatasourceDto.Builder datasource = DatasourceDto.newBuilder().setName(datasourceDirectory.getName());
+      for(File file : files) {
+        String name = file.getName();
+        if(file.isFile() && name.endsWith(SUFFIX)) datasource.addTable(name.substring(0, name.length() - SUFFIX.length()));
+      }
+      datasources.add(datasource.buildPartial());
+    }
+    return datasources;
+  }
+
+  List<VariableDto> getVariables() {
+    return variables;
+  }
+
+  /**
+   * Check that the snapshot was written with the given select and entities filter scripts: they are evaluated by Opal
+   * and cannot be applied to the rows of the snapshot.
+   * @param selectScript null if all the variables are selected
+   * @param whereScript null if all the entities are selected
+   * @throws OdaException if a script differs
+   */
+  void checkScripts(String selectScript, String whereScript) throws OdaException {
+    if(!equals(select, selectScript)) {
+      throw new OdaException("Snapshot " + path + " has the variables of select script '" + select + "', not of '" + selectScript + "'");
+    }
+    if(!equals(where, whereScript)) {
+      throw new OdaException("Snapshot " + path + " has the entities of filter script '" + where + "', not of '" + whereScript + "'");
+    }
+  }
+
+  /**
+   * Read the chunks of the snapshot, in order.
+   * @param pageFactory
+   * @param projection names of the variables to be read, null for all of them
+   * @return
+   */
+  PageSource newPages(final PageFactory pageFactory, final Set<String> projection) {
+    return new PageSource() {
+
+      private int chunk;
+
+      public ValueSetPage nextPage() throws OdaException {
+        if(chunk >= chunkSizes.length) return null;
+        ValueSetPage page = readChunk(chunk, pageFactory, projection);
+        chunk++;
+        return page;
+      }
+
+      public void close() {
+        chunk = chunkSizes.length;
+      }
+
+      public void cancel() {
+        // chunks are read from the local disk, the result set stops reading them
+      }
+    };
+  }
+
+  void close() {
+    try {
+      file.close();
+    } catch(IOException e) {
+      // ignore
+    }
+  }
+
+  private ValueSetPage readChunk(int chunk, PageFactory pageFactory, Set<String> projection) throws OdaException {
+    try {
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunkOffsets[chunk], chunkOffsets[chunk + 1] - chunkOffsets[chunk]);
+      int size = chunkSizes[chunk];
+      byte[] bytes = new byte[256];
+      String[] identifiers = new String[size];
+      bytes = readStrings(buffer, identifiers, bytes);
+      String[][] values = new String[variables.size()][];
+      for(int i = 0; i < values.length; i++) {
+        if(projection == null || projection.contains(variableNames.get(i))) {
+          values[i] = new String[size];
+          bytes = readStrings(buffer, values[i], bytes);
+        } else {
+          // not used by the report, null as when not fetched from Opal
+          skipStrings(buffer, size);
+        }
+      }
+      return pageFactory.newPage(identifiers, variableNames, values);
+    } catch(IOException e) {
+      throw new OdaException(e);
+    }
+  }
+
+  private static byte[] readStrings(ByteBuffer buffer, String[] strings, byte[] bytes) throws IOException {
+    for(int i = 0; i < strings.length; i++) {
+      int length = buffer.getInt();
+      if(length == NULL_LENGTH) continue;
+      if(length > bytes.length) bytes = new byte[Math.max(length, bytes.length * 2)];
+      buffer.get(bytes, 0, length);
+      strings[i] = new String(bytes, 0, length, "UTF-8");
+    }
+    return bytes;
+  }
+
+  private static void skipStrings(ByteBuffer buffer, int count) {
+    for(int i = 0; i < count; i++) {
+      int length = buffer.getInt();
+      if(length != NULL_LENGTH) buffer.position(buffer.position() + length);
+    }
+  }
+
+  private static boolean equals(String s1, String s2) {
+    return s1 == null ? s2 == null : s1.equals(s2);
+  }
+
+  /**
+   * Copy the value sets of a query into a snapshot file. The value sets of the select and entities filter scripts are
+   * fetched page by page, a page becoming a chunk of the snapshot.
+   * @param query
+   * @param file
+   * @throws OdaException
+   */
+  static void write(Query query, File file) throws OdaException {
+    File directory = file.getAbsoluteFile().getParentFile();
+    if(!directory.isDirectory() && !directory.mkdirs()) throw new OdaException("Cannot create directory " + directory);
+
+    File tmpFile = null;
+    try {
+      tmpFile = File.createTempFile(file.getName(), ".tmp", directory);
+      String select = query.getSelectScript();
+      String where = query.getEntitiesScript();
+      List<VariableDto> variables = query.getVariables();
+      List<Long> chunkOffsets = new ArrayList<Long>();
+      List<Integer> chunkSizes = new ArrayList<Integer>();
+      CountingOutputStream counter = new CountingOutputStream(new FileOutputStream(tmpFile));
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter));
+      try {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+
+        PageSizer pageSizer = new PageSizer(query.getPageSize(), query.getPageBytes(), query.getPageLatency());
+        int offset = 0;
+        while(true) {
+          int limit = pageSizer.getPageSize();
+          long start = System.currentTimeMillis();
+          ValueSetsDto valueSets = query.getValueSets(select, where, offset, limit);
+          int size = valueSets.getValueSetsCount();
+          pageSizer.observe(size, valueSets.getSerializedSize(), System.currentTimeMillis() - start);
+          if(size > 0) {
+            out.flush();
+            chunkOffsets.add(counter.count);
+            chunkSizes.add(size);
+            writeChunk(out, valueSets, variables);
+          }
+          if(size < limit) break;
+          offset += size;
+        }
+
+        out.flush();
+        long footerOffset = counter.count;
+        writeString(out, select);
+        writeString(out, where);
+        out.writeInt(variables.size());
+        for(VariableDto variable : variables) {
+          byte[] bytes = variable.toByteArray();
+          out.writeInt(bytes.length);
+          out.write(bytes);
+        }
+        out.writeInt(chunkOffsets.size());
+        for(int i = 0; i < chunkOffsets.size(); i++) {
+          out.writeLong(chunkOffsets.get(i));
+          out.writeInt(chunkSizes.get(i));
+        }
+        out.writeLong(footerOffset);
+        out.writeLong(MAGIC);
+      } finally {
+        out.close();
+      }
+      if(file.exists() && !file.delete()) throw new OdaException("Cannot replace snapshot " + file);
+      if(!tmpFile.renameTo(file)) throw new OdaException("Cannot write snapshot " + file);
+    } catch(IOException e) {
+      throw new OdaException(e);
+    } finally {
+      if(tmpFile != null) tmpFile.delete();
+    }
+  }
+
+  private static void writeChunk(DataOutputStream out, ValueSetsDto valueSets, List<VariableDto> variables) throws IOException {
+    Map<String, Integer> variableIndices = new HashMap<String, Integer>();
+    for(int i = 0; i < valueSets.getVariablesCount(); i++) {
+      variableIndices.put(valueSets.getVariables(i), i);
+    }
+
+    int size = valueSets.getValueSetsCount();
+    for(int row = 0; row < size; row++) {
+      writeString(out, valueSets.getValueSets(row).getIdentifier());
+    }
+    for(VariableDto variable : variables) {
+      Integer index = variableIndices.get(variable.getName());
+      for(int row = 0; row < size; row++) {
+        ValueSetsDto.ValueDto value = index == null ? null : valueSets.getValueSets(row).getValues(index);
+        writeString(out, value != null && value.hasValue() ? value.getValue() : null);
+      }
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    if(value == null) {
+      out.writeInt(NULL_LENGTH);
+    } else {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long count;
+
+    private CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+
+/**
+ * Converts the string values of a column to the types requested by the result set getters. A decoder is resolved once
+ * per column from its SQL type. The parsers handle the common number and date formats found in Opal value sets
+ * without creating intermediate objects, and fall back on the JDK parsers for anything else.
+ */
+abstract class ValueDecoder {
+
+  /**
+   * Decoder of text, boolean, date and any other column without a specific representation.
+   */
+  static final ValueDecoder DEFAULT = new ValueDecoder() {
+  };
+
+  static final ValueDecoder INTEGER = new ValueDecoder() {
+
+    @Override
+    double toDouble(String value) {
+      try {
+        return parseLong(value);
+      } catch(NumberFormatException e) {
+        // not a long, such as 12.0 or beyond the long range
+        return parseDouble(value);
+      }
+    }
+
+    @Override
+    BigDecimal toBigDecimal(String value) {
+      try {
+        return BigDecimal.valueOf(parseLong(value));
+      } catch(NumberFormatException e) {
+        return parseBigDecimal(value);
+      }
+    }
+  };
+
+  static final ValueDecoder DECIMAL = new ValueDecoder() {
+
+    @Override
+    int toInt(String value) {
+      return (int) parseDouble(value);
+    }
+  };
+
+  static final ValueDecoder DATETIME = new ValueDecoder() {
+
+    @Override
+    Date toDate(String value) {
+      // date part of yyyy-MM-ddTHH:mm:ss.SSSZ
+      Date date = value.length() > DATE_LENGTH && value.charAt(DATE_LENGTH) == 'T' ? fastDate(value) : null;
+      return date == null ? parseDate(value) : date;
+    }
+  };
+
+  private static final int DATE_LENGTH = 10;
+
+  private static final int MAX_INT_DIGITS = 9;
+
+  private static final int MAX_LONG_DIGITS = 18;
+
+  /**
+   * Largest integer that is exactly represented by a double.
+   */
+  private static final long MAX_EXACT_DOUBLE = 1L << 53;
+
+  /**
+   * Powers of ten that are exactly represented by a double.
+   */
+  private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+  /**
+   * Get the decoder for a column of the given SQL type.
+   * @param sqlType
+   * @return
+   */
+  static ValueDecoder forType(int sqlType) {
+    switch(sqlType) {
+    case java.sql.Types.INTEGER:
+      return INTEGER;
+    case java.sql.Types.DECIMAL:
+      return DECIMAL;
+    case java.sql.Types.TIMESTAMP:
+      return DATETIME;
+    default:
+      return DEFAULT;
+    }
+  }
+
+  int toInt(String value) {
+    return parseInt(value);
+  }
+
+  double toDouble(String value) {
+    return parseDouble(value);
+  }
+
+  BigDecimal toBigDecimal(String value) {
+    return parseBigDecimal(value);
+  }
+
+  Date toDate(String value) {
+    return parseDate(value);
+  }
+
+  boolean toBoolean(String value) {
+    return Boolean.parseBoolean(value);
+  }
+
+  static int parseInt(String value) {
+    int length = value.length();
+    int start = signLength(value);
+    if(length == start || length - start > MAX_INT_DIGITS) return Integer.parseInt(value);
+
+    int result = 0;
+    for(int i = start; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if(digit < 0 || digit > 9) return Integer.parseInt(value);
+      result = result * 10 + digit;
+    }
+    return value.charAt(0) == '-' ? -result : result;
+  }
+
+  static long parseLong(String value) {
+    int length = value.length();
+    int start = signLength(value);
+    if(length == start || length - start > MAX_LONG_DIGITS) return Long.parseLong(value);
+
+    long result = 0;
+    for(int i = start; i < length; i++) {
+      int digit = value.charAt(i) - '0';
+      if(digit < 0 || digit > 9) return Long.parseLong(value);
+      result = result * 10 + digit;
+    }
+    return value.charAt(0) == '-' ? -result : result;
+  }
+
+  /**
+   * Parse a plain decimal number: when its digits fit in a double and it has at most 22 fraction digits, the result of
+   * a single division is the correctly rounded value, as returned by {@link Double#parseDouble(String)}.
+   * @param value
+   * @return
+   */
+  static double parseDouble(String value) {
+    int length = value.length();
+    int start = signLength(value);
+    long unscaled = 0;
+    int scale = -1;
+    for(int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if(c >= '0' && c <= '9') {
+        unscaled = unscaled * 10 + (c - '0');
+        if(unscaled >= MAX_EXACT_DOUBLE) return Double.parseDouble(value);
+        if(scale >= 0) scale++;
+      } else if(c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        return Double.parseDouble(value);
+      }
+    }
+    if(length == start || scale == 0 || scale >= POWERS_OF_TEN.length) return Double.parseDouble(value);
+
+    double result = scale < 0 ? unscaled : unscaled / POWERS_OF_TEN[scale];
+    return value.charAt(0) == '-' ? -result : result;
+  }
+
+  static BigDecimal parseBigDecimal(String value) {
+    int length = value.length();
+    int start = signLength(value);
+    if(length == start || length - start > MAX_LONG_DIGITS) return new BigDecimal(value);
+
+    long unscaled = 0;
+    int scale = -1;
+    for(int i = start; i < length; i++) {
+      char c = value.charAt(i);
+      if(c >= '0' && c <= '9') {
+        unscaled = unscaled * 10 + (c - '0');
+        if(scale >= 0) scale++;
+      } else if(c == '.' && scale < 0) {
+        scale = 0;
+      } else {
+        return new BigDecimal(value);
+      }
+    }
+    if(scale == 0) return new BigDecimal(value);
+    return BigDecimal.valueOf(value.charAt(0) == '-' ? -unscaled : unscaled, Math.max(scale, 0));
+  }
+
+  /**
+   * Parse a date in the yyyy-MM-dd format.
+   * @param value
+   * @return
+   */
+  static Date parseDate(String value) {
+    Date date = value.length() == DATE_LENGTH ? fastDate(value) : null;
+    return date == null ? Date.valueOf(value) : date;
+  }
+
+  /**
+   * Parse the yyyy-MM-dd date at the beginning of the value.
+   * @param value
+   * @return null if the value does not start with such a date
+   */
+  @SuppressWarnings("deprecation")
+  private static Date fastDate(String value) {
+    if(value.length() < DATE_LENGTH || value.charAt(4) != '-' || value.charAt(7) != '-') return null;
+
+    int year = digits(value, 0, 4);
+    int month = digits(value, 5, 7);
+    int day = digits(value, 8, 10);
+    if(year < 0 || month < 1 || month > 12 || day < 1 || day > 31) return null;
+    return new Date(year - 1900, month - 1, day);
+  }
+
+  /**
+   * Parse the digits between the given positions.
+   * @return -1 if a character is not a digit
+   */
+  static int digits(String value, int begin, int end) {
+    int result = 0;
+    for(int i = begin; i < end; i++) {
+      int digit = value.charAt(i) - '0';
+      if(digit < 0 || digit > 9) return -1;
+      result = result * 10 + digit;
+    }
+    return result;
+  }
+
+  private static int signLength(String value) {
+    if(value.length() == 0) return 0;
+    char c = value.charAt(0);
+    return c == '-' || c == '+' ? 1 : 0;
+  }
+
+}
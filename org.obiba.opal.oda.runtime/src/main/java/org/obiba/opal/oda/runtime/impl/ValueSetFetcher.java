@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.datatools.connectivity.oda.OdaException;
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+/**
+ * Fetches the pages of value sets of a {@link Query} ahead of the {@link ResultSet} cursor: while the rows of the
+ * current page are being read, the following pages are requested to Opal and decoded on background threads. When more than one
+ * thread is used, pages may complete out of order but are always handed over in offset order.
+ * <p>
+ * The value sets of a request are decoded while they are received and handed over in chunks of about
+ * {@link #CHUNK_BYTES}, so that the first rows of a page can be read before the rest of the page is received.
+ * <p>
+ * The received chunks are accounted for in the {@link MemoryBudget} of the connection until the following page is
+ * asked for. The budget is checked before a page is requested: when it runs low, smaller pages are requested and no
+ * page is read ahead. Until the size of the value sets is known, only the next page is requested, at the smallest page
+ * size. A page being received is never held back, so that its HTTP connection is not kept waiting.
+ */
+class ValueSetFetcher implements PageSource {
+
+  /**
+   * Size of the received value sets after which they are handed over as a page.
+   */
+  static final int CHUNK_BYTES = 64 * 1024;
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  /**
+   * Marks the end of the chunks of a request.
+   */
+  private static final Object END = new Object();
+
+  /**
+   * Marks the cancellation of a request.
+   */
+  private static final Object CANCELLED = new Object();
+
+  private final Query query;
+
+  private final PageFactory pageFactory;
+
+  private final PageSizer pageSizer;
+
+  private final MemoryBudget budget;
+
+  private final int prefetch;
+
+  private final int parallelism;
+
+  private final int rowCount;
+
+  /**
+   * Offset of the end of the table, known once a short page has been received.
+   */
+  private volatile int endOffset = Integer.MAX_VALUE;
+
+  private final LinkedList<PageRequest> requests = new LinkedList<PageRequest>();
+
+  private ExecutorService executor;
+
+  private PageCache.Writer writer;
+
+  private PageRequest waiting;
+
+  /**
+   * Bytes of the last page returned, released from the budget once the next one is asked for.
+   */
+  private long currentBytes;
+
+  private volatile boolean cancelled;
+
+  private int nextOffset;
+
+  /**
+   * @param query the query to get the value sets from
+   * @param pageFactory turns the received value sets into pages
+   * @param pageSizer decides of the number of value sets per page
+   * @param budget bytes of received value sets that can be held in memory
+   * @param prefetch the number of pages to be fetched ahead of the current one
+   * @param parallelism the number of pages that can be fetched concurrently
+   * @param rowCount the maximum number of value sets to be fetched
+   */
+  ValueSetFetcher(Query query, PageFactory pageFactory, PageSizer pageSizer, MemoryBudget budget, int prefetch, int parallelism, int rowCount) {
+    this.query = query;
+    this.pageFactory = pageFactory;
+    this.pageSizer = pageSizer;
+    this.budget = budget;
+    this.parallelism = Math.max(1, parallelism);
+    // read far enough ahead to keep every fetching thread busy
+    this.prefetch = Math.max(Math.max(0, prefetch), this.parallelism - 1);
+    this.rowCount = rowCount;
+  }
+
+  /**
+   * Store the fetched pages in the page cache, which will be published if the end of the table is reached.
+   * @param writer
+   */
+  void setWriter(PageCache.Writer writer) {
+    this.writer = writer;
+  }
+
+  /**
+   * Get the next page of value sets, waiting for it to be fetched if necessary.
+   * @return the next page, or null if all the value sets were fetched or fetching was cancelled
+   * @throws OdaException
+   */
+  public ValueSetPage nextPage() throws OdaException {
+    releaseCurrent();
+    while(true) {
+      PageRequest request;
+      synchronized(requests) {
+        if(cancelled) {
+          close();
+          return null;
+        }
+        schedule(1);
+        if(requests.isEmpty()) {
+          if(endOffset < Integer.MAX_VALUE) endReached();
+          return null;
+        }
+
+        request = requests.getFirst();
+        // keep the read-ahead queue full while the caller consumes this request
+        schedule(prefetch + 1);
+        waiting = request;
+      }
+      Object chunk = request.take();
+      if(chunk == null) {
+        close();
+        return null;
+      }
+      if(chunk == END) {
+        synchronized(requests) {
+          requests.remove(request);
+        }
+        if(request.rows > 0) continue;
+        // past the end of the table, pending requests are empty as well
+        endReached();
+        close();
+        return null;
+      }
+      FetchedPage fetched = (FetchedPage) chunk;
+      currentBytes = fetched.bytes;
+      write(fetched.valueSets);
+      return fetched.page;
+    }
+  }
+
+  /**
+   * Cancel the pending page requests and stop the background threads.
+   */
+  public void close() {
+    synchronized(requests) {
+      for(PageRequest request : requests) {
+        request.cancel();
+      }
+      requests.clear();
+      waiting = null;
+      releaseCurrent();
+      if(executor != null) {
+        executor.shutdownNow();
+        executor = null;
+      }
+      if(writer != null) {
+        writer.abort();
+        writer = null;
+      }
+    }
+  }
+
+  /**
+   * Stop fetching pages, from any thread: the page being waited for and the following ones are not returned.
+   */
+  public void cancel() {
+    cancelled = true;
+    synchronized(requests) {
+      for(PageRequest request : requests) {
+        request.cancel();
+      }
+      if(waiting != null) waiting.cancel();
+      if(executor != null) executor.shutdownNow();
+    }
+  }
+
+  private void releaseCurrent() {
+    budget.release(currentBytes);
+    currentBytes = 0;
+  }
+
+  private void write(ValueSetsDto valueSets) {
+    if(writer == null) return;
+    try {
+      writer.write(valueSets);
+    } catch(IOException e) {
+      writer.abort();
+      writer = null;
+    }
+  }
+
+  private void endReached() {
+    if(writer != null) {
+      writer.commit();
+      writer = null;
+    }
+  }
+
+  private void schedule(int count) {
+    while(requests.size() < count && nextOffset < Math.min(rowCount, endOffset)) {
+      int offset = nextOffset;
+      // a small row limit (a preview or a top n report) is fetched in a single request
+      int limit = rowCount <= PageSizer.MAX_PAGE_SIZE ? rowCount - offset : Math.min(pageSizer.getPageSize(), rowCount - offset);
+      if(budget.isLimited()) {
+        limit = fitInBudget(limit);
+        if(limit == 0) return;
+      }
+      PageRequest request = new PageRequest(offset, limit);
+      request.future = getExecutor().submit(request);
+      requests.addLast(request);
+      nextOffset += limit;
+    }
+  }
+
+  /**
+   * Reduce the number of value sets of a request to the ones that fit in the available memory budget, as estimated from
+   * the size of the previous pages.
+   * @param limit
+   * @return zero if no page is to be read ahead
+   */
+  private int fitInBudget(int limit) {
+    double bytesPerRow = pageSizer.getBytesPerRow();
+    // no page was received yet: the size of the value sets is unknown
+    if(bytesPerRow <= 0) return requests.isEmpty() ? Math.min(limit, PageSizer.MIN_PAGE_SIZE) : 0;
+    // pages being received or not read yet will use the budget as well
+    long available = budget.getAvailableBytes() - pendingBytes();
+    int rows = (int) Math.min(limit, available / bytesPerRow);
+    if(rows >= PageSizer.MIN_PAGE_SIZE || rows == limit) return rows;
+    // the next page is always fetched, at its smallest size, so that the rows can be read
+    return requests.isEmpty() ? Math.min(limit, PageSizer.MIN_PAGE_SIZE) : 0;
+  }
+
+  /**
+   * Estimate the bytes of the scheduled requests that are not accounted for in the budget yet.
+   */
+  private long pendingBytes() {
+    double bytesPerRow = pageSizer.getBytesPerRow();
+    long bytes = 0;
+    for(PageRequest request : requests) {
+      bytes += Math.max(0, (long) (request.limit * bytesPerRow) - request.getReceivedBytes());
+    }
+    return bytes;
+  }
+
+  private synchronized void reachedEnd(int offset) {
+    if(offset < endOffset) endOffset = offset;
+  }
+
+  private ExecutorService getExecutor() {
+    if(executor == null) {
+      executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "opal-oda-fetcher-" + threadCount.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return executor;
+  }
+
+  /**
+   * Request of a range of value sets, whose chunks are queued as they are decoded.
+   */
+  private class PageRequest implements Runnable {
+
+    private final int offset;
+
+    private final int limit;
+
+    private final BlockingQueue<Object> chunks = new LinkedBlockingQueue<Object>();
+
+    private Future<?> future;
+
+    /**
+     * Bytes of the chunks received so far, and of the ones not taken by the consumer yet.
+     */
+    private long receivedBytes;
+
+    private long queuedBytes;
+
+    private boolean discarded;
+
+    /**
+     * Number of value sets received, set before {@link #END} is queued.
+     */
+    private int rows;
+
+    private PageRequest(int offset, int limit) {
+      this.offset = offset;
+      this.limit = limit;
+    }
+
+    public void run() {
+      try {
+        fetch();
+        chunks.add(END);
+      } catch(Exception e) {
+        chunks.add(e);
+      }
+    }
+
+    private void fetch() throws OdaException, IOException {
+      long start = System.currentTimeMillis();
+      ValueSetStream stream = query.openValueSets(offset, limit);
+      try {
+        List<ValueSetsDto.ValueSetDto> valueSets = new ArrayList<ValueSetsDto.ValueSetDto>();
+        long chunkStart = 0;
+        ValueSetsDto.ValueSetDto valueSet;
+        while((valueSet = stream.next()) != null) {
+          valueSets.add(valueSet);
+          if(stream.getBytesRead() - chunkStart >= CHUNK_BYTES) {
+            add(newChunk(stream.getVariables(), valueSets));
+            valueSets = new ArrayList<ValueSetsDto.ValueSetDto>();
+            chunkStart = stream.getBytesRead();
+          }
+          rows++;
+        }
+        if(!valueSets.isEmpty()) add(newChunk(stream.getVariables(), valueSets));
+      } finally {
+        stream.close();
+      }
+      if(rows < limit) reachedEnd(offset + rows);
+      pageSizer.observe(rows, stream.getBytesRead(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Queue a chunk, unless the request was cancelled, and account for it in the budget.
+     */
+    private synchronized void add(FetchedPage chunk) {
+      if(discarded) return;
+      budget.reserve(chunk.bytes);
+      receivedBytes += chunk.bytes;
+      queuedBytes += chunk.bytes;
+      chunks.add(chunk);
+    }
+
+    private synchronized long getReceivedBytes() {
+      return receivedBytes;
+    }
+
+    private FetchedPage newChunk(List<String> variables, List<ValueSetsDto.ValueSetDto> valueSets) throws OdaException {
+      ValueSetsDto chunk = ValueSetsDto.newBuilder().addAllVariables(variables).addAllValueSets(valueSets).build();
+      return new FetchedPage(chunk, pageFactory.newPage(chunk));
+    }
+
+    /**
+     * Wait for the next chunk.
+     * @return a {@link FetchedPage}, {@link #END}, or null if fetching was cancelled
+     * @throws OdaException
+     */
+    private Object take() throws OdaException {
+      Object chunk;
+      try {
+        chunk = chunks.take();
+      } catch(InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new OdaException(e);
+      }
+      if(chunk == CANCELLED) return null;
+      // a chunk queued before the request was cancelled has already been released
+      if(chunk instanceof FetchedPage && !taken((FetchedPage) chunk)) return null;
+      if(chunk instanceof Exception) {
+        if(cancelled) return null;
+        if(chunk instanceof OdaException) throw (OdaException) chunk;
+        throw new OdaException((Exception) chunk);
+      }
+      return chunk;
+    }
+
+    /**
+     * The consumer now holds the chunk, released from the budget when it asks for the next page.
+     */
+    private synchronized boolean taken(FetchedPage chunk) {
+      if(discarded) return false;
+      queuedBytes -= chunk.bytes;
+      return true;
+    }
+
+    private void cancel() {
+      if(future != null) future.cancel(true);
+      synchronized(this) {
+        discarded = true;
+        budget.release(queuedBytes);
+        queuedBytes = 0;
+      }
+      chunks.add(CANCELLED);
+    }
+  }
+
+  private static class FetchedPage {
+
+    private final ValueSetsDto valueSets;
+
+    private final ValueSetPage page;
+
+    private final long bytes;
+
+    private FetchedPage(ValueSetsDto valueSets, ValueSetPage page) {
+      this.valueSets = valueSets;
+      this.page = page;
+      this.bytes = valueSets.getSerializedSize();
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+
+/**
+ * A page of rows fetched from an Opal table. Rows are 0-based within the page and columns are 1-based, the first
+ * column being the entity identifier. The typed getters must not be called on null values.
+ */
+interface ValueSetPage {
+
+  /**
+   * Get the number of rows in the page.
+   * @return
+   */
+  int size();
+
+  boolean isNull(int row, int column);
+
+  String getString(int row, int column);
+
+  int getInt(int row, int column);
+
+  double getDouble(int row, int column);
+
+  BigDecimal getBigDecimal(int row, int column);
+
+  Date getDate(int row, int column);
+
+  boolean getBoolean(int row, int column);
+
+}
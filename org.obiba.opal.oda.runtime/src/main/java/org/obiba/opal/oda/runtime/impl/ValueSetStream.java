@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+package org.obiba.opal.oda.runtime.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.obiba.opal.web.model.Magma.ValueSetsDto;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+
+/**
+ * Value sets message decoded field by field while it is read from the response of Opal, so that its value sets can be
+ * handed over before the whole message is received, and without keeping its bytes in memory. The variables field is
+ * expected before the value sets field, which is the order in which protobuf writes the fields of a message.
+ */
+class ValueSetStream {
+
+  private final Query query;
+
+  private final InputStream content;
+
+  private final CountingInputStream counter;
+
+  private final CodedInputStream input;
+
+  private final List<String> variables = new ArrayList<String>();
+
+  private final long start = System.nanoTime();
+
+  private boolean valueSetsStarted;
+
+  private boolean closed;
+
+  /**
+   * @param query the query the value sets are requested for
+   * @param content the response stream, closed with {@link Query#closeResource(InputStream)}
+   */
+  ValueSetStream(Query query, InputStream content) {
+    this.query = query;
+    this.content = content;
+    this.counter = new CountingInputStream(content);
+    this.input = CodedInputStream.newInstance(counter);
+  }
+
+  /**
+   * Get the variables of the values of the value sets read so far.
+   * @return
+   */
+  List<String> getVariables() {
+    return Collections.unmodifiableList(variables);
+  }
+
+  /**
+   * Read the next value set.
+   * @return null at the end of the message
+   * @throws IOException
+   */
+  ValueSetsDto.ValueSetDto next() throws IOException {
+    while(true) {
+      int tag = input.readTag();
+      if(tag == 0) return null;
+      switch(WireFormat.getTagFieldNumber(tag)) {
+      case ValueSetsDto.VARIABLES_FIELD_NUMBER:
+        // the values of the value sets already handed over would not match the variables anymore
+        if(valueSetsStarted) throw new IOException("Variables received after value sets");
+        variables.add(input.readString());
+        break;
+      case ValueSetsDto.VALUESETS_FIELD_NUMBER:
+        valueSetsStarted = true;
+        ValueSetsDto.ValueSetDto.Builder builder = ValueSetsDto.ValueSetDto.newBuilder();
+        input.readMessage(builder, ExtensionRegistryLite.getEmptyRegistry());
+        // the size limit applies to the whole stream otherwise
+        input.resetSizeCounter();
+        return builder.build();
+      default:
+        if(!input.skipField(tag)) return null;
+      }
+    }
+  }
+
+  /**
+   * Get the number of bytes read from the response so far.
+   * @return
+   */
+  long getBytesRead() {
+    return counter.getCount();
+  }
+
+  /**
+   * Close the response and count the request in the query metrics.
+   */
+  void close() {
+    if(closed) return;
+    closed = true;
+    query.closeResource(content);
+    query.getMetrics().request("valueSets", System.nanoTime() - start, counter.getCount());
+  }
+
+}
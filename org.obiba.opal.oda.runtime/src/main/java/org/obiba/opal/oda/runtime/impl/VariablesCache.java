@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2008(c) The OBiBa Consortium. All rights reserved.
+ * 
+ * This program and the accompanying materials
+ * are made available under the terms of the GNU Public License v3.0.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.obiba.opal.oda.runtime.impl;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.obiba.opal.web.model.Magma.VariableDto;
+
+/**
+ * In-process cache of the variables of Opal tables, keyed by Opal URL, user, datasource, table and variables selection
+ * script. Entries expire after a time-to-live and the least recently used ones are evicted when the cache is full.
+ */
+class VariablesCache {
+
+  static final long DEFAULT_TTL = 5 * 60 * 1000;
+
+  static final int DEFAULT_SIZE = 100;
+
+  private final long ttl;
+
+  private final Map<Key, CachedVariables> entries;
+
+  /**
+   * @param size maximum number of cached variable lists
+   * @param ttl time in milliseconds during which a cached variable list is valid
+   */
+  VariablesCache(final int size, long ttl) {
+    this.ttl = ttl;
+    this.entries = new LinkedHashMap<Key, CachedVariables>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, CachedVariables> eldest) {
+        return size() > size;
+      }
+    };
+  }
+
+  /**
+   * Get the cached variables.
+   * @param url
+   * @param username
+   * @param datasource
+   * @param table
+   * @param script
+   * @return null if not cached or expired
+   */
+  synchronized List<VariableDto> get(String url, String username, String datasource, String table, String script) {
+    Key key = new Key(url, username, datasource, table, script);
+    CachedVariables entry = entries.get(key);
+    if(entry == null) return null;
+    if(System.currentTimeMillis() - entry.time > ttl) {
+      entries.remove(key);
+      return null;
+    }
+    return entry.variables;
+  }
+
+  synchronized List<VariableDto> put(String url, String username, String datasource, String table, String script, List<VariableDto> variables) {
+    List<VariableDto> cached = Collections.unmodifiableList(variables);
+    entries.put(new Key(url, username, datasource, table, script), new CachedVariables(cached));
+    return cached;
+  }
+
+  /**
+   * Remove the cached variables of a table, whatever the user or the selection script.
+   * @param url
+   * @param datasource
+   * @param table
+   */
+  synchronized void invalidate(String url, String datasource, String table) {
+    for(Iterator<Key> it = entries.keySet().iterator(); it.hasNext();) {
+      Key key = it.next();
+      if(equals(key.url, url) && equals(key.datasource, datasource) && equals(key.table, table)) it.remove();
+    }
+  }
+
+  synchronized void invalidateAll() {
+    entries.clear();
+  }
+
+  private static boolean equals(String s1, String s2) {
+    return s1 == null ? s2 == null : s1.equals(s2);
+  }
+
+  private static int hashCode(String s) {
+    return s == null ? 0 : s.hashCode();
+  }
+
+  private static class Key {
+
+    private final String url;
+
+    private final String username;
+
+    private final String datasource;
+
+    private final String table;
+
+    private final String script;
+
+    private Key(String url, String username, String datasource, String table, String script) {
+      this.url = url;
+      this.username = username;
+      this.datasource = datasource;
+      this.table = table;
+      this.script = script == null ? "" : script;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if(this == obj) return true;
+      if(!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return VariablesCache.equals(url, other.url) && VariablesCache.equals(username, other.username) && VariablesCache.equals(datasource, other.datasource) && VariablesCache.equals(table, other.table) && script.equals(other.script);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = VariablesCache.hashCode(url);
+      hash = 31 * hash + VariablesCache.hashCode(username);
+      hash = 31 * hash + VariablesCache.hashCode(datasource);
+      hash = 31 * hash + VariablesCache.hashCode(table);
+      return 31 * hash + script.hashCode();
+    }
+  }
+
+  private static class CachedVariables {
+
+    private final List<VariableDto> variables;
+
+    private final long time = System.currentTimeMillis();
+
+    private CachedVariables(List<VariableDto> variables) {
+      this.variables = variables;
+    }
+  }
+
+}